@@ -0,0 +1,289 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import jbuildstore.core.Content;
+import jbuildstore.util.Codec;
+
+/**
+ * Compares reading and writing a large abstract syntax tree using
+ * <code>Codec</code> against the <code>ObjectInputStream</code> /
+ * <code>ObjectOutputStream</code> approach, parameterised by the number of
+ * nodes in the tree.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({ "1000", "100000" })
+	public int nodes;
+
+	private Ast ast;
+	private byte[] objectBytes;
+	private byte[] codecBytes;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		ast = new Ast(OBJECT_STREAM, generate(new Random(0), nodes));
+		objectBytes = write(OBJECT_STREAM, ast);
+		codecBytes = write(CODEC, ast);
+	}
+
+	@Benchmark
+	public Ast readObjectStream() throws IOException {
+		return OBJECT_STREAM.read(new ByteArrayInputStream(objectBytes));
+	}
+
+	@Benchmark
+	public byte[] writeObjectStream() throws IOException {
+		return write(OBJECT_STREAM, ast);
+	}
+
+	@Benchmark
+	public Ast readCodec() throws IOException {
+		return CODEC.read(new ByteArrayInputStream(codecBytes));
+	}
+
+	@Benchmark
+	public byte[] writeCodec() throws IOException {
+		return write(CODEC, ast);
+	}
+
+	private static byte[] write(Content.Type<Ast> type, Ast ast) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		type.write(bout, ast);
+		return bout.toByteArray();
+	}
+
+	// ========================================================================
+	// Syntax Tree
+	// ========================================================================
+
+	public static class Ast implements Content {
+		private final Content.Type<Ast> type;
+		public final Node root;
+
+		public Ast(Content.Type<Ast> type, Node root) {
+			this.type = type;
+			this.root = root;
+		}
+
+		@Override
+		public Type<Ast> contentType() {
+			return type;
+		}
+	}
+
+	public interface Node {
+	}
+
+	public static class Var implements Node {
+		public final String name;
+
+		public Var(String name) {
+			this.name = name;
+		}
+	}
+
+	public static class Const implements Node {
+		public final long value;
+
+		public Const(long value) {
+			this.value = value;
+		}
+	}
+
+	public static class Binary implements Node {
+		public final String op;
+		public final Node lhs;
+		public final Node rhs;
+
+		public Binary(String op, Node lhs, Node rhs) {
+			this.op = op;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+	}
+
+	public static class Call implements Node {
+		public final String name;
+		public final List<Node> arguments;
+
+		public Call(String name, List<Node> arguments) {
+			this.name = name;
+			this.arguments = arguments;
+		}
+	}
+
+	public static class Block implements Node {
+		public final List<Node> statements;
+
+		public Block(List<Node> statements) {
+			this.statements = statements;
+		}
+	}
+
+	private static final String[] OPERATORS = { "+", "-", "*", "/", "==", "<" };
+
+	/**
+	 * Generate a tree with (roughly) a given number of nodes. Identifiers are
+	 * drawn from a small pool, as is typical of real programs.
+	 *
+	 * @param rand
+	 * @param n
+	 * @return
+	 */
+	private static Node generate(Random rand, int n) {
+		if (n <= 1) {
+			return rand.nextBoolean() ? new Var("var" + rand.nextInt(64)) : new Const(rand.nextInt(1000));
+		}
+		switch (rand.nextInt(3)) {
+		case 0: {
+			int m = (n - 1) / 2;
+			return new Binary(OPERATORS[rand.nextInt(OPERATORS.length)], generate(rand, m), generate(rand, n - 1 - m));
+		}
+		case 1:
+			return new Call("method" + rand.nextInt(32), children(rand, n - 1, 4));
+		default:
+			return new Block(children(rand, n - 1, 8));
+		}
+	}
+
+	private static List<Node> children(Random rand, int n, int max) {
+		int k = Math.min(n, 1 + rand.nextInt(max));
+		ArrayList<Node> children = new ArrayList<>(k);
+		for (int i = 0; i != k; ++i) {
+			children.add(generate(rand, n / k));
+		}
+		return children;
+	}
+
+	// ========================================================================
+	// ObjectStream
+	// ========================================================================
+
+	public static final Content.Type<Ast> OBJECT_STREAM = new Content.Type<Ast>() {
+		@Override
+		public Ast read(InputStream input) throws IOException {
+			try (ObjectInputStream ois = new ObjectInputStream(input)) {
+				return new Ast(this, read(ois));
+			}
+		}
+
+		private Node read(ObjectInputStream in) throws IOException {
+			switch (in.readByte()) {
+			case 0:
+				return new Var(in.readUTF());
+			case 1:
+				return new Const(in.readLong());
+			case 2:
+				return new Binary(in.readUTF(), read(in), read(in));
+			case 3:
+				return new Call(in.readUTF(), readAll(in));
+			default:
+				return new Block(readAll(in));
+			}
+		}
+
+		private List<Node> readAll(ObjectInputStream in) throws IOException {
+			int n = in.readInt();
+			ArrayList<Node> nodes = new ArrayList<>(n);
+			for (int i = 0; i != n; ++i) {
+				nodes.add(read(in));
+			}
+			return nodes;
+		}
+
+		@Override
+		public void write(OutputStream output, Ast value) throws IOException {
+			try (ObjectOutputStream oos = new ObjectOutputStream(output)) {
+				write(oos, value.root);
+			}
+		}
+
+		private void write(ObjectOutputStream out, Node node) throws IOException {
+			if (node instanceof Var) {
+				out.writeByte(0);
+				out.writeUTF(((Var) node).name);
+			} else if (node instanceof Const) {
+				out.writeByte(1);
+				out.writeLong(((Const) node).value);
+			} else if (node instanceof Binary) {
+				Binary b = (Binary) node;
+				out.writeByte(2);
+				out.writeUTF(b.op);
+				write(out, b.lhs);
+				write(out, b.rhs);
+			} else if (node instanceof Call) {
+				Call c = (Call) node;
+				out.writeByte(3);
+				out.writeUTF(c.name);
+				writeAll(out, c.arguments);
+			} else {
+				out.writeByte(4);
+				writeAll(out, ((Block) node).statements);
+			}
+		}
+
+		private void writeAll(ObjectOutputStream out, List<Node> nodes) throws IOException {
+			out.writeInt(nodes.size());
+			for (Node n : nodes) {
+				write(out, n);
+			}
+		}
+
+		@Override
+		public String suffix() {
+			return "ast";
+		}
+	};
+
+	// ========================================================================
+	// Codec
+	// ========================================================================
+
+	private static final Codec.Union<Node> NODE = new Codec.Union<>();
+	private static final Codec<List<Node>> NODES = Codec.list(NODE);
+
+	static {
+		NODE.add(0, Var.class, Codec.STRING.map(Var::new, v -> v.name));
+		NODE.add(1, Const.class, Codec.LONG.map(Const::new, c -> c.value));
+		NODE.add(2, Binary.class, Codec.record(Codec.STRING, b -> b.op, NODE, b -> b.lhs, NODE, b -> b.rhs, Binary::new));
+		NODE.add(3, Call.class, Codec.record(Codec.STRING, c -> c.name, NODES, c -> c.arguments, Call::new));
+		NODE.add(4, Block.class, NODES.map(Block::new, b -> b.statements));
+	}
+
+	public static final Codec.Type<Ast> CODEC = new Codec.Type<>("ast", 1,
+			Codec.of((out, ast) -> NODE.encode(out, ast.root), in -> new Ast(CodecBenchmark.CODEC, NODE.decode(in))));
+}
@@ -0,0 +1,100 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import jbuildstore.util.BinaryFile;
+import jbuildstore.util.TextFile;
+
+/**
+ * Measures (de)serialisation of the builtin content types, along with
+ * <code>TextFile.getEnclosingLine()</code>, parameterised by payload size.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentTypeBenchmark {
+	@Param({ "64", "4096", "1048576" })
+	public int payload;
+
+	private BinaryFile binary;
+	private byte[] binaryBytes;
+	private TextFile text;
+	private byte[] textBytes;
+	private int offset;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		binary = Workload.payload(0, payload);
+		binaryBytes = binary.getBytes();
+		// Construct text consisting of lines of varying length
+		Random rand = new Random(0);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < payload) {
+			int n = rand.nextInt(100);
+			for (int i = 0; i < n; ++i) {
+				sb.append((char) ('a' + rand.nextInt(26)));
+			}
+			sb.append('\n');
+		}
+		sb.setLength(payload);
+		text = new TextFile(TextFile.ContentTypeUtf8, sb.toString());
+		textBytes = text.getBytes(StandardCharsets.UTF_8);
+		// Look up a line towards the end, as is typical for error reporting
+		offset = (payload * 3) / 4;
+	}
+
+	@Benchmark
+	public BinaryFile readBinary() throws IOException {
+		return Workload.BINARY.read(new ByteArrayInputStream(binaryBytes));
+	}
+
+	@Benchmark
+	public byte[] writeBinary() throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(payload);
+		Workload.BINARY.write(bout, binary);
+		return bout.toByteArray();
+	}
+
+	@Benchmark
+	public TextFile readText() throws IOException {
+		return TextFile.ContentTypeUtf8.read(new ByteArrayInputStream(textBytes));
+	}
+
+	@Benchmark
+	public byte[] writeText() throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(payload);
+		TextFile.ContentTypeUtf8.write(bout, text);
+		return bout.toByteArray();
+	}
+
+	@Benchmark
+	public TextFile.Line getEnclosingLine() {
+		return text.getEnclosingLine(offset);
+	}
+}
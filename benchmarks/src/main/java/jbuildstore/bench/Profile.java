@@ -0,0 +1,109 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import jbuildstore.util.TracingStore;
+
+/**
+ * Synthetic workloads, given as a mix of operations over a dataset of a given
+ * size. These generate operations in the same form as captured traces (see
+ * <code>TracingStore</code>), such that both can be replayed in the same way.
+ *
+ * @author David J. Pearce
+ *
+ */
+public enum Profile {
+	/**
+	 * Mostly lookups spread evenly over the dataset, as when compiling against a
+	 * large set of dependencies.
+	 */
+	READ(0.90, 0.08, 0.00, 0.02, 0.0, false),
+	/**
+	 * Mostly writes spread evenly over the dataset, as when a clean build
+	 * generates its outputs.
+	 */
+	WRITE(0.30, 0.60, 0.10, 0.00, 0.0, false),
+	/**
+	 * A mix of lookups and writes concentrated on a small hot set of entries, with
+	 * occasional queries and synchronisation, as for an incremental build.
+	 */
+	BUILD(0.70, 0.25, 0.005, 0.04, 0.005, true);
+
+	private final double get;
+	private final double put;
+	private final double remove;
+	private final double match;
+	private final double synchronise;
+	private final boolean skewed;
+
+	private Profile(double get, double put, double remove, double match, double synchronise, boolean skewed) {
+		this.get = get;
+		this.put = put;
+		this.remove = remove;
+		this.match = match;
+		this.synchronise = synchronise;
+		this.skewed = skewed;
+	}
+
+	/**
+	 * Generate a given number of operations over a dataset with a given number of
+	 * entries, each of a given size.
+	 *
+	 * @param operations
+	 * @param entries
+	 * @param payload
+	 * @param seed
+	 * @return
+	 */
+	public List<TracingStore.Operation> generate(int operations, int entries, int payload, long seed) {
+		Random random = new Random(seed);
+		ArrayList<TracingStore.Operation> ops = new ArrayList<>(operations);
+		for (int i = 0; i != operations; ++i) {
+			double r = random.nextDouble();
+			String key = Workload.key(pick(random, entries)).id();
+			if (r < get) {
+				ops.add(operation("get", -1, payload, key));
+			} else if ((r -= get) < put) {
+				ops.add(operation("put", -1, payload, key));
+			} else if ((r -= put) < remove) {
+				ops.add(operation("remove", -1, -1, key));
+			} else if ((r -= remove) < match) {
+				// Queries select a single package
+				ops.add(operation("match", entries / Workload.PACKAGES, -1, null));
+			} else if ((r -= match) < synchronise) {
+				ops.add(operation("synchronise", -1, -1, null));
+			} else {
+				ops.add(operation("get", -1, payload, key));
+			}
+		}
+		return ops;
+	}
+
+	private int pick(Random random, int entries) {
+		if (skewed) {
+			// Cubing concentrates roughly half of all accesses on the first 12% of entries
+			double d = random.nextDouble();
+			return (int) (d * d * d * entries);
+		}
+		return random.nextInt(entries);
+	}
+
+	private static TracingStore.Operation operation(String op, long count, long bytes, String key) {
+		return new TracingStore.Operation(0, 0, 0, op, count, bytes, key == null ? null : "bin", key);
+	}
+}
@@ -0,0 +1,389 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+import jbuildstore.util.BinaryFile;
+import jbuildstore.util.TracingStore;
+
+/**
+ * A load test which replays a sequence of operations against a given store,
+ * either from a trace captured using <code>TracingStore</code> or generated
+ * from a synthetic <code>Profile</code>. Operations are issued as fast as
+ * possible by a given number of threads, in (roughly) their original order. At
+ * the end, the throughput, latency percentiles for each kind of operation and
+ * peak heap usage are reported. For example:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar jbuildstore.bench.Replay --store directory --profile build --threads 8
+ * java -cp target/benchmarks.jar jbuildstore.bench.Replay --store cas --trace build.trace
+ * </pre>
+ *
+ * When replaying a trace, each distinct key is mapped to a synthetic key and
+ * values are replaced by random payloads of the recorded size. Since the
+ * predicates of queries are not captured, each query is replayed as one which
+ * matches the same number of keys.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Replay {
+	private static final String USAGE = "usage: Replay [--store hashmap|directory|cas|offheap] [--threads n] "
+			+ "[--trace file | --profile read|write|build] [--entries n] [--operations n] [--payload bytes] [--seed n]";
+
+	public static void main(String[] args) throws Exception {
+		String kind = "directory";
+		String trace = null;
+		Profile profile = Profile.BUILD;
+		int threads = 1;
+		int entries = 10000;
+		int operations = 100000;
+		int payload = 1024;
+		long seed = 0;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				exit(USAGE);
+			}
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--store":
+				kind = value;
+				break;
+			case "--trace":
+				trace = value;
+				break;
+			case "--profile":
+				profile = Profile.valueOf(value.toUpperCase());
+				break;
+			case "--threads":
+				threads = Integer.parseInt(value);
+				break;
+			case "--entries":
+				entries = Integer.parseInt(value);
+				break;
+			case "--operations":
+				operations = Integer.parseInt(value);
+				break;
+			case "--payload":
+				payload = Integer.parseInt(value);
+				break;
+			case "--seed":
+				seed = Long.parseLong(value);
+				break;
+			default:
+				exit(USAGE);
+			}
+		}
+		List<TracingStore.Operation> ops;
+		if (trace != null) {
+			try (Reader in = new FileReader(trace)) {
+				ops = TracingStore.read(in);
+			}
+		} else {
+			ops = profile.generate(operations, entries, payload, seed);
+		}
+		File dir = Workload.createTempDirectory();
+		try {
+			Replay replay = new Replay(ops, payload);
+			Content.Store<String> store = Workload.store(kind, dir, 0, 0);
+			replay.populate(store);
+			System.out.println("Replaying " + ops.size() + " operations over " + replay.keys.size() + " keys on "
+					+ kind + " store with " + threads + " thread(s)");
+			replay.run(store, threads).print();
+		} finally {
+			Workload.delete(dir);
+		}
+	}
+
+	/**
+	 * The operations being replayed.
+	 */
+	private final List<TracingStore.Operation> operations;
+	/**
+	 * Maps each distinct key in the trace to a synthetic key.
+	 */
+	private final Map<String, Key<String, BinaryFile>> keys;
+	/**
+	 * Payloads for entries read before being written, such that the initial store
+	 * contents match the trace.
+	 */
+	private final Map<String, Integer> initial;
+	/**
+	 * Default payload size for operations which don't record one.
+	 */
+	private final int payload;
+
+	public Replay(List<TracingStore.Operation> operations, int payload) {
+		this.operations = operations;
+		this.payload = payload;
+		this.keys = new HashMap<>();
+		this.initial = new HashMap<>();
+		for (TracingStore.Operation op : operations) {
+			String k = op.getKey();
+			if (k != null && !keys.containsKey(k)) {
+				keys.put(k, Workload.key(keys.size()));
+				String name = op.getOperation();
+				// Entries first read (or removed) must already exist, unless the read missed
+				if (!name.equals("put") && !name.equals("get.miss")) {
+					initial.put(k, op.getBytes() < 0 ? payload : (int) op.getBytes());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Populate a store with the entries which the trace expects to exist before it
+	 * starts.
+	 *
+	 * @param store
+	 * @throws IOException
+	 */
+	public void populate(Content.Store<String> store) throws IOException {
+		int seed = 0;
+		for (Map.Entry<String, Integer> e : initial.entrySet()) {
+			store.put(keys.get(e.getKey()), Workload.payload(seed++, e.getValue()));
+		}
+		synchronise(store);
+	}
+
+	/**
+	 * Replay all operations against a given store using a given number of threads.
+	 *
+	 * @param store
+	 * @param threads
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Result run(Content.Store<String> store, int threads) throws InterruptedException {
+		final long[] latencies = new long[operations.size()];
+		final AtomicInteger next = new AtomicInteger();
+		final List<Throwable> errors = new ArrayList<>();
+		// Reset heap statistics
+		System.gc();
+		List<MemoryPoolMXBean> pools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+				pool.resetPeakUsage();
+				pools.add(pool);
+			}
+		}
+		long gcs = gcCount(), gcTime = gcTime();
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t != threads; ++t) {
+			workers[t] = new Thread(() -> {
+				int i;
+				while ((i = next.getAndIncrement()) < latencies.length) {
+					long start = System.nanoTime();
+					try {
+						apply(store, operations.get(i), i);
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+					latencies[i] = System.nanoTime() - start;
+				}
+			}, "replay-" + t);
+		}
+		long start = System.nanoTime();
+		for (Thread w : workers) {
+			w.start();
+		}
+		for (Thread w : workers) {
+			w.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : pools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		// Group latencies by operation
+		TreeMap<String, long[]> grouped = new TreeMap<>();
+		TreeMap<String, Integer> counts = new TreeMap<>();
+		for (TracingStore.Operation op : operations) {
+			counts.merge(name(op), 1, Integer::sum);
+		}
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			grouped.put(e.getKey(), new long[e.getValue()]);
+		}
+		HashMap<String, Integer> filled = new HashMap<>();
+		for (int i = 0; i != latencies.length; ++i) {
+			String name = name(operations.get(i));
+			int j = filled.merge(name, 1, Integer::sum) - 1;
+			grouped.get(name)[j] = latencies[i];
+		}
+		return new Result(operations.size(), elapsed, grouped, peak, gcCount() - gcs, gcTime() - gcTime, errors);
+	}
+
+	private void apply(Content.Store<String> store, TracingStore.Operation op, int index) throws IOException {
+		Key<String, BinaryFile> key = op.getKey() == null ? null : keys.get(op.getKey());
+		switch (name(op)) {
+		case "get":
+			store.get(key);
+			break;
+		case "put":
+			store.put(key, Workload.payload(index, op.getBytes() < 0 ? payload : (int) op.getBytes()));
+			break;
+		case "remove":
+			store.remove(key);
+			break;
+		case "match":
+			store.match(query(op.getCount()));
+			break;
+		case "getAll":
+			store.getAll(query(op.getCount()));
+			break;
+		case "synchronise":
+			synchronise(store);
+			break;
+		case "snapshot":
+			store.snapshot();
+			break;
+		default:
+			// Transaction boundaries are not replayed, since their writes already were.
+		}
+	}
+
+	/**
+	 * Construct a query which matches (roughly) a given number of keys.
+	 *
+	 * @param count
+	 * @return
+	 */
+	private Predicate<Key<String, ?>> query(long count) {
+		final int n = Math.max(1, keys.size());
+		final long matching = Math.max(0, count);
+		return k -> (k.id().hashCode() & Integer.MAX_VALUE) % n < matching;
+	}
+
+	private static String name(TracingStore.Operation op) {
+		// Misses are replayed as lookups, since whether they miss depends on the store
+		return op.getOperation().equals("get.miss") ? "get" : op.getOperation();
+	}
+
+	private static void synchronise(Content.Store<String> store) throws IOException {
+		try {
+			store.synchronise();
+		} catch (UnsupportedOperationException e) {
+			// Purely in-memory stores may not support this
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	private static void exit(String message) {
+		System.err.println(message);
+		System.exit(1);
+	}
+
+	/**
+	 * The outcome of a replay.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Result {
+		private final int operations;
+		private final long elapsed;
+		private final TreeMap<String, long[]> latencies;
+		private final long peakHeap;
+		private final long collections;
+		private final long collectionMillis;
+		private final List<Throwable> errors;
+
+		public Result(int operations, long elapsed, TreeMap<String, long[]> latencies, long peakHeap,
+				long collections, long collectionMillis, List<Throwable> errors) {
+			this.operations = operations;
+			this.elapsed = elapsed;
+			this.latencies = latencies;
+			this.peakHeap = peakHeap;
+			this.collections = collections;
+			this.collectionMillis = collectionMillis;
+			this.errors = errors;
+		}
+
+		/**
+		 * Get the number of operations completed per second.
+		 *
+		 * @return
+		 */
+		public double getThroughput() {
+			return operations / (elapsed / 1e9);
+		}
+
+		/**
+		 * Get the peak heap usage (in bytes) during the replay.
+		 *
+		 * @return
+		 */
+		public long getPeakHeap() {
+			return peakHeap;
+		}
+
+		public void print() {
+			System.out.printf("Throughput: %.0f ops/s (%d ops in %.3fs)%n", getThroughput(), operations,
+					elapsed / 1e9);
+			System.out.printf("Peak heap: %.1f MiB, %d collections (%d ms)%n", peakHeap / (1024.0 * 1024),
+					collections, collectionMillis);
+			System.out.printf("%-12s %10s %12s %12s %12s %12s%n", "operation", "count", "p50 (us)", "p99 (us)",
+					"p99.9 (us)", "max (us)");
+			for (Map.Entry<String, long[]> e : latencies.entrySet()) {
+				long[] ls = e.getValue();
+				Arrays.sort(ls);
+				System.out.printf("%-12s %10d %12.1f %12.1f %12.1f %12.1f%n", e.getKey(), ls.length,
+						percentile(ls, 0.5), percentile(ls, 0.99), percentile(ls, 0.999), ls[ls.length - 1] / 1e3);
+			}
+			if (!errors.isEmpty()) {
+				System.out.println(errors.size() + " operation(s) failed, first: " + errors.get(0));
+			}
+		}
+
+		private static double percentile(long[] sorted, double p) {
+			int i = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e3;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+import jbuildstore.util.BinaryFile;
+
+/**
+ * Measures the throughput of the basic store operations (i.e.
+ * <code>get</code>, <code>put</code>, <code>getAll</code> and
+ * <code>match</code>) across every store, parameterised by the number of
+ * entries and their payload size.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+	@Param({ "hashmap", "directory", "cas" })
+	public String store;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int entries;
+
+	@Param({ "64", "4096" })
+	public int payload;
+
+	private File dir;
+	private Content.Store<String> root;
+	/**
+	 * Values written by <code>put</code>. Stores ignore a write of the value an
+	 * entry already holds, so successive writes to the same key alternate between
+	 * these.
+	 */
+	private BinaryFile[] values;
+	/**
+	 * Number of writes made so far.
+	 */
+	private long writes;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Workload.createTempDirectory();
+		root = Workload.store(store, dir, entries, payload);
+		values = new BinaryFile[] { Workload.payload(-1, payload), Workload.payload(-2, payload) };
+		// Force everything to be loaded, so get measures the steady state.
+		root.getAll(k -> true);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		Workload.delete(dir);
+	}
+
+	@Benchmark
+	public BinaryFile get() throws IOException {
+		return root.get(Workload.key(ThreadLocalRandom.current().nextInt(entries)));
+	}
+
+	@Benchmark
+	public void put() {
+		// Cycle through keys, switching value on each pass such that every write
+		// differs from the value the entry currently holds.
+		long n = writes++;
+		root.put(Workload.key((int) (n % entries)), values[(int) ((n / entries) & 1)]);
+	}
+
+	@Benchmark
+	public List<BinaryFile> getAll() throws IOException {
+		return root.getAll(Workload.PACKAGE_QUERY);
+	}
+
+	@Benchmark
+	public List<Key<String, BinaryFile>> match() {
+		return root.match(Workload.PACKAGE_QUERY);
+	}
+}
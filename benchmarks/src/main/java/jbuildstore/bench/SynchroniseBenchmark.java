@@ -0,0 +1,83 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import jbuildstore.core.Content;
+
+/**
+ * Measures the latency of synchronising a store to disk after a fraction of its
+ * entries have been modified, as would happen at the end of an incremental
+ * build.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynchroniseBenchmark {
+	@Param({ "directory", "cas" })
+	public String store;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int entries;
+
+	@Param({ "64", "4096" })
+	public int payload;
+
+	/**
+	 * Percentage of entries modified before each synchronisation.
+	 */
+	@Param({ "1" })
+	public int modified;
+
+	private File dir;
+	private Content.Store<String> root;
+	private int round;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		dir = Workload.createTempDirectory();
+		root = Workload.store(store, dir, entries, payload);
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws IOException {
+		Workload.delete(dir);
+	}
+
+	@Setup(Level.Invocation)
+	public void modify() {
+		int n = Math.max(1, (entries * modified) / 100);
+		round = round + 1;
+		for (int i = 0; i != n; ++i) {
+			int k = (i * 7919 + round) % entries;
+			root.put(Workload.key(k), Workload.payload(round + i, payload));
+		}
+	}
+
+	@Benchmark
+	public void synchronise() throws IOException {
+		root.synchronise();
+	}
+}
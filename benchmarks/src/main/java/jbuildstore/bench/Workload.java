@@ -0,0 +1,158 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+import jbuildstore.util.BinaryFile;
+import jbuildstore.util.ContentAddressedStore;
+import jbuildstore.util.DirectoryStore;
+import jbuildstore.util.HashMapStore;
+import jbuildstore.util.OffHeapStore;
+
+/**
+ * Common functionality for constructing the keys, payloads and stores used
+ * across the benchmarks.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Workload {
+	/**
+	 * Content type used for all benchmark payloads.
+	 */
+	public static final Content.Type<BinaryFile> BINARY = BinaryFile.ContentType("bin");
+	/**
+	 * Number of packages over which keys are spread. A query selecting a single
+	 * package therefore matches roughly 1% of all keys.
+	 */
+	public static final int PACKAGES = 100;
+
+	/**
+	 * Maps keys to filenames of the form <code>p7/e123.bin</code>.
+	 */
+	public static final Key.Map<String, String> ENCDEC = new Key.Map<>() {
+		@Override
+		public String encode(Key<String, ?> key) {
+			return key.id() + "." + key.contentType().suffix();
+		}
+
+		@Override
+		public Key<String, ?> decode(String t) {
+			if (t.endsWith(".bin")) {
+				return new Key.Pair<>(t.substring(0, t.length() - 4), BINARY);
+			}
+			return null;
+		}
+	};
+
+	/**
+	 * Query matching all keys in a single package.
+	 */
+	public static final Predicate<Key<String, ?>> PACKAGE_QUERY = k -> k.id().startsWith("p7/");
+
+	/**
+	 * Construct the ith key.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public static Key<String, BinaryFile> key(int i) {
+		return new Key.Pair<>("p" + (i % PACKAGES) + "/e" + i, BINARY);
+	}
+
+	/**
+	 * Construct a payload of a given size with deterministic contents.
+	 *
+	 * @param seed
+	 * @param size
+	 * @return
+	 */
+	public static BinaryFile payload(int seed, int size) {
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return new BinaryFile(BINARY, bytes);
+	}
+
+	/**
+	 * Construct a store of the given kind, populated with a given number of
+	 * entries and synchronised to disk (where applicable).
+	 *
+	 * @param kind
+	 * @param dir
+	 * @param entries
+	 * @param payload
+	 * @return
+	 * @throws IOException
+	 */
+	public static Content.Store<String> store(String kind, File dir, int entries, int payload) throws IOException {
+		Content.Store<String> store;
+		switch (kind) {
+		case "hashmap":
+			store = new HashMapStore<>();
+			break;
+		case "directory":
+			store = new DirectoryStore<>(ENCDEC, dir);
+			break;
+		case "cas":
+			store = new ContentAddressedStore<>(ENCDEC, dir);
+			break;
+		case "offheap":
+			store = new OffHeapStore<>();
+			break;
+		default:
+			throw new IllegalArgumentException("unknown store: " + kind);
+		}
+		for (int i = 0; i != entries; ++i) {
+			store.put(key(i), payload(i, payload));
+		}
+		if (!kind.equals("hashmap")) {
+			store.synchronise();
+		}
+		return store;
+	}
+
+	/**
+	 * Create a fresh temporary directory.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public static File createTempDirectory() throws IOException {
+		return Files.createTempDirectory("jbuildstore").toFile();
+	}
+
+	/**
+	 * Recursively delete a directory.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public static void delete(File dir) throws IOException {
+		if (dir != null && dir.exists()) {
+			try (Stream<Path> paths = Files.walk(dir.toPath())) {
+				paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+}
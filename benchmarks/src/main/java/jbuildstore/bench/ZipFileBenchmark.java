@@ -0,0 +1,79 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import jbuildstore.core.Content;
+import jbuildstore.util.BinaryFile;
+import jbuildstore.util.ZipFile;
+
+/**
+ * Measures reading and writing zip files, along with looking up entries within
+ * them, parameterised by the number of entries and their payload size.
+ *
+ * @author David J. Pearce
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZipFileBenchmark {
+	private static final Content.Type<ZipFile<String>> ZIP = ZipFile.ContentType(Workload.ENCDEC);
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int entries;
+
+	@Param({ "64", "4096" })
+	public int payload;
+
+	private ZipFile<String> zip;
+	private byte[] bytes;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		zip = new ZipFile<>(ZIP);
+		for (int i = 0; i != entries; ++i) {
+			zip.add(Workload.key(i), Workload.payload(i, payload).getBytes());
+		}
+		bytes = write();
+		zip = ZIP.read(new ByteArrayInputStream(bytes));
+	}
+
+	@Benchmark
+	public ZipFile<String> read() throws IOException {
+		return ZIP.read(new ByteArrayInputStream(bytes));
+	}
+
+	@Benchmark
+	public byte[] write() throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ZIP.write(bout, zip);
+		return bout.toByteArray();
+	}
+
+	@Benchmark
+	public BinaryFile get() {
+		return zip.get(Workload.key(ThreadLocalRandom.current().nextInt(entries)));
+	}
+}
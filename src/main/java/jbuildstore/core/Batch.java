@@ -0,0 +1,97 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A simple implementation of <code>Content.Transaction</code> which stages
+ * writes in memory. Staged writes are held in order, such that a later write to
+ * the same key overrides an earlier one. A removal is staged as a
+ * <code>null</code> value. On commit, the staged writes are handed to the
+ * store in one go, which is then responsible for applying them atomically.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class Batch<S> implements Content.Transaction<S> {
+	/**
+	 * Responsible for applying the staged writes to the underlying store.
+	 */
+	private final Consumer<Map<Key<S, ?>, Content>> committer;
+	/**
+	 * The staged writes, or <code>null</code> if this transaction has been
+	 * completed.
+	 */
+	private LinkedHashMap<Key<S, ?>, Content> changes;
+
+	public Batch(Consumer<Map<Key<S, ?>, Content>> committer) {
+		if (committer == null) {
+			throw new IllegalArgumentException("committer required");
+		}
+		this.committer = committer;
+		this.changes = new LinkedHashMap<>();
+	}
+
+	@Override
+	public <T extends Content> void put(Key<S, T> key, T value) {
+		if (key == null) {
+			throw new IllegalArgumentException("key required");
+		} else if (key.contentType() != value.contentType()) {
+			throw new IllegalArgumentException("invalid key-value pair");
+		}
+		open().put(key, value);
+	}
+
+	@Override
+	public void remove(Key<S, ?> key) {
+		open().put(key, null);
+	}
+
+	@Override
+	public void commit() {
+		Map<Key<S, ?>, Content> cs = open();
+		changes = null;
+		committer.accept(cs);
+	}
+
+	@Override
+	public void rollback() {
+		changes = null;
+	}
+
+	@Override
+	public void close() {
+		rollback();
+	}
+
+	/**
+	 * Get the number of staged writes in this transaction.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return changes == null ? 0 : changes.size();
+	}
+
+	private LinkedHashMap<Key<S, ?>, Content> open() {
+		if (changes == null) {
+			throw new IllegalStateException("transaction already completed");
+		}
+		return changes;
+	}
+}
@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Predicate;
 
 /**
@@ -166,6 +167,41 @@ public interface Content {
 		public void remove(Key<S, ?> key);
 	}
 
+	/**
+	 * A group of writes which are staged and then either applied to the store which
+	 * created them together, or discarded together. Staged writes are not visible
+	 * in the store until they are committed, and discarding them does not touch the
+	 * underlying medium. Closing a transaction which has not been committed rolls
+	 * it back. Observe that committing a transaction applies its writes to the
+	 * store, but not to the underlying medium. As for any other write, they are
+	 * only written out when the store is next synchronised (at which point they
+	 * are flushed along with any other outstanding writes).
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Transaction<S> extends Sink<S>, AutoCloseable {
+		/**
+		 * Apply all staged writes to the store as a single atomic step with respect
+		 * to snapshots. That is, a snapshot (see <code>Store.snapshot()</code>) sees
+		 * either all of the writes or none of them (unless the store does not support
+		 * atomic transactions, see <code>Store.begin()</code>). Observe that this
+		 * says nothing about reading the store itself from another thread whilst a
+		 * transaction is being committed, which may observe some but not all of the
+		 * writes. Readers requiring a consistent view should use a snapshot. This
+		 * does not write to the underlying medium.
+		 */
+		public void commit();
+
+		/**
+		 * Discard all staged writes.
+		 */
+		public void rollback();
+
+		@Override
+		public void close();
+	}
+
 	/**
 	 * A content store represents an interface to an underlying medium (e.g. the file
 	 * system). As such it provides both read and write access, along with the
@@ -181,5 +217,59 @@ public interface Content {
 		 * items will then be reloaded on demand when next requested.
 		 */
 		public void synchronise() throws IOException;
+
+		/**
+		 * Take a snapshot of this store. The snapshot is an immutable view of the
+		 * store's contents at the point it was taken, and is unaffected by any
+		 * subsequent writes to the store. Taking a snapshot is a constant time
+		 * operation which does not copy the store's contents. Instead, stores use
+		 * copy-on-write such that the next write following a snapshot pays for the
+		 * copy. Snapshots can be safely read from other threads whilst the store is
+		 * being written, and hence provide the mechanism for concurrent readers.
+		 * Stores which cannot provide snapshots need not override this.
+		 *
+		 * @return
+		 * @throws UnsupportedOperationException if this store does not support
+		 *                                       snapshots.
+		 */
+		public default Source<K> snapshot() {
+			throw new UnsupportedOperationException("snapshots not supported by " + getClass().getName());
+		}
+
+		/**
+		 * Begin a new transaction against this store. Writes made through the
+		 * transaction are staged until it is committed, at which point they are
+		 * applied together. By default, staged writes are applied one at a time
+		 * through <code>put()</code> and <code>remove()</code> and, hence, readers may
+		 * observe a partially applied transaction. Stores which can apply them
+		 * atomically should override this.
+		 *
+		 * @return
+		 */
+		public default Transaction<K> begin() {
+			return new Batch<>(changes -> {
+				for (Map.Entry<Key<K, ?>, Content> e : changes.entrySet()) {
+					if (e.getValue() == null) {
+						remove(e.getKey());
+					} else {
+						Content.put(this, e.getKey(), e.getValue());
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write a value whose type has been lost (e.g. through a map of staged
+	 * writes) to a given sink. This is safe provided the value matches the
+	 * content type of its key, as is checked when writes are staged.
+	 *
+	 * @param sink
+	 * @param key
+	 * @param value
+	 */
+	@SuppressWarnings("unchecked")
+	private static <S, T extends Content> void put(Sink<S> sink, Key<S, T> key, Content value) {
+		sink.put(key, (T) value);
 	}
 }
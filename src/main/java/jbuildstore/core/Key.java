@@ -78,6 +78,11 @@ public interface Key<S, T extends Content> {
 	public static class Pair<S, T extends Content> implements Key<S, T> {
 		private final S id;
 		private final Content.Type<T> contentType;
+		/**
+		 * Cached hash code for this key. Since keys are used heavily in lookups, and
+		 * identifiers are often long strings, this avoids recomputing it each time.
+		 */
+		private final int hash;
 
 		public Pair(S key, Content.Type<T> contentType) {
 			if (key == null) {
@@ -87,6 +92,7 @@ public interface Key<S, T extends Content> {
 			}
 			this.contentType = contentType;
 			this.id = key;
+			this.hash = contentType.hashCode() ^ key.hashCode();
 		}
 
 		@Override
@@ -101,7 +107,11 @@ public interface Key<S, T extends Content> {
 
 		@Override
 		public boolean equals(Object o) {
-			if (o instanceof Key) {
+			if (this == o) {
+				return true;
+			} else if (o instanceof Pair && ((Pair<?, ?>) o).hash != hash) {
+				return false;
+			} else if (o instanceof Key) {
 				Key<?, ?> k = (Key<?, ?>) o;
 				return contentType.equals(k.contentType()) && id.equals(k.id());
 			}
@@ -110,7 +120,7 @@ public interface Key<S, T extends Content> {
 
 		@Override
 		public int hashCode() {
-			return contentType.hashCode() ^ id.hashCode();
+			return hash;
 		}
 
 		@Override
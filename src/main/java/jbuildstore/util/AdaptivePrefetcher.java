@@ -0,0 +1,279 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * A source which learns which entries tend to be read together, and uses this to
+ * prefetch entries likely to be read next. Specifically, every entry read
+ * shortly after another (i.e. within a small window of reads) is counted as a
+ * successor of it. When an entry is read, its most frequent successors are then
+ * loaded in the background. In addition, since keys matched by a query are
+ * often read next (e.g. all entries in an imported package), these can also be
+ * prefetched. The amount of history retained is bounded, with the least recently
+ * read entries being forgotten first. Likewise, the successors of an entry are
+ * bounded and, when a new successor arrives, existing counts are aged so that
+ * successors which are no longer seen eventually make way for new ones. Since
+ * every read passes through here, reads are recorded without a global lock.
+ * Instead, the window of recent reads is a lock-free ring, and history is split
+ * into stripes by key (each bounded separately and guarded by its own lock),
+ * such that concurrent readers rarely contend. As a result, history is only
+ * approximately ordered between concurrent reads.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class AdaptivePrefetcher<S> implements Content.Source<S> {
+	/**
+	 * Number of subsequent reads considered to be successors of a given read. This
+	 * must be a power of two.
+	 */
+	private static final int WINDOW = 8;
+	/**
+	 * Maximum number of stripes into which history is split. This must be a power
+	 * of two.
+	 */
+	private static final int STRIPES = 16;
+	/**
+	 * Maximum number of successors retained for any entry.
+	 */
+	private static final int SUCCESSORS = 16;
+
+	private final Prefetcher<S> prefetcher;
+	private final Content.Source<S> source;
+	/**
+	 * Number of times a successor must have been seen before it is prefetched.
+	 */
+	private final int threshold;
+	/**
+	 * Maximum number of keys prefetched from a single match.
+	 */
+	private final int matchLimit;
+	/**
+	 * Successor counts for recently read entries, split into stripes by key. Each
+	 * stripe is ordered by recency of access, and is guarded by its own lock.
+	 */
+	private final List<LinkedHashMap<Key<S, ?>, Map<Key<S, ?>, Integer>>> history;
+	/**
+	 * The most recently read entries, held in a ring such that the ith read is in
+	 * slot <code>i % WINDOW</code>. Consecutive reads of the same entry occupy
+	 * only one slot.
+	 */
+	private final AtomicReferenceArray<Key<S, ?>> recent;
+	/**
+	 * Number of reads recorded in the ring thus far.
+	 */
+	private final AtomicLong reads;
+
+	/**
+	 * Construct an adaptive prefetcher which prefetches successors seen at least
+	 * twice, does not prefetch on matches, and remembers the successors of up to
+	 * 4096 entries.
+	 *
+	 * @param prefetcher
+	 */
+	public AdaptivePrefetcher(Prefetcher<S> prefetcher) {
+		this(prefetcher, 2, 0, 4096);
+	}
+
+	/**
+	 * Construct an adaptive prefetcher.
+	 *
+	 * @param prefetcher Used to load entries in the background.
+	 * @param threshold  Number of times a successor must have been seen before it
+	 *                   is prefetched.
+	 * @param matchLimit Maximum number of keys prefetched from a single match, or
+	 *                   zero to disable prefetching on matches.
+	 * @param capacity   Maximum number of entries whose successors are remembered.
+	 */
+	public AdaptivePrefetcher(Prefetcher<S> prefetcher, int threshold, int matchLimit, int capacity) {
+		if (prefetcher == null) {
+			throw new IllegalArgumentException("Prefetcher is required");
+		} else if (threshold <= 0 || matchLimit < 0 || capacity <= 0) {
+			throw new IllegalArgumentException("invalid configuration");
+		}
+		this.prefetcher = prefetcher;
+		this.source = prefetcher.getSource();
+		this.threshold = threshold;
+		this.matchLimit = matchLimit;
+		// NOTE: the capacity is divided evenly between the stripes
+		int n = Math.min(STRIPES, Integer.highestOneBit(capacity));
+		int bound = (capacity + n - 1) / n;
+		this.history = new ArrayList<>(n);
+		for (int i = 0; i != n; ++i) {
+			this.history.add(new LinkedHashMap<>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key<S, ?>, Map<Key<S, ?>, Integer>> eldest) {
+					return size() > bound;
+				}
+			});
+		}
+		this.recent = new AtomicReferenceArray<>(WINDOW);
+		this.reads = new AtomicLong();
+	}
+
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		for (Key<S, ?> k : access(key)) {
+			prefetcher.prefetch(k);
+		}
+		return source.get(key);
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		return source.getAll(query);
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		List<Key<S, T>> keys = source.match(query);
+		if (matchLimit > 0) {
+			prefetcher.prefetch(keys.size() > matchLimit ? keys.subList(0, matchLimit) : keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Record that a given entry has been read, and determine which entries are
+	 * likely to be read next.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private List<Key<S, ?>> access(Key<S, ?> key) {
+		// Count this as a successor of the entries read before it. Since an entry
+		// may appear more than once in the window, each predecessor is counted at
+		// most once.
+		for (int i = 0; i != WINDOW; ++i) {
+			Key<S, ?> r = recent.get(i);
+			if (r != null && !r.equals(key) && !isDuplicate(r, i)) {
+				LinkedHashMap<Key<S, ?>, Map<Key<S, ?>, Integer>> stripe = stripe(r);
+				synchronized (stripe) {
+					Map<Key<S, ?>, Integer> successors = stripe.get(r);
+					if (successors == null) {
+						successors = new LinkedHashMap<>();
+						stripe.put(r, successors);
+					}
+					addSuccessor(successors, key);
+				}
+			}
+		}
+		// Add this entry to the window, unless it was also the last read
+		long n = reads.get();
+		if (n == 0 || !key.equals(recent.get((int) ((n - 1) & (WINDOW - 1))))) {
+			n = reads.getAndIncrement();
+			recent.set((int) (n & (WINDOW - 1)), key);
+		}
+		// Determine likely successors of this entry
+		ArrayList<Key<S, ?>> likely = new ArrayList<>();
+		LinkedHashMap<Key<S, ?>, Map<Key<S, ?>, Integer>> stripe = stripe(key);
+		synchronized (stripe) {
+			Map<Key<S, ?>, Integer> successors = stripe.get(key);
+			if (successors != null) {
+				for (Map.Entry<Key<S, ?>, Integer> e : successors.entrySet()) {
+					if (e.getValue() >= threshold) {
+						likely.add(e.getKey());
+					}
+				}
+			}
+		}
+		return likely;
+	}
+
+	/**
+	 * Determine whether a given entry also occupies an earlier slot of the window.
+	 *
+	 * @param key
+	 * @param slot
+	 * @return
+	 */
+	private boolean isDuplicate(Key<S, ?> key, int slot) {
+		for (int j = 0; j != slot; ++j) {
+			if (key.equals(recent.get(j))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the stripe of history holding a given entry.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private LinkedHashMap<Key<S, ?>, Map<Key<S, ?>, Integer>> stripe(Key<S, ?> key) {
+		int h = key.hashCode();
+		// Spread higher bits downwards, as for HashMap
+		return history.get((h ^ (h >>> 16)) & (history.size() - 1));
+	}
+
+	/**
+	 * Count one occurrence of a given successor. When a new successor arrives and
+	 * there is no room for it, existing counts are first halved (forgetting any
+	 * which drop to zero) and, if this is not enough, the least frequent is
+	 * evicted. Room is always made <i>before</i> inserting so that the new arrival
+	 * survives long enough to be seen again, and successors which are no longer
+	 * seen gradually decay rather than holding their place forever.
+	 *
+	 * @param successors
+	 * @param key
+	 */
+	private static <K> void addSuccessor(Map<K, Integer> successors, K key) {
+		Integer count = successors.get(key);
+		if (count != null) {
+			successors.put(key, count + 1);
+			return;
+		} else if (successors.size() >= SUCCESSORS) {
+			successors.replaceAll((k, c) -> c >> 1);
+			successors.values().removeIf(c -> c == 0);
+			if (successors.size() >= SUCCESSORS) {
+				evictLeastFrequent(successors);
+			}
+		}
+		successors.put(key, 1);
+	}
+
+	private static <K> void evictLeastFrequent(Map<K, Integer> successors) {
+		K victim = null;
+		int min = Integer.MAX_VALUE;
+		for (Map.Entry<K, Integer> e : successors.entrySet()) {
+			if (e.getValue() < min) {
+				victim = e.getKey();
+				min = e.getValue();
+			}
+		}
+		successors.remove(victim);
+	}
+
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+}
@@ -0,0 +1,553 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Records the dependencies between build tasks and the content they read and
+ * write. Each task is run against tracking wrappers for its sources and sinks
+ * (see <code>Task</code>), which record every key read (along with a
+ * fingerprint of the content read), every key matched by a query, and every key
+ * written. Once recorded, the graph can determine which tasks are stale given a
+ * set of changed keys. This considers not only the tasks which read a changed
+ * key directly, but also those which read outputs of stale tasks, and so on. The cost of this is
+ * proportional to the affected part of the graph, rather than its overall size.
+ * The graph can be saved to, and loaded from, a file such that it persists
+ * between builds.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class BuildGraph<S> {
+	/**
+	 * Hash function used for fingerprinting content.
+	 */
+	private final static String ALGORITHM = "SHA-256";
+
+	private final Key.Map<S, String> encdec;
+	/**
+	 * The recorded tasks, indexed by name.
+	 */
+	private final LinkedHashMap<String, Record> tasks;
+	/**
+	 * Maps each key to the names of the tasks which read (or matched) it.
+	 */
+	private final HashMap<Key<S, ?>, Set<String>> readers;
+	/**
+	 * Maps each key to the name of the task which wrote it.
+	 */
+	private final HashMap<Key<S, ?>, String> producers;
+
+	public BuildGraph(Key.Map<S, String> encdec) {
+		if (encdec == null) {
+			throw new IllegalArgumentException("Content encoder/decoder is required");
+		}
+		this.encdec = encdec;
+		this.tasks = new LinkedHashMap<>();
+		this.readers = new HashMap<>();
+		this.producers = new HashMap<>();
+	}
+
+	/**
+	 * Begin recording a given task. The task's dependencies are not added to the
+	 * graph until it is committed, at which point they replace any previously
+	 * recorded for a task of the same name. Since a saved graph holds one task
+	 * name per line, names cannot contain line breaks.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public Task begin(String name) {
+		if (name == null || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("invalid task name");
+		}
+		return new Task(name);
+	}
+
+	/**
+	 * Get the names of all tasks recorded in this graph.
+	 *
+	 * @return
+	 */
+	public synchronized Set<String> getTasks() {
+		return new LinkedHashSet<>(tasks.keySet());
+	}
+
+	/**
+	 * Get the keys read by a given task, along with the fingerprint of the content
+	 * read.
+	 *
+	 * @param task
+	 * @return
+	 */
+	public synchronized Map<Key<S, ?>, Long> getReads(String task) {
+		Record r = tasks.get(task);
+		return r == null ? null : new HashMap<>(r.reads);
+	}
+
+	/**
+	 * Get the keys matched by queries made by a given task, but whose content was
+	 * not read.
+	 *
+	 * @param task
+	 * @return
+	 */
+	public synchronized Set<Key<S, ?>> getMatches(String task) {
+		Record r = tasks.get(task);
+		return r == null ? null : new HashSet<>(r.matches);
+	}
+
+	/**
+	 * Get the keys written by a given task.
+	 *
+	 * @param task
+	 * @return
+	 */
+	public synchronized Set<Key<S, ?>> getWrites(String task) {
+		Record r = tasks.get(task);
+		return r == null ? null : new HashSet<>(r.writes);
+	}
+
+	/**
+	 * Remove a given task from this graph (e.g. because it no longer exists).
+	 *
+	 * @param task
+	 */
+	public synchronized void remove(String task) {
+		Record r = tasks.remove(task);
+		if (r != null) {
+			unlink(task, r);
+		}
+	}
+
+	/**
+	 * Determine the set of tasks which are stale given a set of changed keys. A
+	 * task is stale if it read or matched a changed key, wrote a changed key (e.g.
+	 * because its output was modified or deleted externally), or read a key
+	 * written by a stale task.
+	 *
+	 * @param changed
+	 * @return
+	 */
+	public synchronized Set<String> getStale(Collection<? extends Key<S, ?>> changed) {
+		LinkedHashSet<String> stale = new LinkedHashSet<>();
+		ArrayDeque<Key<S, ?>> worklist = new ArrayDeque<>(changed);
+		HashSet<Key<S, ?>> visited = new HashSet<>();
+		while (!worklist.isEmpty()) {
+			Key<S, ?> key = worklist.poll();
+			if (!visited.add(key)) {
+				continue;
+			}
+			Set<String> rs = readers.get(key);
+			if (rs != null) {
+				for (String task : rs) {
+					if (stale.add(task)) {
+						// Everything written by this task may now change as well
+						worklist.addAll(tasks.get(task).writes);
+					}
+				}
+			}
+			// The task producing this key must be rerun to restore it
+			String producer = producers.get(key);
+			if (producer != null && stale.add(producer)) {
+				worklist.addAll(tasks.get(producer).writes);
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * Determine which keys read by tasks in this graph have changed, by comparing
+	 * the fingerprint of their current content in a given source with that
+	 * recorded. Keys which were only matched are considered changed if they are
+	 * no longer present, and their content is not read. Keys written by recorded
+	 * tasks are not considered, since these are outputs of the build rather than
+	 * inputs. Unlike <code>getStale()</code>, the cost of this is proportional to
+	 * the number of inputs.
+	 *
+	 * @param source
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized Set<Key<S, ?>> getChanged(Content.Source<S> source) throws IOException {
+		LinkedHashSet<Key<S, ?>> changed = new LinkedHashSet<>();
+		HashMap<Key<S, ?>, Long> current = new HashMap<>();
+		for (Record r : tasks.values()) {
+			for (Map.Entry<Key<S, ?>, Long> e : r.reads.entrySet()) {
+				Key<S, ?> key = e.getKey();
+				if (producers.containsKey(key)) {
+					continue;
+				}
+				Long fingerprint = current.get(key);
+				if (fingerprint == null) {
+					fingerprint = fingerprint(source.get(key));
+					current.put(key, fingerprint);
+				}
+				if (!fingerprint.equals(e.getValue())) {
+					changed.add(key);
+				}
+			}
+		}
+		// Check matched keys are still present using a single query
+		HashSet<Key<S, ?>> matched = new HashSet<>();
+		for (Record r : tasks.values()) {
+			for (Key<S, ?> key : r.matches) {
+				if (!producers.containsKey(key)) {
+					matched.add(key);
+				}
+			}
+		}
+		if (!matched.isEmpty()) {
+			matched.removeAll(source.match(matched::contains));
+			changed.addAll(matched);
+		}
+		return changed;
+	}
+
+	/**
+	 * Write this graph to a given file. The file is first written to a temporary
+	 * file and then moved into place.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, Record> e : tasks.entrySet()) {
+				writer.write("task " + e.getKey());
+				writer.newLine();
+				for (Map.Entry<Key<S, ?>, Long> r : e.getValue().reads.entrySet()) {
+					writer.write("read " + Long.toHexString(r.getValue()) + " " + encdec.encode(r.getKey()));
+					writer.newLine();
+				}
+				for (Key<S, ?> m : e.getValue().matches) {
+					writer.write("match " + encdec.encode(m));
+					writer.newLine();
+				}
+				for (Key<S, ?> w : e.getValue().writes) {
+					writer.write("write " + encdec.encode(w));
+					writer.newLine();
+				}
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Read a graph from a given file, as written by <code>save()</code>. If the
+	 * file does not exist, then an empty graph is returned.
+	 *
+	 * @param <S>
+	 * @param encdec
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static <S> BuildGraph<S> load(Key.Map<S, String> encdec, File file) throws IOException {
+		BuildGraph<S> graph = new BuildGraph<>(encdec);
+		if (!file.exists()) {
+			return graph;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			String task = null;
+			BuildGraph<S>.Record record = null;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("task ")) {
+					if (task != null) {
+						graph.add(task, record);
+					}
+					task = line.substring(5);
+					record = graph.new Record();
+				} else if (record != null && line.startsWith("read ")) {
+					int split = line.indexOf(' ', 5);
+					if (split < 0) {
+						throw new IOException("invalid graph entry: " + line);
+					}
+					Key<S, ?> key = encdec.decode(line.substring(split + 1));
+					if (key != null) {
+						record.reads.put(key, Long.parseUnsignedLong(line.substring(5, split), 16));
+					}
+				} else if (record != null && line.startsWith("match ")) {
+					Key<S, ?> key = encdec.decode(line.substring(6));
+					if (key != null) {
+						record.matches.add(key);
+					}
+				} else if (record != null && line.startsWith("write ")) {
+					Key<S, ?> key = encdec.decode(line.substring(6));
+					if (key != null) {
+						record.writes.add(key);
+					}
+				} else {
+					throw new IOException("invalid graph entry: " + line);
+				}
+			}
+			if (task != null) {
+				graph.add(task, record);
+			}
+		}
+		return graph;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return tasks.keySet().toString();
+	}
+
+	/**
+	 * Add a record for a given task, replacing any existing record.
+	 *
+	 * @param task
+	 * @param record
+	 */
+	private synchronized void add(String task, Record record) {
+		Record old = tasks.put(task, record);
+		if (old != null) {
+			unlink(task, old);
+		}
+		for (Key<S, ?> key : record.reads.keySet()) {
+			readers.computeIfAbsent(key, k -> new HashSet<>()).add(task);
+		}
+		for (Key<S, ?> key : record.matches) {
+			readers.computeIfAbsent(key, k -> new HashSet<>()).add(task);
+		}
+		for (Key<S, ?> key : record.writes) {
+			producers.put(key, task);
+		}
+	}
+
+	/**
+	 * Remove the edges for a given task record from the reverse indices.
+	 *
+	 * @param task
+	 * @param record
+	 */
+	private void unlink(String task, Record record) {
+		for (Key<S, ?> key : record.reads.keySet()) {
+			unread(task, key);
+		}
+		for (Key<S, ?> key : record.matches) {
+			unread(task, key);
+		}
+		for (Key<S, ?> key : record.writes) {
+			if (task.equals(producers.get(key))) {
+				producers.remove(key);
+			}
+		}
+	}
+
+	private void unread(String task, Key<S, ?> key) {
+		Set<String> rs = readers.get(key);
+		if (rs != null) {
+			rs.remove(task);
+			if (rs.isEmpty()) {
+				readers.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Compute the fingerprint of a given piece of content from its serialised
+	 * form. Missing content has a fingerprint of zero.
+	 *
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static long fingerprint(Content value) throws IOException {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+			try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+				Content.Type ct = value.contentType();
+				ct.write(out, value);
+			}
+			byte[] bytes = digest.digest();
+			long fingerprint = 0;
+			for (int i = 0; i != 8; ++i) {
+				fingerprint = (fingerprint << 8) | (bytes[i] & 0xFF);
+			}
+			return fingerprint;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The dependencies recorded for a single task.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class Record {
+		private final HashMap<Key<S, ?>, Long> reads = new HashMap<>();
+		/**
+		 * Keys matched by a query but whose content was not read. These depend only
+		 * on the presence of the key.
+		 */
+		private final LinkedHashSet<Key<S, ?>> matches = new LinkedHashSet<>();
+		private final LinkedHashSet<Key<S, ?>> writes = new LinkedHashSet<>();
+	}
+
+	/**
+	 * Records the dependencies of a single build task. A task provides wrappers
+	 * for the sources it reads from and the sinks it writes to, which record every
+	 * key read and written. Observe that <code>getAll()</code> is recorded as a
+	 * read of every key it matched, whilst <code>match()</code> records only that
+	 * each matched key was present (i.e. without loading its content). Thus, a key
+	 * added later which would have matched is not considered a change.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public class Task {
+		private final String name;
+		private final ConcurrentHashMap<Key<S, ?>, Long> reads;
+		private final Set<Key<S, ?>> matches;
+		private final Set<Key<S, ?>> writes;
+
+		private Task(String name) {
+			this.name = name;
+			this.reads = new ConcurrentHashMap<>();
+			this.matches = ConcurrentHashMap.newKeySet();
+			this.writes = ConcurrentHashMap.newKeySet();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Wrap a given source such that all reads through it are recorded against
+		 * this task.
+		 *
+		 * @param source
+		 * @return
+		 */
+		public Content.Source<S> source(Content.Source<S> source) {
+			return new Content.Source<S>() {
+				@Override
+				public <T extends Content> T get(Key<S, T> key) throws IOException {
+					T value = source.get(key);
+					read(key, value);
+					return value;
+				}
+
+				@Override
+				public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+					List<Key<S, T>> keys = source.match(query);
+					ArrayList<T> rs = new ArrayList<>();
+					for (Key<S, T> key : keys) {
+						T value = source.get(key);
+						read(key, value);
+						rs.add(value);
+					}
+					return rs;
+				}
+
+				@Override
+				public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+					List<Key<S, T>> keys = source.match(query);
+					matches.addAll(keys);
+					return keys;
+				}
+			};
+		}
+
+		/**
+		 * Wrap a given sink such that all writes through it are recorded against this
+		 * task.
+		 *
+		 * @param sink
+		 * @return
+		 */
+		public Content.Sink<S> sink(Content.Sink<S> sink) {
+			return new Content.Sink<S>() {
+				@Override
+				public <T extends Content> void put(Key<S, T> key, T value) {
+					sink.put(key, value);
+					writes.add(key);
+				}
+
+				@Override
+				public void remove(Key<S, ?> key) {
+					sink.remove(key);
+					writes.add(key);
+				}
+			};
+		}
+
+		/**
+		 * Record that this task read a given key directly.
+		 *
+		 * @param key
+		 * @param value
+		 * @throws IOException
+		 */
+		public void read(Key<S, ?> key, Content value) throws IOException {
+			if (!reads.containsKey(key)) {
+				reads.put(key, fingerprint(value));
+			}
+		}
+
+		/**
+		 * Add the dependencies recorded for this task to the graph, replacing any
+		 * previously recorded.
+		 */
+		public void commit() {
+			Record r = new Record();
+			r.reads.putAll(reads);
+			for (Key<S, ?> key : matches) {
+				// Reading a key subsumes matching it
+				if (!reads.containsKey(key)) {
+					r.matches.add(key);
+				}
+			}
+			r.writes.addAll(writes);
+			add(name, r);
+		}
+	}
+}
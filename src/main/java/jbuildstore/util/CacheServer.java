@@ -0,0 +1,139 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal in-process implementation of the remote cache used by
+ * <code>RemoteCacheStore</code>, built on the JDK's <code>HttpServer</code>.
+ * Blobs are held in memory, and are retrieved and stored by <code>GET</code>
+ * and <code>PUT</code> requests against <code>/{hash}</code>. This is
+ * intended for testing and for single node use, rather than as a production
+ * cache.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class CacheServer implements AutoCloseable {
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ConcurrentHashMap<String, byte[]> blobs;
+
+	/**
+	 * Start a cache server on a given port of the loopback interface. A port of
+	 * zero selects any free port.
+	 *
+	 * @param port
+	 * @throws IOException
+	 */
+	public CacheServer(int port) throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 4);
+	}
+
+	/**
+	 * Start a cache server on a given address, with a given number of threads for
+	 * handling requests.
+	 *
+	 * @param address
+	 * @param threads
+	 * @throws IOException
+	 */
+	public CacheServer(InetSocketAddress address, int threads) throws IOException {
+		this.blobs = new ConcurrentHashMap<>();
+		this.executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "jbuildstore-cache-server");
+			t.setDaemon(true);
+			return t;
+		});
+		this.server = HttpServer.create(address, 0);
+		this.server.createContext("/", this::handle);
+		this.server.setExecutor(executor);
+		this.server.start();
+	}
+
+	/**
+	 * Get the URI at which this server can be reached.
+	 *
+	 * @return
+	 */
+	public URI getURI() {
+		InetSocketAddress address = server.getAddress();
+		return URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/");
+	}
+
+	/**
+	 * Get the number of blobs held by this server.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return blobs.size();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String hash = exchange.getRequestURI().getPath().substring(1);
+			if (hash.isEmpty() || hash.indexOf('/') >= 0) {
+				exchange.sendResponseHeaders(400, -1);
+				return;
+			}
+			switch (exchange.getRequestMethod()) {
+			case "GET": {
+				byte[] bytes = blobs.get(hash);
+				if (bytes == null) {
+					exchange.sendResponseHeaders(404, -1);
+				} else {
+					exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(bytes);
+					}
+				}
+				break;
+			}
+			case "HEAD":
+				exchange.sendResponseHeaders(blobs.containsKey(hash) ? 200 : 404, -1);
+				break;
+			case "PUT": {
+				try (InputStream in = exchange.getRequestBody()) {
+					blobs.put(hash, in.readAllBytes());
+				}
+				exchange.sendResponseHeaders(201, -1);
+				break;
+			}
+			default:
+				exchange.sendResponseHeaders(405, -1);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+}
@@ -0,0 +1,323 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jbuildstore.core.Key;
+
+/**
+ * Publishes the changes made to a store, such that consumers can react to them
+ * incrementally rather than by repeatedly querying the store. Changes are
+ * delivered asynchronously and, hence, publishing a change never blocks a
+ * writer. Instead, each subscriber has a bounded buffer of undelivered changes
+ * which holds at most one change per key. Thus, a burst of changes to the same
+ * key is coalesced into its most recent change. Should the buffer fill up
+ * (because the subscriber is not keeping up), then its contents are discarded
+ * and an <code>OVERFLOW</code> change is delivered in their place. On receiving
+ * this, a subscriber should assume anything may have changed (e.g. and rescan
+ * the store).
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class ChangePublisher<S> implements Flow.Publisher<ChangePublisher.Change<S>>, AutoCloseable {
+	/**
+	 * Default maximum number of undelivered changes per subscriber.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The kinds of change which can be published.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public enum Kind {
+		/**
+		 * An entry was written.
+		 */
+		PUT,
+		/**
+		 * An entry was removed.
+		 */
+		REMOVE,
+		/**
+		 * An entry was written and has since been flushed to disk.
+		 */
+		FLUSHED,
+		/**
+		 * An entry was changed by something other than the store itself (e.g. another
+		 * process writing the same directory).
+		 */
+		MODIFIED,
+		/**
+		 * Changes were discarded because the subscriber was not keeping up. This has no
+		 * key.
+		 */
+		OVERFLOW
+	}
+
+	/**
+	 * A single change to a store.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	public static final class Change<S> {
+		private final Kind kind;
+		private final Key<S, ?> key;
+
+		public Change(Kind kind, Key<S, ?> key) {
+			this.kind = kind;
+			this.key = key;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * Get the key of the changed entry, or <code>null</code> for an overflow.
+		 *
+		 * @return
+		 */
+		public Key<S, ?> getKey() {
+			return key;
+		}
+
+		@Override
+		public String toString() {
+			return key == null ? kind.toString() : kind + " " + key;
+		}
+	}
+
+	private final Executor executor;
+	private final int capacity;
+	private final CopyOnWriteArrayList<Subscription> subscriptions;
+	private volatile boolean closed;
+
+	public ChangePublisher() {
+		this(ForkJoinPool.commonPool(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Construct a publisher which delivers changes using a given executor, and
+	 * buffers at most a given number of changes per subscriber.
+	 *
+	 * @param executor
+	 * @param capacity
+	 */
+	public ChangePublisher(Executor executor, int capacity) {
+		if (executor == null) {
+			throw new IllegalArgumentException("Executor is required");
+		} else if (capacity <= 0) {
+			throw new IllegalArgumentException("invalid capacity");
+		}
+		this.executor = executor;
+		this.capacity = capacity;
+		this.subscriptions = new CopyOnWriteArrayList<>();
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Change<S>> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException();
+		}
+		Subscription s = new Subscription(subscriber);
+		subscriber.onSubscribe(s);
+		if (closed) {
+			s.complete();
+		} else {
+			subscriptions.add(s);
+		}
+	}
+
+	/**
+	 * Publish a change to all current subscribers. This does nothing when there
+	 * are no subscribers.
+	 *
+	 * @param kind
+	 * @param key
+	 */
+	public void publish(Kind kind, Key<S, ?> key) {
+		if (!subscriptions.isEmpty()) {
+			Change<S> change = new Change<>(kind, key);
+			for (Subscription s : subscriptions) {
+				s.offer(change);
+			}
+		}
+	}
+
+	/**
+	 * Determine whether there are any subscribers.
+	 *
+	 * @return
+	 */
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Complete all subscriptions, once their remaining changes are delivered. No
+	 * further changes are published after this.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Subscription s : subscriptions) {
+			s.complete();
+		}
+		subscriptions.clear();
+	}
+
+	private class Subscription implements Flow.Subscription, Runnable {
+		private final Flow.Subscriber<? super Change<S>> subscriber;
+		/**
+		 * Undelivered changes, indexed by key.
+		 */
+		private final LinkedHashMap<Key<S, ?>, Change<S>> pending = new LinkedHashMap<>();
+		/**
+		 * Number of times delivery has been requested but not yet performed. This
+		 * ensures at most one thread delivers changes at any time.
+		 */
+		private final AtomicInteger scheduled = new AtomicInteger();
+		private boolean overflow;
+		private long demand;
+		private boolean completed;
+		private boolean cancelled;
+		private boolean done;
+		private IllegalArgumentException error;
+
+		public Subscription(Flow.Subscriber<? super Change<S>> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		public void offer(Change<S> change) {
+			synchronized (this) {
+				if (cancelled || completed) {
+					return;
+				} else if (!pending.containsKey(change.key) && pending.size() >= capacity) {
+					pending.clear();
+					overflow = true;
+				}
+				// Remove first so the change is delivered in order of its latest occurrence
+				pending.remove(change.key);
+				pending.put(change.key, change);
+			}
+			schedule();
+		}
+
+		public void complete() {
+			synchronized (this) {
+				completed = true;
+			}
+			schedule();
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (this) {
+				if (n <= 0) {
+					error = new IllegalArgumentException("non-positive request");
+				} else {
+					long d = demand + n;
+					// Saturate on overflow
+					demand = d < 0 ? Long.MAX_VALUE : d;
+				}
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				pending.clear();
+			}
+			subscriptions.remove(this);
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				drain();
+				missed = scheduled.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void schedule() {
+			if (scheduled.getAndIncrement() == 0) {
+				executor.execute(this);
+			}
+		}
+
+		private void drain() {
+			while (true) {
+				Change<S> next;
+				IllegalArgumentException failure = null;
+				synchronized (this) {
+					if (cancelled || done) {
+						return;
+					} else if (error != null) {
+						failure = error;
+						cancelled = true;
+						pending.clear();
+						next = null;
+					} else if (overflow && demand > 0) {
+						overflow = false;
+						next = new Change<>(Kind.OVERFLOW, null);
+					} else if (!overflow && demand > 0 && !pending.isEmpty()) {
+						Iterator<Change<S>> iter = pending.values().iterator();
+						next = iter.next();
+						iter.remove();
+					} else if (completed && !overflow && pending.isEmpty()) {
+						done = true;
+						next = null;
+					} else {
+						return;
+					}
+					if (next != null) {
+						demand = demand - 1;
+					}
+				}
+				if (failure != null) {
+					subscriptions.remove(this);
+					subscriber.onError(failure);
+					return;
+				}
+				try {
+					if (next == null) {
+						subscriber.onComplete();
+						return;
+					}
+					subscriber.onNext(next);
+				} catch (Throwable t) {
+					// Subscribers which throw are cancelled
+					cancel();
+					return;
+				}
+			}
+		}
+	}
+}
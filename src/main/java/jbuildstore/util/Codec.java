@@ -0,0 +1,725 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import jbuildstore.core.Content;
+
+/**
+ * A composable binary encoding for values of a given type, intended for
+ * building <code>Content.Type</code> implementations without the overhead of
+ * <code>ObjectInputStream</code> / <code>ObjectOutputStream</code> (i.e.
+ * stream headers, block data framing, etc). Integers are encoded as variable
+ * length quantities, whilst strings are written once per entry and thereafter
+ * referred to by index. For example:
+ *
+ * <pre>
+ * Codec&lt;Point&gt; POINT = Codec.record(Codec.INT, p -&gt; p.x, Codec.INT, p -&gt; p.y, Point::new);
+ *
+ * Content.Type&lt;Point&gt; ContentType = new Codec.Type&lt;&gt;("point", 1, POINT);
+ * </pre>
+ *
+ * @author David J. Pearce
+ *
+ * @param <T>
+ */
+public interface Codec<T> {
+	/**
+	 * Write a given value to an encoder.
+	 *
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	public void encode(Encoder out, T value) throws IOException;
+
+	/**
+	 * Read a value from a decoder.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public T decode(Decoder in) throws IOException;
+
+	/**
+	 * Construct a codec for a different type by converting values to and from
+	 * this type.
+	 *
+	 * @param <U>
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public default <U> Codec<U> map(Function<T, U> from, Function<U, T> to) {
+		final Codec<T> self = this;
+		return of((out, v) -> self.encode(out, to.apply(v)), in -> from.apply(self.decode(in)));
+	}
+
+	/**
+	 * Construct a codec from a given writer and reader.
+	 *
+	 * @param <T>
+	 * @param writer
+	 * @param reader
+	 * @return
+	 */
+	public static <T> Codec<T> of(Writer<T> writer, Reader<T> reader) {
+		if (writer == null || reader == null) {
+			throw new IllegalArgumentException("writer and reader are required");
+		}
+		return new Codec<T>() {
+			@Override
+			public void encode(Encoder out, T value) throws IOException {
+				writer.write(out, value);
+			}
+
+			@Override
+			public T decode(Decoder in) throws IOException {
+				return reader.read(in);
+			}
+		};
+	}
+
+	/**
+	 * Construct a codec for values made up of two fields, which are encoded one
+	 * after the other. Values are decoded by reading each field in turn, and then
+	 * passing them to a given constructor.
+	 *
+	 * @param <T>
+	 * @param <A>
+	 * @param <B>
+	 * @param a
+	 * @param getA
+	 * @param b
+	 * @param getB
+	 * @param constructor
+	 * @return
+	 */
+	public static <T, A, B> Codec<T> record(Codec<A> a, Function<T, A> getA, Codec<B> b, Function<T, B> getB,
+			BiFunction<A, B, T> constructor) {
+		return of((out, v) -> {
+			a.encode(out, getA.apply(v));
+			b.encode(out, getB.apply(v));
+		}, in -> {
+			A first = a.decode(in);
+			B second = b.decode(in);
+			return constructor.apply(first, second);
+		});
+	}
+
+	/**
+	 * Construct a codec for values made up of three fields, as for the two field
+	 * case.
+	 *
+	 * @param <T>
+	 * @param <A>
+	 * @param <B>
+	 * @param <C>
+	 * @param a
+	 * @param getA
+	 * @param b
+	 * @param getB
+	 * @param c
+	 * @param getC
+	 * @param constructor
+	 * @return
+	 */
+	public static <T, A, B, C> Codec<T> record(Codec<A> a, Function<T, A> getA, Codec<B> b, Function<T, B> getB,
+			Codec<C> c, Function<T, C> getC, Function3<A, B, C, T> constructor) {
+		return of((out, v) -> {
+			a.encode(out, getA.apply(v));
+			b.encode(out, getB.apply(v));
+			c.encode(out, getC.apply(v));
+		}, in -> {
+			A first = a.decode(in);
+			B second = b.decode(in);
+			C third = c.decode(in);
+			return constructor.apply(first, second, third);
+		});
+	}
+
+	/**
+	 * Encodes signed integers as zig-zag variable length quantities.
+	 */
+	public static final Codec<Integer> INT = of(Encoder::writeInt, Decoder::readInt);
+	/**
+	 * Encodes signed longs as zig-zag variable length quantities.
+	 */
+	public static final Codec<Long> LONG = of(Encoder::writeLong, Decoder::readLong);
+	/**
+	 * Encodes booleans as a single byte.
+	 */
+	public static final Codec<Boolean> BOOLEAN = of(Encoder::writeBoolean, Decoder::readBoolean);
+	/**
+	 * Encodes strings via the string table.
+	 */
+	public static final Codec<String> STRING = of(Encoder::writeString, Decoder::readString);
+	/**
+	 * Encodes byte arrays prefixed by their length.
+	 */
+	public static final Codec<byte[]> BYTES = of(Encoder::writeBytes, Decoder::readBytes);
+
+	/**
+	 * Construct a codec for lists of values, each encoded with a given codec.
+	 *
+	 * @param <T>
+	 * @param element
+	 * @return
+	 */
+	public static <T> Codec<List<T>> list(Codec<T> element) {
+		return of((out, vs) -> {
+			out.writeUnsigned(vs.size());
+			for (int i = 0; i != vs.size(); ++i) {
+				element.encode(out, vs.get(i));
+			}
+		}, in -> {
+			int n = in.readLength();
+			ArrayList<T> vs = new ArrayList<>(n);
+			for (int i = 0; i != n; ++i) {
+				vs.add(element.decode(in));
+			}
+			return vs;
+		});
+	}
+
+	/**
+	 * Construct a codec for values which may be <code>null</code>.
+	 *
+	 * @param <T>
+	 * @param codec
+	 * @return
+	 */
+	public static <T> Codec<T> nullable(Codec<T> codec) {
+		return of((out, v) -> {
+			out.writeBoolean(v != null);
+			if (v != null) {
+				codec.encode(out, v);
+			}
+		}, in -> in.readBoolean() ? codec.decode(in) : null);
+	}
+
+	/**
+	 * A codec for a type with several distinct subclasses (e.g. the nodes of an
+	 * abstract syntax tree), where each value is prefixed by a tag identifying its
+	 * subclass. Tags should be allocated once and never reused, as they form part
+	 * of the encoding. Since codecs are held in an array indexed by tag, tags
+	 * should be allocated densely from zero, and are limited to
+	 * <code>MAX_TAG</code>.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <T>
+	 */
+	public static class Union<T> implements Codec<T> {
+		/**
+		 * The largest permitted tag.
+		 */
+		public static final int MAX_TAG = 1023;
+
+		private final HashMap<Class<?>, Integer> tags = new HashMap<>();
+		private final ArrayList<Codec<? extends T>> codecs = new ArrayList<>();
+
+		/**
+		 * Register the codec for a given subclass under a given tag.
+		 *
+		 * @param <U>
+		 * @param tag
+		 * @param kind
+		 * @param codec
+		 * @return
+		 */
+		public <U extends T> Union<T> add(int tag, Class<U> kind, Codec<U> codec) {
+			if (tag < 0 || tag > MAX_TAG) {
+				throw new IllegalArgumentException("invalid tag " + tag);
+			} else if (tags.containsKey(kind) || (tag < codecs.size() && codecs.get(tag) != null)) {
+				throw new IllegalArgumentException("duplicate registration for " + kind.getName());
+			}
+			while (codecs.size() <= tag) {
+				codecs.add(null);
+			}
+			tags.put(kind, tag);
+			codecs.set(tag, codec);
+			return this;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void encode(Encoder out, T value) throws IOException {
+			Integer tag = tags.get(value.getClass());
+			if (tag == null) {
+				throw new IllegalArgumentException("unregistered class " + value.getClass().getName());
+			}
+			out.writeUnsigned(tag);
+			((Codec<T>) codecs.get(tag)).encode(out, value);
+		}
+
+		@Override
+		public T decode(Decoder in) throws IOException {
+			int tag = in.readUnsigned();
+			// NOTE: a corrupt five byte varint can decode as negative
+			Codec<? extends T> codec = (tag >= 0 && tag < codecs.size()) ? codecs.get(tag) : null;
+			if (codec == null) {
+				throw new IOException("unknown tag " + tag);
+			}
+			return codec.decode(in);
+		}
+	}
+
+	/**
+	 * A content type whose values are encoded with a given codec. Each entry is
+	 * prefixed by a schema version, which allows decoders for older versions to be
+	 * retained (via <code>support()</code>) as the encoding evolves. Buffers used
+	 * for reading and writing are reused between calls on the same thread. A
+	 * buffer is taken from its thread whilst in use, such that a nested call (e.g.
+	 * a codec which itself serialises some content) allocates a fresh one rather
+	 * than overwriting it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <T>
+	 */
+	public static class Type<T extends Content> implements Content.Type<T> {
+		/**
+		 * Buffers larger than this are not retained for reuse, to avoid holding onto
+		 * memory after one large entry.
+		 */
+		private static final int MAX_RETAINED = 1024 * 1024;
+		/**
+		 * The buffers available for reuse on each thread, or <code>null</code> if none
+		 * (e.g. because it is currently in use).
+		 */
+		private static final ThreadLocal<Encoder> ENCODERS = new ThreadLocal<>();
+		private static final ThreadLocal<Decoder> DECODERS = new ThreadLocal<>();
+
+		private final String suffix;
+		private final int version;
+		private final HashMap<Integer, Codec<T>> versions = new HashMap<>();
+
+		public Type(String suffix, int version, Codec<T> codec) {
+			if (suffix == null) {
+				throw new IllegalArgumentException("suffix is required");
+			} else if (version < 0) {
+				throw new IllegalArgumentException("invalid version " + version);
+			} else if (codec == null) {
+				throw new IllegalArgumentException("codec is required");
+			}
+			this.suffix = suffix;
+			this.version = version;
+			this.versions.put(version, codec);
+		}
+
+		/**
+		 * Register a decoder for entries written with an older schema version.
+		 *
+		 * @param version
+		 * @param codec
+		 * @return
+		 */
+		public Type<T> support(int version, Codec<T> codec) {
+			if (versions.containsKey(version)) {
+				throw new IllegalArgumentException("duplicate version " + version);
+			} else if (version < 0 || codec == null) {
+				throw new IllegalArgumentException("invalid version " + version);
+			}
+			versions.put(version, codec);
+			return this;
+		}
+
+		/**
+		 * Get the schema version with which entries are written.
+		 *
+		 * @return
+		 */
+		public int getVersion() {
+			return version;
+		}
+
+		@Override
+		public T read(InputStream input) throws IOException {
+			Decoder in = DECODERS.get();
+			if (in == null) {
+				in = new Decoder();
+			} else {
+				DECODERS.set(null);
+			}
+			try {
+				in.fill(input);
+				int v = in.readUnsigned();
+				Codec<T> codec = versions.get(v);
+				if (codec == null) {
+					throw new IOException("unsupported version " + v + " for " + suffix);
+				}
+				T value = codec.decode(in);
+				if (in.remaining() != 0) {
+					throw new IOException("trailing bytes after " + suffix);
+				}
+				return value;
+			} finally {
+				in.reset(MAX_RETAINED);
+				DECODERS.set(in);
+			}
+		}
+
+		@Override
+		public void write(OutputStream output, T value) throws IOException {
+			Encoder out = ENCODERS.get();
+			if (out == null) {
+				out = new Encoder();
+			} else {
+				ENCODERS.set(null);
+			}
+			try {
+				out.writeUnsigned(version);
+				versions.get(version).encode(out, value);
+				out.writeTo(output);
+			} finally {
+				out.reset(MAX_RETAINED);
+				ENCODERS.set(out);
+			}
+		}
+
+		@Override
+		public String suffix() {
+			return suffix;
+		}
+	}
+
+	/**
+	 * Accumulates an encoded value in a growable byte array. Strings written are
+	 * recorded in a table, such that subsequent occurrences are written as an index
+	 * into it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Encoder {
+		private static final int INITIAL = 256;
+		private byte[] bytes = new byte[INITIAL];
+		private int length;
+		private final HashMap<String, Integer> strings = new HashMap<>();
+
+		public void writeByte(int b) {
+			ensure(1);
+			bytes[length++] = (byte) b;
+		}
+
+		public void writeBoolean(boolean b) {
+			writeByte(b ? 1 : 0);
+		}
+
+		/**
+		 * Write a non-negative integer as a variable length quantity.
+		 *
+		 * @param v
+		 */
+		public void writeUnsigned(int v) {
+			ensure(5);
+			while ((v & ~0x7F) != 0) {
+				bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			bytes[length++] = (byte) v;
+		}
+
+		/**
+		 * Write a signed integer, such that small magnitudes use few bytes.
+		 *
+		 * @param v
+		 */
+		public void writeInt(int v) {
+			writeUnsigned((v << 1) ^ (v >> 31));
+		}
+
+		public void writeLong(long v) {
+			v = (v << 1) ^ (v >> 63);
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				bytes[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			bytes[length++] = (byte) v;
+		}
+
+		public void writeBytes(byte[] bs) {
+			writeUnsigned(bs.length);
+			ensure(bs.length);
+			System.arraycopy(bs, 0, bytes, length, bs.length);
+			length += bs.length;
+		}
+
+		/**
+		 * Write a string. The first occurrence of a string is written as
+		 * <code>0</code> followed by its UTF-8 encoding, whilst subsequent occurrences
+		 * are written as its (one-based) index in the string table.
+		 *
+		 * @param s
+		 */
+		public void writeString(String s) {
+			Integer index = strings.get(s);
+			if (index != null) {
+				writeUnsigned(index);
+			} else {
+				strings.put(s, strings.size() + 1);
+				writeUnsigned(0);
+				writeUtf8(s);
+			}
+		}
+
+		/**
+		 * Get the number of bytes written so far.
+		 *
+		 * @return
+		 */
+		public int size() {
+			return length;
+		}
+
+		/**
+		 * Get a copy of the bytes written so far.
+		 *
+		 * @return
+		 */
+		public byte[] toByteArray() {
+			return Arrays.copyOf(bytes, length);
+		}
+
+		public void writeTo(OutputStream output) throws IOException {
+			output.write(bytes, 0, length);
+		}
+
+		/**
+		 * Reset this encoder so it can be reused, discarding its buffer if it has
+		 * grown beyond a given size.
+		 *
+		 * @param retain
+		 */
+		public void reset(int retain) {
+			length = 0;
+			strings.clear();
+			if (bytes.length > retain) {
+				bytes = new byte[INITIAL];
+			}
+		}
+
+		private void writeUtf8(String s) {
+			final int n = s.length();
+			// Fast path for short ASCII strings (e.g. identifiers), whose length fits in
+			// one byte and whose characters map directly to bytes.
+			if (n < 0x80) {
+				ensure(n + 1);
+				int start = length;
+				bytes[length++] = (byte) n;
+				for (int i = 0; i != n; ++i) {
+					char c = s.charAt(i);
+					if (c >= 0x80) {
+						length = start;
+						writeBytes(s.getBytes(StandardCharsets.UTF_8));
+						return;
+					}
+					bytes[length++] = (byte) c;
+				}
+			} else {
+				writeBytes(s.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		private void ensure(int n) {
+			if (length + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+			}
+		}
+	}
+
+	/**
+	 * Reads an encoded value from a byte array.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Decoder {
+		private static final byte[] EMPTY = new byte[0];
+		private byte[] bytes;
+		private int position;
+		private int limit;
+		private final ArrayList<String> strings = new ArrayList<>();
+
+		public Decoder() {
+			this(EMPTY);
+		}
+
+		public Decoder(byte[] bytes) {
+			this.bytes = bytes;
+			this.limit = bytes.length;
+		}
+
+		public int readByte() throws IOException {
+			if (position >= limit) {
+				throw new IOException("unexpected end of input");
+			}
+			return bytes[position++] & 0xFF;
+		}
+
+		public boolean readBoolean() throws IOException {
+			return readByte() != 0;
+		}
+
+		public int readUnsigned() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IOException("malformed variable length integer");
+		}
+
+		public int readInt() throws IOException {
+			int v = readUnsigned();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		public long readLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 70; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return (v >>> 1) ^ -(v & 1);
+				}
+			}
+			throw new IOException("malformed variable length integer");
+		}
+
+		public byte[] readBytes() throws IOException {
+			int n = readLength();
+			byte[] bs = Arrays.copyOfRange(bytes, position, position + n);
+			position += n;
+			return bs;
+		}
+
+		public String readString() throws IOException {
+			int index = readUnsigned();
+			if (index == 0) {
+				int n = readLength();
+				String s = new String(bytes, position, n, StandardCharsets.UTF_8);
+				position += n;
+				strings.add(s);
+				return s;
+			} else if (index < 0 || index > strings.size()) {
+				throw new IOException("invalid string index " + index);
+			} else {
+				return strings.get(index - 1);
+			}
+		}
+
+		/**
+		 * Read a length, checking it does not exceed the remaining input (which
+		 * protects against allocating for corrupted lengths).
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		public int readLength() throws IOException {
+			int n = readUnsigned();
+			if (n < 0 || n > remaining()) {
+				throw new IOException("invalid length " + n);
+			}
+			return n;
+		}
+
+		/**
+		 * Get the number of bytes remaining to be read.
+		 *
+		 * @return
+		 */
+		public int remaining() {
+			return limit - position;
+		}
+
+		/**
+		 * Replace the contents of this decoder with all remaining bytes from a given
+		 * stream, reusing the existing buffer where possible.
+		 *
+		 * @param input
+		 * @throws IOException
+		 */
+		void fill(InputStream input) throws IOException {
+			position = 0;
+			limit = 0;
+			strings.clear();
+			if (bytes.length == 0) {
+				bytes = new byte[4096];
+			}
+			int n;
+			while ((n = input.read(bytes, limit, bytes.length - limit)) != -1) {
+				limit += n;
+				if (limit == bytes.length) {
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+			}
+		}
+
+		void reset(int retain) {
+			position = 0;
+			limit = 0;
+			strings.clear();
+			if (bytes.length > retain) {
+				bytes = EMPTY;
+			}
+		}
+	}
+
+	/**
+	 * Writes a value to an encoder.
+	 *
+	 * @param <T>
+	 */
+	public interface Writer<T> {
+		public void write(Encoder out, T value) throws IOException;
+	}
+
+	/**
+	 * Reads a value from a decoder.
+	 *
+	 * @param <T>
+	 */
+	public interface Reader<T> {
+		public T read(Decoder in) throws IOException;
+	}
+
+	/**
+	 * Constructs a value from three fields.
+	 *
+	 * @param <A>
+	 * @param <B>
+	 * @param <C>
+	 * @param <T>
+	 */
+	public interface Function3<A, B, C, T> {
+		public T apply(A a, B b, C c);
+	}
+}
@@ -0,0 +1,234 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Describes a policy for transparently compressing entries written by a store
+ * (see <code>DirectoryStore.setCompression()</code>). An entry is compressed
+ * when its content type is selected by the policy and its serialised form is at
+ * least a given size, and compressing it actually reduces its size. Every entry
+ * written through a policy begins with a short header, which is either
+ * <code>MAGIC</code> (followed by a <code>Deflater</code> stream) or
+ * <code>RAW</code> (followed by the uncompressed entry). Since an entry written
+ * without a policy can begin with anything, a header cannot be used to guess
+ * whether an entry was written through one. Instead, stores must record this
+ * themselves (e.g. a directory store marks directories whose entries are
+ * written through a policy). The policy also records the compression ratio
+ * achieved and the time spent compressing and decompressing, such that the
+ * trade-off between CPU and I/O can be assessed.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Compression {
+	/**
+	 * Header identifying a compressed entry.
+	 */
+	public static final byte[] MAGIC = { 'J', 'B', 'S', 'Z' };
+	/**
+	 * Header identifying an uncompressed entry.
+	 */
+	public static final byte[] RAW = { 'J', 'B', 'S', 'R' };
+
+	private final int level;
+	private final int threshold;
+	/**
+	 * Content types to compress, or <code>null</code> if all types should be
+	 * compressed.
+	 */
+	private final Set<Content.Type<?>> types;
+
+	private final LongAdder compressed = new LongAdder();
+	private final LongAdder uncompressedBytes = new LongAdder();
+	private final LongAdder compressedBytes = new LongAdder();
+	private final LongAdder compressNanos = new LongAdder();
+	private final LongAdder decompressNanos = new LongAdder();
+
+	/**
+	 * Construct a policy which compresses entries of any content type whose
+	 * serialised form is at least a given number of bytes.
+	 *
+	 * @param level     Compression level (see <code>Deflater</code>).
+	 * @param threshold Minimum size (in bytes) of entries to compress.
+	 */
+	public Compression(int level, int threshold) {
+		this(level, threshold, (Content.Type<?>[]) null);
+	}
+
+	/**
+	 * Construct a policy which compresses entries of the given content types whose
+	 * serialised form is at least a given number of bytes.
+	 *
+	 * @param level     Compression level (see <code>Deflater</code>).
+	 * @param threshold Minimum size (in bytes) of entries to compress.
+	 * @param types     Content types to compress.
+	 */
+	public Compression(int level, int threshold, Content.Type<?>... types) {
+		if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("invalid compression level");
+		} else if (threshold < 0) {
+			throw new IllegalArgumentException("invalid threshold");
+		}
+		this.level = level;
+		this.threshold = threshold;
+		this.types = types == null ? null : Collections.unmodifiableSet(new HashSet<>(Arrays.asList(types)));
+	}
+
+	/**
+	 * Write the content for a given key to an output stream, compressing it if this
+	 * policy applies.
+	 *
+	 * @param key
+	 * @param output
+	 * @param value
+	 * @throws IOException
+	 */
+	public void write(Key<?, ?> key, OutputStream output, Content value) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		StoreEvents.write(key, bout, value);
+		write(key, output, bout.toByteArray());
+	}
+
+	/**
+	 * Write the serialised content for a given key to an output stream,
+	 * compressing it if this policy applies.
+	 *
+	 * @param key
+	 * @param output
+	 * @param bytes
+	 * @throws IOException
+	 */
+	public void write(Key<?, ?> key, OutputStream output, byte[] bytes) throws IOException {
+		if ((types == null || types.contains(key.contentType())) && bytes.length >= threshold) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream zout = new ByteArrayOutputStream(bytes.length / 2);
+			zout.write(MAGIC);
+			Deflater deflater = new Deflater(level);
+			try (DeflaterOutputStream dout = new DeflaterOutputStream(zout, deflater)) {
+				dout.write(bytes);
+			} finally {
+				deflater.end();
+			}
+			compressNanos.add(System.nanoTime() - start);
+			// Only keep the compressed form when it is actually smaller
+			if (zout.size() < bytes.length + RAW.length) {
+				zout.writeTo(output);
+				compressed.increment();
+				uncompressedBytes.add(bytes.length);
+				compressedBytes.add(zout.size());
+				return;
+			}
+		}
+		output.write(RAW);
+		output.write(bytes);
+	}
+
+	/**
+	 * Read the content for a given key from an input stream, decompressing it if
+	 * it was compressed. The entry must have been written through a policy.
+	 *
+	 * @param key
+	 * @param input
+	 * @return
+	 * @throws IOException If the entry has no header, or is corrupt (e.g.
+	 *                     truncated).
+	 */
+	public Content read(Key<?, ?> key, InputStream input) throws IOException {
+		byte[] bytes = input.readAllBytes();
+		if (startsWith(bytes, RAW)) {
+			return StoreEvents.read(key, new ByteArrayInputStream(bytes, RAW.length, bytes.length - RAW.length));
+		} else if (startsWith(bytes, MAGIC)) {
+			long start = System.nanoTime();
+			byte[] inflated;
+			try (InflaterInputStream zin = new InflaterInputStream(
+					new ByteArrayInputStream(bytes, MAGIC.length, bytes.length - MAGIC.length))) {
+				inflated = zin.readAllBytes();
+			} catch (ZipException | EOFException e) {
+				throw new IOException("corrupt compressed entry " + key, e);
+			}
+			decompressNanos.add(System.nanoTime() - start);
+			return StoreEvents.read(key, new ByteArrayInputStream(inflated));
+		} else {
+			throw new IOException("entry " + key + " not written with a compression policy");
+		}
+	}
+
+	/**
+	 * Get the number of entries compressed thus far.
+	 *
+	 * @return
+	 */
+	public long getCompressedCount() {
+		return compressed.sum();
+	}
+
+	/**
+	 * Get the ratio of compressed to uncompressed bytes for all entries compressed
+	 * thus far. For example, a ratio of 0.25 indicates entries were compressed to a
+	 * quarter of their original size.
+	 *
+	 * @return
+	 */
+	public double getRatio() {
+		long u = uncompressedBytes.sum();
+		return u == 0 ? 1.0 : (double) compressedBytes.sum() / u;
+	}
+
+	/**
+	 * Get the total time spent compressing entries (in nanoseconds).
+	 *
+	 * @return
+	 */
+	public long getCompressNanos() {
+		return compressNanos.sum();
+	}
+
+	/**
+	 * Get the total time spent decompressing entries (in nanoseconds).
+	 *
+	 * @return
+	 */
+	public long getDecompressNanos() {
+		return decompressNanos.sum();
+	}
+
+	private static boolean startsWith(byte[] bytes, byte[] header) {
+		return bytes.length >= header.length && Arrays.equals(bytes, 0, header.length, header, 0, header.length);
+	}
+
+	@Override
+	public String toString() {
+		return "compressed=" + getCompressedCount() + ", ratio=" + getRatio() + ", compress=" + getCompressNanos()
+				+ "ns, decompress=" + getDecompressNanos() + "ns";
+	}
+}
@@ -0,0 +1,631 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Batch;
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Provides an implementation of <code>Content.Store</code> which deduplicates
+ * content on disk. Rather than writing each entry to its own file, every entry
+ * is serialised and identified by the hash of its serialised form. Blobs are
+ * written once under their hash, and an index file maps keys to hashes. Thus,
+ * any number of keys with byte-identical content share a single blob on disk.
+ * Blobs are reference counted, and those which are no longer referenced by any
+ * key are deleted during synchronisation.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ContentAddressedStore<S> implements Content.Store<S>, Iterable<Content.Entry<S>> {
+	/**
+	 * Name of the index file within the store directory.
+	 */
+	public final static String INDEX = "index";
+	/**
+	 * Name of the directory within the store directory holding blobs.
+	 */
+	public final static String BLOBS = "blobs";
+	/**
+	 * Hash function used for identifying blobs.
+	 */
+	private final static String ALGORITHM = "SHA-256";
+
+	private final File dir;
+	private final Key.Map<S, String> encdec;
+	/**
+	 * Maps each key to its corresponding entry. This is replaced with a copy when
+	 * written after a snapshot has been taken, such that snapshots are never
+	 * modified.
+	 */
+	private volatile LinkedHashMap<Key<S, ?>, Entry> items;
+	/**
+	 * Indicates whether the current map of entries is shared with one or more
+	 * snapshots.
+	 */
+	private boolean shared;
+	/**
+	 * Incremented every time a snapshot is taken. Entries created before the
+	 * current epoch may be shared with a snapshot and, hence, are replaced rather
+	 * than modified when written.
+	 */
+	private int epoch;
+	/**
+	 * Reference counts for every blob referenced from the index.
+	 */
+	private final HashMap<String, Integer> refcounts;
+	/**
+	 * Blobs whose reference count dropped to zero since the last synchronisation.
+	 * These are candidates for deletion.
+	 */
+	private final HashSet<String> unreferenced;
+	/**
+	 * Indicates whether the index needs to be written out again.
+	 */
+	private boolean modified;
+	/**
+	 * Metrics into which internal events (e.g. lazy loads and flushes) are
+	 * recorded, or <code>null</code> if none.
+	 */
+	private volatile Metrics metrics;
+
+	public ContentAddressedStore(Key.Map<S, String> encdec, File dir) throws IOException {
+		if (encdec == null) {
+			throw new IllegalArgumentException("Content encoder/decoder is required");
+		}
+		if (dir == null) {
+			throw new IllegalArgumentException("Directory root is required");
+		}
+		this.encdec = encdec;
+		this.dir = dir;
+		this.items = new LinkedHashMap<>();
+		this.refcounts = new HashMap<>();
+		this.unreferenced = new HashSet<>();
+		initialise();
+	}
+
+	@Override
+	public <T extends Content> T get(Key<S, T> key) {
+		return get(items, key);
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) {
+		return getAll(items, query);
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		return match(items, query);
+	}
+
+	@Override
+	public synchronized <T extends Content> void put(Key<S, T> key, T value) {
+		if (key == null) {
+			throw new IllegalArgumentException("key required");
+		} else if (key.contentType() != value.contentType()) {
+			throw new IllegalArgumentException("invalid key-value pair");
+		}
+		write(unshare(), key, value);
+	}
+
+	@Override
+	public synchronized void remove(Key<S, ?> key) {
+		remove(unshare(), key);
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		return new Batch<>(this::commit);
+	}
+
+	/**
+	 * Apply a set of changes staged by a transaction in one step. In particular,
+	 * entries are copied (at most) once for the whole transaction, rather than once
+	 * per write.
+	 *
+	 * @param changes
+	 */
+	private synchronized void commit(Map<Key<S, ?>, Content> changes) {
+		LinkedHashMap<Key<S, ?>, Entry> items = unshare();
+		for (Map.Entry<Key<S, ?>, Content> e : changes.entrySet()) {
+			if (e.getValue() == null) {
+				remove(items, e.getKey());
+			} else {
+				write(items, e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private void write(LinkedHashMap<Key<S, ?>, Entry> items, Key<S, ?> key, Content value) {
+		Entry e = items.get(key);
+		if (e == null) {
+			e = new Entry(key, null);
+			items.put(key, e);
+		} else if (e.epoch != epoch) {
+			// Existing entry may be visible in a snapshot, so replace it.
+			e = new Entry(key, e.hash);
+			items.put(key, e);
+		}
+		e.set(value);
+	}
+
+	private void remove(LinkedHashMap<Key<S, ?>, Entry> items, Key<S, ?> key) {
+		Entry e = items.remove(key);
+		if (e != null) {
+			release(e.hash);
+			modified = true;
+		}
+	}
+
+	@Override
+	public synchronized Content.Source<S> snapshot() {
+		shared = true;
+		epoch = epoch + 1;
+		return new Snapshot(items);
+	}
+
+	@Override
+	public synchronized void synchronise() throws IOException {
+		StoreEvents.Synchronise event = new StoreEvents.Synchronise();
+		event.begin();
+		int flushed = 0;
+		int deleted = 0;
+		// Write out any dirty entries
+		for (Entry e : items.values()) {
+			if (e.flush()) {
+				flushed = flushed + 1;
+			}
+		}
+		// Write out index (if necessary)
+		if (modified) {
+			writeIndex();
+			modified = false;
+		}
+		// Delete any blobs which are no longer referenced. This must happen after the
+		// index is written to ensure the index never refers to a missing blob.
+		for (String hash : unreferenced) {
+			if (!refcounts.containsKey(hash)) {
+				getBlob(hash).delete();
+				deleted = deleted + 1;
+				if (metrics != null) {
+					metrics.count("delete", null);
+				}
+			}
+		}
+		unreferenced.clear();
+		if (event.shouldCommit()) {
+			event.store = dir.toString();
+			event.flushed = flushed;
+			event.deleted = deleted;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Set the metrics into which this store records its internal events. In
+	 * particular, lazy loads (<code>load</code>), dirty flushes
+	 * (<code>flush</code>), flushes which found an identical blob already present
+	 * (<code>dedup</code>), blob deletions (<code>delete</code>) and copies made
+	 * after a snapshot (<code>copy</code>) are recorded. Recording is disabled by
+	 * supplying <code>null</code>.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Perform a full garbage collection pass over the blobs directory. This deletes
+	 * every blob which is not referenced from the (synchronised) index, including
+	 * those left behind by stores which were not synchronised properly. Unlike
+	 * <code>synchronise()</code>, the cost of this is proportional to the number of
+	 * blobs on disk.
+	 *
+	 * @return The number of blobs deleted.
+	 * @throws IOException
+	 */
+	public synchronized int gc() throws IOException {
+		synchronise();
+		int count = 0;
+		File[] prefixes = new File(dir, BLOBS).listFiles();
+		if (prefixes != null) {
+			for (File prefix : prefixes) {
+				File[] blobs = prefix.listFiles();
+				if (blobs == null) {
+					continue;
+				}
+				for (File blob : blobs) {
+					String hash = prefix.getName() + blob.getName();
+					if (!refcounts.containsKey(hash) && blob.delete()) {
+						count = count + 1;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the root directory of this store.
+	 *
+	 * @return
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Get the number of distinct blobs referenced by this store. This may be less
+	 * than the number of keys when content is duplicated.
+	 *
+	 * @return
+	 */
+	public int getBlobCount() {
+		return refcounts.size();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	@Override
+	public Iterator<Content.Entry<S>> iterator() {
+		return (Iterator) items.values().iterator();
+	}
+
+	@Override
+	public String toString() {
+		return items.keySet().toString();
+	}
+
+	/**
+	 * Read the index file (if it exists) to construct the initial set of entries.
+	 * Observe that this does not load any blobs.
+	 *
+	 * @throws IOException
+	 */
+	private void initialise() throws IOException {
+		File index = new File(dir, INDEX);
+		if (!index.exists()) {
+			return;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int split = line.indexOf(' ');
+				if (split < 0) {
+					throw new IOException("invalid index entry: " + line);
+				}
+				String hash = line.substring(0, split);
+				Key<S, ?> key = encdec.decode(line.substring(split + 1));
+				if (key != null) {
+					items.put(key, new Entry(key, hash));
+					acquire(hash);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write out the index file. This is done by writing a temporary file and then
+	 * moving it into place, such that a failure part way through does not corrupt
+	 * the existing index.
+	 *
+	 * @throws IOException
+	 */
+	private void writeIndex() throws IOException {
+		dir.mkdirs();
+		File index = new File(dir, INDEX);
+		File tmp = new File(dir, INDEX + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+			for (Entry e : items.values()) {
+				writer.write(e.hash);
+				writer.write(' ');
+				writer.write(encdec.encode(e.key));
+				writer.newLine();
+			}
+		}
+		Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Get the map of entries which can be safely written. If the current map is
+	 * shared with a snapshot, then it is first copied.
+	 *
+	 * @return
+	 */
+	private LinkedHashMap<Key<S, ?>, Entry> unshare() {
+		if (shared) {
+			items = new LinkedHashMap<>(items);
+			shared = false;
+			if (metrics != null) {
+				metrics.count("copy", null);
+			}
+		}
+		return items;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Content> T get(Map<Key<S, ?>, Entry> items, Key<S, T> key) {
+		Entry e = items.get(key);
+		return e == null ? null : (T) e.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Content> List<T> getAll(Map<Key<S, ?>, Entry> items, Predicate<Key<S, ?>> query) {
+		ArrayList<T> rs = new ArrayList<>();
+		for (Entry e : items.values()) {
+			if (query.test(e.getKey())) {
+				rs.add((T) e.get());
+			}
+		}
+		return rs;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Content> List<Key<S, T>> match(Map<Key<S, ?>, Entry> items, Predicate<Key<S, ?>> query) {
+		ArrayList<Key<S, T>> rs = new ArrayList<>();
+		for (Key<S, ?> k : items.keySet()) {
+			if (query.test(k)) {
+				// Following must be safe!
+				rs.add((Key<S, T>) k);
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * An immutable view of this store at a given point in time. Since blobs are
+	 * never modified once written, entries which had not been loaded when the
+	 * snapshot was taken can still be loaded safely, unless their blob has since
+	 * been garbage collected.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class Snapshot implements Content.Source<S>, Iterable<Content.Entry<S>> {
+		private final Map<Key<S, ?>, Entry> items;
+
+		public Snapshot(Map<Key<S, ?>, Entry> items) {
+			this.items = items;
+		}
+
+		@Override
+		public <T extends Content> T get(Key<S, T> key) {
+			return ContentAddressedStore.this.get(items, key);
+		}
+
+		@Override
+		public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) {
+			return ContentAddressedStore.this.getAll(items, query);
+		}
+
+		@Override
+		public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+			return ContentAddressedStore.this.match(items, query);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public Iterator<Content.Entry<S>> iterator() {
+			return (Iterator) Collections.unmodifiableCollection(items.values()).iterator();
+		}
+
+		@Override
+		public String toString() {
+			return items.keySet().toString();
+		}
+	}
+
+	private void acquire(String hash) {
+		refcounts.merge(hash, 1, Integer::sum);
+	}
+
+	private void release(String hash) {
+		if (hash != null) {
+			Integer count = refcounts.get(hash);
+			if (count == null || count <= 1) {
+				refcounts.remove(hash);
+				unreferenced.add(hash);
+			} else {
+				refcounts.put(hash, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Determine the file holding a given blob. Blobs are split across
+	 * subdirectories using the first two characters of their hash to avoid very
+	 * large directories.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	private File getBlob(String hash) {
+		return new File(new File(new File(dir, BLOBS), hash.substring(0, 2)), hash.substring(2));
+	}
+
+	/**
+	 * An entry within this store which corresponds to a blob on disk. As for
+	 * <code>DirectoryStore</code>, the content of an entry is loaded lazily on
+	 * demand. An entry created during execution has no hash until it is flushed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class Entry implements Content.Entry<S> {
+		private final Key<S, ?> key;
+		/**
+		 * The epoch in which this entry was created.
+		 */
+		private final int epoch;
+		/**
+		 * Hash of the blob holding this entry, or <code>null</code> if this entry has
+		 * not been written yet.
+		 */
+		private String hash;
+		/**
+		 * Indicates whether this entry has been modified or not.
+		 */
+		private boolean dirty;
+		/**
+		 * The cached value of this entry. This may be <code>null</code> if the entry
+		 * has not been read from disk yet.
+		 */
+		private volatile Content value;
+
+		public Entry(Key<S, ?> key, String hash) {
+			this.key = key;
+			this.epoch = ContentAddressedStore.this.epoch;
+			this.hash = hash;
+		}
+
+		@Override
+		public Key<S, ?> getKey() {
+			return key;
+		}
+
+		@Override
+		public Content get() {
+			try {
+				if (value == null) {
+					StoreEvents.Load event = new StoreEvents.Load();
+					event.begin();
+					long start = System.nanoTime();
+					File blob = getBlob(hash);
+					try (FileInputStream fin = new FileInputStream(blob)) {
+						value = StoreEvents.read(key, fin);
+					}
+					if (metrics != null) {
+						metrics.record("load", key.contentType(), System.nanoTime() - start, blob.length());
+					}
+					if (event.shouldCommit()) {
+						event.set(key, blob.length());
+						event.commit();
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return value;
+		}
+
+		public void set(Content value) {
+			if (this.value != value) {
+				this.dirty = true;
+				this.value = value;
+			}
+		}
+
+		/**
+		 * Write this entry to disk if it has been modified.
+		 *
+		 * @return <code>true</code> if the entry was flushed.
+		 * @throws IOException
+		 */
+		public boolean flush() throws IOException {
+			if (dirty) {
+				StoreEvents.Flush event = new StoreEvents.Flush();
+				event.begin();
+				long start = System.nanoTime();
+				// Serialise value into its binary form
+				ByteArrayOutputStream bout = new ByteArrayOutputStream();
+				StoreEvents.write(key, bout, value);
+				byte[] bytes = bout.toByteArray();
+				String h = hash(bytes);
+				// Only update when the content has actually changed
+				if (!h.equals(hash)) {
+					File blob = getBlob(h);
+					// Only write blob if not already present
+					if (!refcounts.containsKey(h) || !blob.exists()) {
+						write(blob, bytes);
+					} else if (metrics != null) {
+						metrics.count("dedup", key.contentType());
+					}
+					acquire(h);
+					release(hash);
+					hash = h;
+					modified = true;
+				}
+				dirty = false;
+				if (metrics != null) {
+					metrics.record("flush", key.contentType(), System.nanoTime() - start, bytes.length);
+				}
+				if (event.shouldCommit()) {
+					event.set(key, bytes.length);
+					event.commit();
+				}
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return key.toString();
+		}
+	}
+
+	/**
+	 * Write a blob to disk. The blob is first written to a temporary file and then
+	 * moved into place, such that a partially written blob is never visible under
+	 * its hash.
+	 *
+	 * @param blob
+	 * @param bytes
+	 * @throws IOException
+	 */
+	private static void write(File blob, byte[] bytes) throws IOException {
+		blob.getParentFile().mkdirs();
+		File tmp = new File(blob.getParentFile(), blob.getName() + ".tmp");
+		Files.write(tmp.toPath(), bytes);
+		Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Compute the hash of a given sequence of bytes as a hexadecimal string.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	private static String hash(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance(ALGORITHM).digest(bytes);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
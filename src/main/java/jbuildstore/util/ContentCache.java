@@ -0,0 +1,244 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import jbuildstore.core.Content;
+
+/**
+ * A size-bounded cache of deserialised content, indexed by content type and the
+ * hash of the serialised bytes from which it was read. This allows identical
+ * inputs read through different stores (e.g. the same archive opened by
+ * several modules of a build) to be deserialised only once. Since a cached value
+ * is shared between all readers of identical bytes, a cache should only be used
+ * for content which is not modified once read. The size of the cache is bounded
+ * by the total length of the serialised bytes of the values it holds, with the
+ * least recently used values being evicted first.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class ContentCache {
+	/**
+	 * Default bound (in serialised bytes) for the JVM-wide cache.
+	 */
+	public static final long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+	private static volatile ContentCache GLOBAL;
+
+	/**
+	 * Get the JVM-wide cache, creating it if necessary.
+	 *
+	 * @return
+	 */
+	public static ContentCache global() {
+		ContentCache cache = GLOBAL;
+		if (cache == null) {
+			synchronized (ContentCache.class) {
+				cache = GLOBAL;
+				if (cache == null) {
+					cache = GLOBAL = new ContentCache(DEFAULT_CAPACITY);
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Deserialises content from a stream of bytes.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public interface Decoder {
+		Content decode(InputStream input) throws IOException;
+	}
+
+	private final long capacity;
+	/**
+	 * Cached values, ordered by recency of access. This is guarded by the cache's
+	 * lock.
+	 */
+	private final LinkedHashMap<Hash, Entry> entries;
+	private long size;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Construct a cache holding values whose serialised forms total at most a given
+	 * number of bytes.
+	 *
+	 * @param capacity
+	 */
+	public ContentCache(long capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("invalid capacity");
+		}
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	/**
+	 * Read a value of a given content type from its serialised bytes, returning
+	 * the cached value if there is one.
+	 *
+	 * @param <T>
+	 * @param type
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Content> T read(Content.Type<T> type, byte[] bytes) throws IOException {
+		return (T) read(type, bytes, type::read);
+	}
+
+	/**
+	 * Read a value of a given content type from its serialised bytes using a given
+	 * decoder, returning the cached value if there is one. This allows the bytes to
+	 * be decoded in some other way than by the content type itself (e.g. when they
+	 * are compressed).
+	 *
+	 * @param type
+	 * @param bytes
+	 * @param decoder
+	 * @return
+	 * @throws IOException
+	 */
+	public Content read(Content.Type<?> type, byte[] bytes, Decoder decoder) throws IOException {
+		Hash hash = new Hash(type, digest(bytes));
+		synchronized (this) {
+			Entry e = entries.get(hash);
+			if (e != null) {
+				hits.increment();
+				return e.value;
+			}
+		}
+		misses.increment();
+		// NOTE: decode outside the lock, hence identical bytes may occasionally be
+		// decoded concurrently. In such case, the first value cached wins.
+		Content value = decoder.decode(new ByteArrayInputStream(bytes));
+		if (value == null || bytes.length > capacity / 8) {
+			// Don't let a single value flush the cache
+			return value;
+		}
+		synchronized (this) {
+			Entry e = entries.putIfAbsent(hash, new Entry(value, bytes.length));
+			if (e != null) {
+				return e.value;
+			}
+			size += bytes.length;
+			Iterator<Entry> iter = entries.values().iterator();
+			while (size > capacity && iter.hasNext()) {
+				size -= iter.next().weight;
+				iter.remove();
+				evictions.increment();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Remove all values from this cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Get the number of values in this cache.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the total length of the serialised bytes of values in this cache.
+	 *
+	 * @return
+	 */
+	public synchronized long getBytes() {
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static final class Entry {
+		private final Content value;
+		private final int weight;
+
+		public Entry(Content value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private static final class Hash {
+		private final Content.Type<?> type;
+		private final byte[] digest;
+		private final int hashCode;
+
+		public Hash(Content.Type<?> type, byte[] digest) {
+			this.type = type;
+			this.digest = digest;
+			this.hashCode = type.hashCode() ^ Arrays.hashCode(digest);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Hash) {
+				Hash h = (Hash) o;
+				return type == h.type && Arrays.equals(digest, h.digest);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -14,17 +14,42 @@
 package jbuildstore.util;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Predicate;
+import java.util.zip.Deflater;
 
+import jbuildstore.core.Batch;
 import jbuildstore.core.Content;
 import jbuildstore.core.Key;
 
 /**
  * Provides an implementation of <code>Content.Store<K,V></code> which is backed
- * by a file system directory.
+ * by a file system directory. The same directory may be shared by several
+ * stores, including those in other processes. Stores write to the directory
+ * only whilst holding an exclusive lock on a lock file within it, and publish
+ * their changes by incrementing a generation marker. A store which observes a
+ * new generation rescans the directory to pick up changes made by others (see
+ * <code>refresh()</code>). Furthermore, a store will not overwrite or delete a
+ * file which was changed by another since it was last observed.
  *
  * @author David J. Pearce
  *
@@ -38,10 +63,115 @@ public class DirectoryStore<S>
 			return true;
 		}
 	};
+	/**
+	 * Prefix of files used internally for coordination between stores, which are
+	 * never treated as entries.
+	 */
+	private final static String INTERNAL_PREFIX = ".jbuildstore.";
+	/**
+	 * Name of the file locked by a store whilst writing to the directory.
+	 */
+	public final static String LOCK_FILE = INTERNAL_PREFIX + "lock";
+	/**
+	 * Name of the file holding the current generation of the directory.
+	 */
+	public final static String GENERATION_FILE = INTERNAL_PREFIX + "generation";
+	/**
+	 * Name of the file marking a directory whose entries have all been written
+	 * through a compression policy and, hence, each begin with a header.
+	 */
+	public final static String COMPRESSION_FILE = INTERNAL_PREFIX + "compression";
+	/**
+	 * Policy used to write entries in a marked directory when no compression
+	 * policy is set, which never compresses.
+	 */
+	private final static Compression UNCOMPRESSED = new Compression(Deflater.NO_COMPRESSION, Integer.MAX_VALUE);
+	/**
+	 * Time (in milliseconds) the write-behind thread waits before retrying after
+	 * failing to flush.
+	 */
+	private final static long RETRY_DELAY = 100;
+	/**
+	 * Locks held by stores within this JVM, indexed by directory. These are needed
+	 * because file locks are held on behalf of the whole JVM and, hence, do not
+	 * exclude other stores within it.
+	 */
+	private final static ConcurrentHashMap<Path, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
 	private final File dir;
 	private final FileFilter filter;
 	private final Key.Map<S, String> encdec;
-	private final ArrayList<Entry> items;
+	/**
+	 * The current entries in this store, indexed by key. This is replaced with a
+	 * copy when written after a snapshot has been taken, such that snapshots are
+	 * never modified.
+	 */
+	private volatile LinkedHashMap<Key<S, ?>, Entry> items;
+	/**
+	 * Indicates whether the current entries are shared with one or more snapshots.
+	 */
+	private boolean shared;
+	/**
+	 * Incremented every time a snapshot is taken. Entries created before the
+	 * current epoch may be shared with a snapshot and, hence, are replaced rather
+	 * than modified when written.
+	 */
+	private int epoch;
+	/**
+	 * Keys which have been removed since the last synchronisation, and whose
+	 * corresponding files should therefore be deleted.
+	 */
+	private final HashMap<Key<S, ?>, Entry> tombstones;
+	/**
+	 * Metrics into which internal events (e.g. lazy loads and flushes) are
+	 * recorded, or <code>null</code> if none.
+	 */
+	private volatile Metrics metrics;
+	/**
+	 * Policy for compressing entries written to disk, or <code>null</code> if
+	 * entries are not compressed.
+	 */
+	private volatile Compression compression;
+	/**
+	 * Indicates whether the directory is marked as having all its entries written
+	 * through a compression policy. This is only changed whilst holding the
+	 * directory lock, or when refreshing.
+	 */
+	private volatile boolean framed;
+	/**
+	 * Cache through which entries are deserialised, or <code>null</code> if none.
+	 */
+	private volatile ContentCache cache;
+	/**
+	 * The generation of the directory last observed by this store.
+	 */
+	private volatile long generation;
+	/**
+	 * Maximum number of serialised bytes awaiting a write-behind flush before
+	 * writers are blocked, or zero if write-behind is disabled.
+	 */
+	private long budget;
+	/**
+	 * Entries awaiting a write-behind flush, indexed by key. This is guarded by the
+	 * store's lock.
+	 */
+	private final LinkedHashMap<Key<S, ?>, Entry> queue = new LinkedHashMap<>();
+	/**
+	 * Total serialised bytes awaiting (or undergoing) a write-behind flush.
+	 */
+	private long dirtyBytes;
+	/**
+	 * The thread performing write-behind flushes, or <code>null</code> if none.
+	 */
+	private volatile Thread flusher;
+	/**
+	 * The failure which stopped the write-behind thread, if any, which is reported
+	 * on the next synchronisation. This is guarded by the store's lock.
+	 */
+	private Throwable flushFailure;
+	/**
+	 * Publishes changes made to this store.
+	 */
+	private final ChangePublisher<S> changes = new ChangePublisher<>();
 
 	public DirectoryStore(Key.Map<S, String> encdec, File dir) throws IOException {
 		this(encdec, dir, NULL_FILTER);
@@ -60,81 +190,252 @@ public class DirectoryStore<S>
 		this.encdec = encdec;
 		this.dir = dir;
 		this.filter = filter;
+		this.tombstones = new HashMap<>();
+		this.generation = readGeneration();
+		this.framed = new File(dir, COMPRESSION_FILE).exists();
 		this.items = initialise(dir, filter);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <T extends Content> T get(Key<S, T> key) {
-		for (int i = 0; i != items.size(); ++i) {
-			Entry ith = items.get(i);
-			if (ith.getKey().equals(key)) {
-				return (T) ith.get();
-			}
-		}
-		return null;
+		return get(items, key);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <T extends Content> List<T> getAll(Predicate<Key<S,?>> query) {
-		ArrayList<T> rs = new ArrayList<>();
-		for (int i = 0; i != items.size(); ++i) {
-			Entry ith = items.get(i);
-			if (query.test(ith.getKey())) {
-				rs.add((T) ith.get());
-			}
-		}
-		return rs;
+		return getAll(items, query);
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
-		ArrayList<Key<S, T>> rs = new ArrayList<>();
-		for (int i = 0; i != items.size(); ++i) {
-			Entry ith = items.get(i);
-			if (query.test(ith.getKey())) {
-				// Following must be safe!
-				rs.add((Key) ith.getKey());
-			}
-		}
-		return rs;
+		return match(items, query);
 	}
 
+	@Override
+	public synchronized Content.Source<S> snapshot() {
+		shared = true;
+		epoch = epoch + 1;
+		return new Snapshot(items);
+	}
+
+	/**
+	 * Write all modified entries to disk, and delete the files of all removed
+	 * entries. This holds the directory lock throughout and, before writing
+	 * anything, first picks up any changes published by other stores. If a file to
+	 * be written or deleted was changed by another since this store last observed
+	 * it, then nothing is written and an exception is thrown. Such conflicts can be
+	 * resolved by reverting the affected entries (see <code>revert()</code>) and
+	 * then, if necessary, rewriting them. A file to be deleted which another has
+	 * already deleted is not a conflict. Finally, if the write-behind thread was
+	 * stopped by an unexpected failure since the last synchronisation, then this
+	 * is reported (once everything has been written).
+	 *
+	 * @throws IOException
+	 */
 	@Override
 	public void synchronise() throws IOException {
-		// FIXME: this method could be made more efficient
-		final java.nio.file.Path root = dir.toPath();
-		// FIXME: bug here if root created with specific file filter
-		List<File> files = findAll(64, dir, filter, new ArrayList<>());
-		for (File f : files) {
-			// Construct filename
+		Throwable failure;
+		// NOTE: the directory lock is always acquired before the store's lock.
+		DirectoryLock lock = lock();
+		try {
+			synchronized (this) {
+				failure = flushFailure;
+				flushFailure = null;
+				flushAll();
+			}
+		} finally {
+			lock.close();
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException("write-behind stopped in " + dir, failure);
+		}
+	}
+
+	/**
+	 * Pick up any changes published by other stores sharing this directory since
+	 * it was last observed. Specifically, when the generation of the directory has
+	 * advanced, the directory is rescanned. Entries are then added for new files,
+	 * and unmodified entries are reloaded (resp. removed) when their file has
+	 * changed (resp. been deleted). This does not require the directory lock and,
+	 * when the generation is unchanged, only reads the generation marker.
+	 *
+	 * @return <code>true</code> if the directory was rescanned.
+	 * @throws IOException
+	 */
+	public synchronized boolean refresh() throws IOException {
+		long g = readGeneration();
+		if (g == generation) {
+			return false;
+		}
+		framed = new File(dir, COMPRESSION_FILE).exists();
+		final Path root = dir.toPath();
+		HashMap<Key<S, ?>, File> found = new HashMap<>();
+		for (File f : findAll(64, dir, filter, new ArrayList<>())) {
 			String filename = root.relativize(f.toPath()).toString().replace(File.separatorChar, '/');
-			// Decode filename into path and content type.
 			Key<S, ?> key = encdec.decode(filename);
-			// Check whether this file is recognised or not
 			if (key != null) {
-				// Search for this item
-				boolean matched = false;
-				for (int i = 0; i != items.size(); ++i) {
-					Entry ith = items.get(i);
-					if (ith.getKey().equals(key)) {
-						matched = true;
-						break;
+				found.put(key, f);
+			}
+		}
+		LinkedHashMap<Key<S, ?>, Entry> items = unshare();
+		for (Map.Entry<Key<S, ?>, File> e : found.entrySet()) {
+			Key<S, ?> key = e.getKey();
+			Entry entry = items.get(key);
+			Stamp stamp = Stamp.of(e.getValue());
+			if (entry == null && !tombstones.containsKey(key)) {
+				// New file written by another store
+				items.put(key, new Entry(key, e.getValue(), stamp));
+				changes.publish(ChangePublisher.Kind.MODIFIED, key);
+			} else if (entry != null && !entry.dirty && !Objects.equals(stamp, entry.stamp)) {
+				// File rewritten by another store, so reload.
+				items.put(entry.key, new Entry(entry.key, e.getValue(), stamp));
+				changes.publish(ChangePublisher.Kind.MODIFIED, entry.key);
+			}
+		}
+		// Drop unmodified entries whose files were deleted by another store.
+		Iterator<Entry> iter = items.values().iterator();
+		while (iter.hasNext()) {
+			Entry e = iter.next();
+			if (!e.dirty && e.stamp != null && !found.containsKey(e.key)) {
+				iter.remove();
+				changes.publish(ChangePublisher.Kind.MODIFIED, e.key);
+			}
+		}
+		generation = g;
+		return true;
+	}
+
+	/**
+	 * Discard any changes made to a given entry since the last synchronisation,
+	 * such that it again reflects the corresponding file on disk (if any). This is
+	 * primarily useful for resolving conflicts with changes made by other stores,
+	 * since subsequent writes to the entry will then overwrite them.
+	 *
+	 * @param key
+	 */
+	public synchronized void revert(Key<S, ?> key) {
+		dequeue(key);
+		LinkedHashMap<Key<S, ?>, Entry> items = unshare();
+		Entry e = items.remove(key);
+		Entry t = tombstones.remove(key);
+		e = (e == null) ? t : e;
+		File f = (e == null) ? new File(dir, encdec.encode(key)) : e.getFile();
+		Stamp stamp = Stamp.of(f);
+		if (stamp != null) {
+			items.put(key, new Entry(e == null ? key : e.key, f, stamp));
+		}
+		changes.publish(ChangePublisher.Kind.MODIFIED, key);
+	}
+
+	/**
+	 * Get the publisher of changes made to this store. Specifically, a <code>PUT</code>
+	 * (resp. <code>REMOVE</code>) is published for every entry written (resp.
+	 * removed), and a <code>FLUSHED</code> for every entry written to disk. Finally,
+	 * a <code>MODIFIED</code> is published for every entry found to have been
+	 * changed by another store when refreshing, or which was reverted.
+	 *
+	 * @return
+	 */
+	public Flow.Publisher<ChangePublisher.Change<S>> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Set the metrics into which this store records its internal events. In
+	 * particular, lazy loads (<code>load</code>), dirty flushes
+	 * (<code>flush</code>), deletions (<code>delete</code>) and copies made after
+	 * a snapshot (<code>copy</code>) are recorded. Recording is disabled by
+	 * supplying <code>null</code>.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the policy for compressing entries written to disk. Entries are then
+	 * compressed when flushed, and decompressed when loaded. The first time a
+	 * policy is set on a directory, every existing file is rewritten with a header
+	 * and the directory is marked (see <code>COMPRESSION_FILE</code>). Thereafter,
+	 * all entries in the directory are written with a header, and are decompressed
+	 * by any store (whether or not it has a policy). Other stores sharing the
+	 * directory observe this when they next refresh. Compression is disabled by
+	 * supplying <code>null</code>, though the directory remains marked.
+	 *
+	 * @param compression
+	 * @throws IOException
+	 */
+	public void setCompression(Compression compression) throws IOException {
+		// NOTE: the directory lock is always acquired before the store's lock.
+		DirectoryLock lock = lock();
+		try {
+			synchronized (this) {
+				this.compression = compression;
+				if (compression != null) {
+					refresh();
+					if (!framed) {
+						frame();
 					}
 				}
-				// File has been removed, so delete it :)
-				if (!matched) {
-					f.delete();
-				}
 			}
+		} finally {
+			lock.close();
 		}
-		//
-		for (int i = 0; i != items.size(); ++i) {
-			// FIXME: this should really sanity check that we have not had a concurrent
-			// modification.
-			items.get(i).flush();
+	}
+
+	/**
+	 * Set the cache through which entries loaded from disk are deserialised, such that identical
+	 * files read through other stores are deserialised only once. Since values may
+	 * then be shared with other stores, they must not be modified once read.
+	 * Caching is disabled by supplying <code>null</code>.
+	 *
+	 * @param cache
+	 */
+	public void setContentCache(ContentCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Synchronise this store and, additionally, delete every recognised file in the
+	 * directory which has no corresponding entry. Unlike
+	 * <code>synchronise()</code>, which only deletes files for entries removed
+	 * through this store, this walks the entire directory and, hence, also removes
+	 * orphaned files (e.g. left behind by a previous build).
+	 *
+	 * @return The number of orphaned files deleted.
+	 * @throws IOException
+	 */
+	public int sweep() throws IOException {
+		DirectoryLock lock = lock();
+		try {
+			synchronized (this) {
+				// NOTE: since this refreshes first, files published by other stores are not
+				// considered orphans.
+				flushAll();
+				final java.nio.file.Path root = dir.toPath();
+				int count = 0;
+				// FIXME: bug here if root created with specific file filter
+				List<File> files = findAll(64, dir, filter, new ArrayList<>());
+				for (File f : files) {
+					// Construct filename
+					String filename = root.relativize(f.toPath()).toString().replace(File.separatorChar, '/');
+					// Decode filename into path and content type.
+					Key<S, ?> key = encdec.decode(filename);
+					// File is recognised but has no entry, so delete it :)
+					if (key != null && !items.containsKey(key) && f.delete()) {
+						count = count + 1;
+					}
+				}
+				if (count > 0) {
+					publish(readGeneration());
+				}
+				return count;
+			}
+		} finally {
+			lock.close();
 		}
 	}
 
@@ -142,7 +443,7 @@ public class DirectoryStore<S>
 	@Override
 	public Iterator<Content.Entry<S>> iterator() {
 		// Add wrapping iterator which forces loading of artifacts.
-		return (Iterator) items.iterator();
+		return (Iterator) items.values().iterator();
 	}
 
 	@Override
@@ -152,34 +453,93 @@ public class DirectoryStore<S>
 		} else if(key.contentType() != value.contentType()) {
 			throw new IllegalArgumentException("invalid key-value pair");
 		}
-		// NOTE: yes, there is unsafe stuff going on here because we cannot easily type
-		// this in Java.
-		for (int i = 0; i != items.size(); ++i) {
-			Entry ith = items.get(i);
-			if (ith.getKey().equals(key)) {
-				// Yes, overwrite existing entry
-				ith.set(value);
-				return;
+		// NOTE: when writing behind, serialise outside the lock.
+		byte[] bytes = (flusher != null) ? serialise(key, value) : null;
+		synchronized (this) {
+			if (bytes != null && flusher != null) {
+				// Block whilst the budget is exceeded, unless nothing is pending
+				while (flusher != null && dirtyBytes > 0 && dirtyBytes + bytes.length > budget) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					}
+				}
+			}
+			write(unshare(), key, value);
+			if (bytes != null && flusher != null) {
+				Entry e = items.get(key);
+				e.pending = bytes;
+				queue.put(key, e);
+				dirtyBytes += bytes.length;
+				notifyAll();
 			}
 		}
-		Entry e = new Entry(key);
-		e.set(value);
-		// Create new entry
-		items.add(e);
 	}
 
 	@Override
-	public void remove(Key<S, ?> key) {
-		// Update state
-		for (int i = 0; i != items.size(); ++i) {
-			Entry ith = items.get(i);
-			if (ith.getKey().equals(key)) {
-				// Yes, remove entry
-				items.remove(i);
-				return;
+	public synchronized void remove(Key<S, ?> key) {
+		remove(unshare(), key);
+	}
+
+	/**
+	 * Enable writing behind, such that entries written are flushed to disk
+	 * continuously in the background, rather than only when the store is
+	 * synchronised. Values are serialised when written, and writers are blocked
+	 * whilst the total size of serialised values awaiting a flush exceeds a given
+	 * budget. Repeated writes to the same entry before it is flushed are coalesced.
+	 * Observe that values written through transactions are not written behind,
+	 * and that <code>synchronise()</code> must still be called to flush any
+	 * remaining entries (and delete removed ones). Writing behind is disabled by
+	 * supplying a budget of zero, which also stops the background thread.
+	 *
+	 * @param budget Maximum number of serialised bytes awaiting a flush.
+	 */
+	public synchronized void setWriteBehind(long budget) {
+		if (budget < 0) {
+			throw new IllegalArgumentException("invalid budget");
+		}
+		this.budget = budget;
+		if (budget == 0 && flusher != null) {
+			// Remaining entries are left dirty, and flushed on synchronisation
+			flusher = null;
+			for (Entry e : queue.values()) {
+				dirtyBytes -= e.pending.length;
 			}
+			queue.clear();
+			notifyAll();
+		} else if (budget > 0 && flusher == null) {
+			flusher = new Thread(this::writeBehind, "jbuildstore-write-behind");
+			flusher.setDaemon(true);
+			flusher.start();
+		} else {
+			notifyAll();
 		}
-		// Done
+	}
+
+	/**
+	 * Determine whether entries are currently being written behind. This becomes
+	 * <code>false</code> if the write-behind thread was stopped by a failure.
+	 *
+	 * @return
+	 */
+	public boolean isWritingBehind() {
+		return flusher != null;
+	}
+
+	/**
+	 * Get the total size of serialised values awaiting a write-behind flush.
+	 *
+	 * @return
+	 */
+	public synchronized long getDirtyBytes() {
+		return dirtyBytes;
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		return new Batch<>(this::commit);
 	}
 
 	/**
@@ -195,7 +555,7 @@ public class DirectoryStore<S>
 	public String toString() {
 		String r = "{";
 		boolean firstTime = true;
-		for (Entry f : items) {
+		for (Entry f : items.values()) {
 			if (!firstTime) {
 				r += ",";
 			}
@@ -205,6 +565,569 @@ public class DirectoryStore<S>
 		return r + "}";
 	}
 
+	/**
+	 * Run by the write-behind thread, which repeatedly flushes all entries awaiting
+	 * a flush until it is stopped. After failing to flush (e.g. because the lock
+	 * could not be acquired), it waits a short while before retrying. Any other
+	 * failure stops the thread, as though write-behind had been disabled, and is
+	 * reported on the next synchronisation.
+	 */
+	private void writeBehind() {
+		Thread self = Thread.currentThread();
+		try {
+			while (true) {
+				synchronized (this) {
+					while (flusher == self && queue.isEmpty()) {
+						wait();
+					}
+					if (flusher != self) {
+						return;
+					}
+				}
+				try {
+					DirectoryLock lock = lock();
+					try {
+						flushQueued();
+					} finally {
+						lock.close();
+					}
+				} catch (IOException e) {
+					// Failed entries remain dirty, and are retried or written on synchronisation
+					synchronized (this) {
+						if (flusher == self) {
+							wait(RETRY_DELAY);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (Throwable t) {
+			synchronized (this) {
+				if (flushFailure == null) {
+					flushFailure = t;
+				}
+			}
+		} finally {
+			synchronized (this) {
+				if (flusher == self) {
+					// Remaining entries are left dirty, and flushed on synchronisation
+					flusher = null;
+					budget = 0;
+					for (Entry e : queue.values()) {
+						dirtyBytes -= e.pending.length;
+					}
+					queue.clear();
+				}
+				// Wake any writers blocked on the budget
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Flush all entries awaiting a write-behind flush, assuming the directory lock
+	 * (but not the store's lock) is held. Hence, entries may be written
+	 * concurrently, in which case they are flushed again later.
+	 *
+	 * @throws IOException
+	 */
+	private void flushQueued() throws IOException {
+		refresh();
+		ArrayList<Entry> batch = new ArrayList<>();
+		ArrayList<byte[]> data = new ArrayList<>();
+		synchronized (this) {
+			for (Entry e : queue.values()) {
+				batch.add(e);
+				data.add(e.pending);
+			}
+			queue.clear();
+		}
+		Stamp[] before = new Stamp[batch.size()];
+		Stamp[] after = new Stamp[batch.size()];
+		try {
+			for (int i = 0; i != batch.size(); ++i) {
+				Entry e = batch.get(i);
+				before[i] = e.stamp;
+				// Entries modified externally are left for synchronise() to report
+				if (!e.isModifiedExternally()) {
+					after[i] = e.write(data.get(i));
+				}
+			}
+		} finally {
+			synchronized (this) {
+				boolean written = false;
+				for (int i = 0; i != batch.size(); ++i) {
+					Entry e = batch.get(i);
+					dirtyBytes -= data.get(i).length;
+					if (after[i] != null) {
+						written = true;
+						// Update the current entry, which may have been replaced or removed since
+						Entry current = items.get(e.key);
+						current = (current == null) ? tombstones.get(e.key) : current;
+						if (current == null) {
+							// Removed whilst being flushed, so the file just written must be deleted
+							e.stamp = after[i];
+							tombstones.put(e.key, e);
+						} else if (Objects.equals(current.stamp, before[i])) {
+							current.stamp = after[i];
+						}
+						if (current == e && e.pending == data.get(i)) {
+							// Not written again since
+							e.pending = null;
+							e.dirty = false;
+							changes.publish(ChangePublisher.Kind.FLUSHED, e.key);
+						}
+					}
+				}
+				if (written) {
+					publish(generation);
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Remove a given entry from those awaiting a write-behind flush.
+	 *
+	 * @param key
+	 */
+	private void dequeue(Key<S, ?> key) {
+		Entry q = queue.remove(key);
+		if (q != null) {
+			dirtyBytes -= q.pending.length;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Serialise a given value. Entries are compressed (if applicable) when written
+	 * to disk, rather than here, since this is only known whilst holding the
+	 * directory lock.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	private byte[] serialise(Key<S, ?> key, Content value) {
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			StoreEvents.write(key, bout, value);
+			return bout.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Determine the policy through which entries are read from and written to
+	 * disk, or <code>null</code> if they are neither compressed nor have headers.
+	 *
+	 * @return
+	 */
+	private Compression policy() {
+		Compression c = compression;
+		return (c != null) ? c : framed ? UNCOMPRESSED : null;
+	}
+
+	/**
+	 * Rewrite every existing file in the directory with a header, and then mark
+	 * it such that all entries are subsequently written with one. The marker is
+	 * created first so that, if this fails part way, stores report unmarked
+	 * entries as errors rather than silently misreading them. This assumes the
+	 * directory lock is held, and that this store has just been refreshed.
+	 *
+	 * @throws IOException
+	 */
+	private void frame() throws IOException {
+		Files.write(new File(dir, COMPRESSION_FILE).toPath(), new byte[0]);
+		framed = true;
+		final Path root = dir.toPath();
+		for (File f : findAll(64, dir, filter, new ArrayList<>())) {
+			String filename = root.relativize(f.toPath()).toString().replace(File.separatorChar, '/');
+			Key<S, ?> key = encdec.decode(filename);
+			if (key != null) {
+				Stamp before = Stamp.of(f);
+				byte[] bytes = Files.readAllBytes(f.toPath());
+				File tmp = new File(f.getParentFile(), INTERNAL_PREFIX + f.getName() + ".tmp");
+				try (FileOutputStream fout = new FileOutputStream(tmp)) {
+					fout.write(Compression.RAW);
+					fout.write(bytes);
+				}
+				Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				// Entries which were up-to-date with the file remain so
+				Entry e = items.get(key);
+				e = (e == null) ? tombstones.get(key) : e;
+				if (e != null && Objects.equals(e.stamp, before)) {
+					e.stamp = Stamp.of(f);
+				}
+			}
+		}
+		publish(generation);
+	}
+
+	/**
+	 * Flush all modified entries and delete files of removed entries, assuming the
+	 * directory lock is held.
+	 *
+	 * @throws IOException
+	 */
+	private void flushAll() throws IOException {
+		StoreEvents.Synchronise event = new StoreEvents.Synchronise();
+		event.begin();
+		// Pick up changes from other stores before checking for conflicts
+		refresh();
+		long g = generation;
+		// Tombstones whose files were already deleted by another need no action
+		Iterator<Entry> iter = tombstones.values().iterator();
+		while (iter.hasNext()) {
+			if (!iter.next().getFile().exists()) {
+				iter.remove();
+			}
+		}
+		// Check nothing to be written has been modified externally
+		ArrayList<Key<S, ?>> conflicts = new ArrayList<>();
+		for (Entry e : tombstones.values()) {
+			if (e.isModifiedExternally()) {
+				conflicts.add(e.key);
+			}
+		}
+		for (Entry e : items.values()) {
+			if (e.dirty && e.isModifiedExternally()) {
+				conflicts.add(e.key);
+			}
+		}
+		if (!conflicts.isEmpty()) {
+			throw new IOException("entries modified externally in " + dir + ": " + conflicts);
+		}
+		int deleted = tombstones.size();
+		int flushed = 0;
+		// Delete files for entries which have been removed
+		for (Map.Entry<Key<S, ?>, Entry> e : tombstones.entrySet()) {
+			e.getValue().getFile().delete();
+			if (metrics != null) {
+				metrics.count("delete", e.getKey().contentType());
+			}
+		}
+		tombstones.clear();
+		//
+		for (Entry e : items.values()) {
+			if (e.flush()) {
+				flushed = flushed + 1;
+				changes.publish(ChangePublisher.Kind.FLUSHED, e.key);
+			}
+		}
+		// Everything awaiting a write-behind flush has now been written
+		queue.clear();
+		dirtyBytes = 0;
+		notifyAll();
+		if (flushed > 0 || deleted > 0) {
+			publish(g);
+		}
+		if (event.shouldCommit()) {
+			event.store = dir.toString();
+			event.flushed = flushed;
+			event.deleted = deleted;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Advance the generation of the directory to signal that it has changed. The
+	 * generation marker is replaced atomically, such that it can be read without
+	 * holding the lock. This assumes the directory lock is held.
+	 *
+	 * @param observed The latest generation whose changes this store has observed.
+	 * @throws IOException
+	 */
+	private void publish(long observed) throws IOException {
+		long current = readGeneration();
+		Path marker = new File(dir, GENERATION_FILE).toPath();
+		Path tmp = new File(dir, GENERATION_FILE + ".tmp").toPath();
+		Files.write(tmp, Long.toString(current + 1).getBytes(StandardCharsets.US_ASCII));
+		Files.move(tmp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (current == observed) {
+			// Nothing else has changed, hence this store is up-to-date
+			generation = current + 1;
+		}
+	}
+
+	/**
+	 * Read the current generation of the directory, which is zero if no store has
+	 * yet written to it.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private long readGeneration() throws IOException {
+		try {
+			byte[] bytes = Files.readAllBytes(new File(dir, GENERATION_FILE).toPath());
+			return Long.parseLong(new String(bytes, StandardCharsets.US_ASCII).trim());
+		} catch (NoSuchFileException e) {
+			return 0;
+		} catch (NumberFormatException e) {
+			throw new IOException("invalid generation marker in " + dir, e);
+		}
+	}
+
+	/**
+	 * Acquire the lock on this directory, which excludes all other stores from
+	 * writing to it (including those in other processes). This blocks until the
+	 * lock is available.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private DirectoryLock lock() throws IOException {
+		dir.mkdirs();
+		Path path = new File(dir, LOCK_FILE).toPath();
+		ReentrantLock local = LOCKS.computeIfAbsent(path.toAbsolutePath().normalize(), p -> new ReentrantLock());
+		local.lock();
+		try {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			try {
+				return new DirectoryLock(local, channel, channel.lock());
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		} catch (IOException | RuntimeException e) {
+			local.unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * A held lock on this directory.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static class DirectoryLock implements Closeable {
+		private final ReentrantLock local;
+		private final FileChannel channel;
+		private final FileLock lock;
+
+		public DirectoryLock(ReentrantLock local, FileChannel channel, FileLock lock) {
+			this.local = local;
+			this.channel = channel;
+			this.lock = lock;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				lock.release();
+				channel.close();
+			} finally {
+				local.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Identifies the state of a file on disk, such that changes made to it can be
+	 * detected. Since files are replaced atomically when flushed, a change of
+	 * identity (where supported) detects a rewrite even within the resolution of
+	 * the modification time.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class Stamp {
+		private final Object identity;
+		private final long modified;
+		private final long size;
+
+		private Stamp(BasicFileAttributes attributes) {
+			this.identity = attributes.fileKey();
+			this.modified = attributes.lastModifiedTime().toMillis();
+			this.size = attributes.size();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof Stamp) {
+				Stamp s = (Stamp) o;
+				return Objects.equals(identity, s.identity) && modified == s.modified && size == s.size;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(identity) ^ Long.hashCode(modified) ^ Long.hashCode(size);
+		}
+
+		/**
+		 * Determine the current stamp of a given file, or <code>null</code> if it does
+		 * not exist.
+		 *
+		 * @param file
+		 * @return
+		 */
+		public static Stamp of(File file) {
+			try {
+				return new Stamp(Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Apply a set of changes staged by a transaction in one step. In particular,
+	 * entries are copied (at most) once for the whole transaction, rather than once
+	 * per write.
+	 *
+	 * @param changes
+	 */
+	private synchronized void commit(Map<Key<S, ?>, Content> changes) {
+		LinkedHashMap<Key<S, ?>, Entry> items = unshare();
+		for (Map.Entry<Key<S, ?>, Content> e : changes.entrySet()) {
+			if (e.getValue() == null) {
+				remove(items, e.getKey());
+			} else {
+				write(items, e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private void write(LinkedHashMap<Key<S, ?>, Entry> items, Key<S, ?> key, Content value) {
+		// File will be overwritten, so no need to delete it
+		Entry t = tombstones.remove(key);
+		// Any value awaiting a write-behind flush is now stale
+		dequeue(key);
+		// NOTE: yes, there is unsafe stuff going on here because we cannot easily type
+		// this in Java.
+		Entry e = items.get(key);
+		if (e != null && e.epoch == epoch) {
+			// Yes, overwrite existing entry
+			e.set(value);
+			e.pending = null;
+		} else {
+			// Either a new entry or an existing entry which may be visible in a snapshot
+			// (which must therefore be replaced). In both cases, retain what is known
+			// about the file on disk.
+			e = (e == null) ? t : e;
+			if (e != null && flusher != null) {
+				// NOTE: the old entry may be visible in a snapshot, but its file can be
+				// overwritten in the background at any moment. Hence, it must be loaded now.
+				e.pin();
+			}
+			Entry n = (e == null) ? new Entry(key, null, null) : new Entry(e.key, e.file, e.stamp);
+			n.set(value);
+			items.put(n.key, n);
+		}
+		changes.publish(ChangePublisher.Kind.PUT, key);
+	}
+
+	private void remove(LinkedHashMap<Key<S, ?>, Entry> items, Key<S, ?> key) {
+		dequeue(key);
+		Entry e = items.remove(key);
+		if (e != null && e.stamp != null) {
+			// File exists on disk, so must be deleted
+			tombstones.put(e.key, e);
+		}
+		if (e != null) {
+			changes.publish(ChangePublisher.Kind.REMOVE, key);
+		}
+	}
+
+	/**
+	 * Get the entries which can be safely written. If the current entries are
+	 * shared with a snapshot, then they are first copied.
+	 *
+	 * @return
+	 */
+	private LinkedHashMap<Key<S, ?>, Entry> unshare() {
+		if (shared) {
+			items = new LinkedHashMap<>(items);
+			shared = false;
+			if (metrics != null) {
+				metrics.count("copy", null);
+			}
+		}
+		return items;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Content> T get(Map<Key<S, ?>, Entry> items, Key<S, T> key) {
+		Entry e = items.get(key);
+		return e == null ? null : (T) e.get();
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Content> List<T> getAll(Map<Key<S, ?>, Entry> items, Predicate<Key<S,?>> query) {
+		ArrayList<T> rs = new ArrayList<>();
+		for (Entry e : items.values()) {
+			if (query.test(e.getKey())) {
+				rs.add((T) e.get());
+			}
+		}
+		return rs;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private <T extends Content> List<Key<S, T>> match(Map<Key<S, ?>, Entry> items, Predicate<Key<S, ?>> query) {
+		ArrayList<Key<S, T>> rs = new ArrayList<>();
+		for (Key<S, ?> k : items.keySet()) {
+			if (query.test(k)) {
+				// Following must be safe!
+				rs.add((Key) k);
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * An immutable view of this store at a given point in time. Observe that
+	 * entries which had not been loaded when the snapshot was taken are still
+	 * loaded lazily from disk. Thus, a snapshot should not be read across a call
+	 * to <code>synchronise()</code> which may have overwritten them. Whilst
+	 * writing behind, however, files are overwritten in the background. Hence, an
+	 * entry visible in a snapshot is loaded before being replaced, such that the
+	 * snapshot never observes later writes.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class Snapshot implements Content.Source<S>, Iterable<Content.Entry<S>> {
+		private final Map<Key<S, ?>, Entry> items;
+
+		public Snapshot(Map<Key<S, ?>, Entry> items) {
+			this.items = items;
+		}
+
+		@Override
+		public <T extends Content> T get(Key<S, T> key) {
+			return DirectoryStore.this.get(items, key);
+		}
+
+		@Override
+		public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) {
+			return DirectoryStore.this.getAll(items, query);
+		}
+
+		@Override
+		public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+			return DirectoryStore.this.match(items, query);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public Iterator<Content.Entry<S>> iterator() {
+			return (Iterator) Collections.unmodifiableCollection(items.values()).iterator();
+		}
+
+		@Override
+		public String toString() {
+			return items.keySet().toString();
+		}
+	}
+
 	/**
 	 * Construct the initial listing of files from the contents of the build
 	 * directory. Observe that this does not load the files, but rather returns a
@@ -216,12 +1139,14 @@ public class DirectoryStore<S>
 	 * @return
 	 * @throws IOException
 	 */
-	private ArrayList<Entry> initialise(File dir, FileFilter filter) throws IOException {
+	private LinkedHashMap<Key<S, ?>, Entry> initialise(File dir, FileFilter filter) throws IOException {
+		StoreEvents.Scan event = new StoreEvents.Scan();
+		event.begin();
 		java.nio.file.Path root = dir.toPath();
 		// First extract all files rooted in this directory
 		List<File> files = findAll(64, dir, filter, new ArrayList<>());
 		// Second convert them all into entries as appropriate
-		ArrayList<Entry> entries = new ArrayList<>();
+		LinkedHashMap<Key<S, ?>, Entry> entries = new LinkedHashMap<>();
 		//
 		for (int i = 0; i != files.size(); ++i) {
 			File ith = files.get(i);
@@ -231,9 +1156,15 @@ public class DirectoryStore<S>
 			Key<S,?> key = encdec.decode(filename);
 			if (key != null) {
 				// Create lazy artifact
-				entries.add(new Entry(key));
+				entries.put(key, new Entry(key, ith, Stamp.of(ith)));
 			}
 		}
+		if (event.shouldCommit()) {
+			event.directory = dir.toString();
+			event.files = files.size();
+			event.entries = entries.size();
+			event.commit();
+		}
 		// Done
 		return entries;
 	}
@@ -254,6 +1185,10 @@ public class DirectoryStore<S>
 		 * The repository path to which this entry corresponds.
 		 */
 		private final Key<S,?> key;
+		/**
+		 * The epoch in which this entry was created.
+		 */
+		private final int epoch;
 		/**
 		 * Indicates whether this entry has been modified or not.
 		 */
@@ -262,10 +1197,28 @@ public class DirectoryStore<S>
 		 * The cached value of this entry. This may be <code>null</code> if the entry
 		 * has been read from disk yet.
 		 */
-		private Content value;
+		private volatile Content value;
+		/**
+		 * The file corresponding to this entry. This is determined from the key on
+		 * demand, and then cached since encoding a key can be expensive.
+		 */
+		private File file;
+		/**
+		 * The state of the file on disk when this entry was last read from or written
+		 * to it, or <code>null</code> if the file did not exist.
+		 */
+		private Stamp stamp;
+		/**
+		 * The serialised form of this entry's value awaiting a write-behind flush, or
+		 * <code>null</code> if none.
+		 */
+		private byte[] pending;
 
-		public Entry(Key<S, ?> key) {
+		public Entry(Key<S, ?> key, File file, Stamp stamp) {
 			this.key = key;
+			this.file = file;
+			this.stamp = stamp;
+			this.epoch = DirectoryStore.this.epoch;
 			this.dirty = false;
 		}
 
@@ -276,12 +1229,42 @@ public class DirectoryStore<S>
 
 		@Override
 		public Content get() {
+			Content value = this.value;
+			if (value != null) {
+				return value;
+			}
+			// NOTE: entries may be loaded concurrently (e.g. by a prefetcher), hence
+			// ensure each is loaded at most once and never overwrites a value being set.
+			synchronized (this) {
+				return load();
+			}
+		}
+
+		private Content load() {
 			try {
 				if (value == null) {
+					StoreEvents.Load event = new StoreEvents.Load();
+					event.begin();
+					long start = System.nanoTime();
 					File f = getFile();
-					FileInputStream fin = new FileInputStream(f);
-					value = key.contentType().read(fin);
-					fin.close();
+					Compression c = policy();
+					ContentCache cc = cache;
+					if (cc != null) {
+						byte[] bytes = Files.readAllBytes(f.toPath());
+						value = cc.read(key.contentType(), bytes,
+								in -> (c == null) ? StoreEvents.read(key, in) : c.read(key, in));
+					} else {
+						FileInputStream fin = new FileInputStream(f);
+						value = (c == null) ? StoreEvents.read(key, fin) : c.read(key, fin);
+						fin.close();
+					}
+					if (metrics != null) {
+						metrics.record("load", key.contentType(), System.nanoTime() - start, f.length());
+					}
+					if (event.shouldCommit()) {
+						event.set(key, f.length());
+						event.commit();
+					}
 				}
 			} catch (IOException e) {
 				throw new RuntimeException(e);
@@ -289,39 +1272,100 @@ public class DirectoryStore<S>
 			return value;
 		}
 
-		public void set(Content value) {
+		/**
+		 * Ensure the value of this entry is held in memory, such that it no longer
+		 * depends on the file on disk. If the value cannot be loaded (e.g. because the
+		 * file was deleted by another), then it remains unloaded.
+		 */
+		public void pin() {
+			try {
+				get();
+			} catch (RuntimeException e) {
+				// Reading the file later will fail in the same way
+			}
+		}
+
+		public synchronized void set(Content value) {
 			if (this.value != value) {
 				this.dirty = true;
 				this.value = value;
 			}
 		}
 
-		@SuppressWarnings("unchecked")
-		public void flush() throws IOException {
+		/**
+		 * Write this entry to disk if it has been modified.
+		 *
+		 * @return <code>true</code> if the entry was written.
+		 * @throws IOException
+		 */
+		public boolean flush() throws IOException {
 			// Only flush if the entry is actually dirty
 			if (dirty) {
-				File f = getFile();
-				if (!f.exists()) {
-					// Create any enclosing directories as necessary.
-					f.getParentFile().mkdirs();
-					// Attempt to create the file.
-					if (!f.createNewFile()) {
-						// Error creating file occurred
-						return;
-					}
+				stamp = write(pending);
+				pending = null;
+				dirty = false;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Write this entry to disk, using given serialised bytes or (if
+		 * <code>null</code>) by serialising its current value.
+		 *
+		 * @param bytes
+		 * @return The stamp of the file written.
+		 * @throws IOException
+		 */
+		public Stamp write(byte[] bytes) throws IOException {
+			StoreEvents.Flush event = new StoreEvents.Flush();
+			event.begin();
+			long start = System.nanoTime();
+			File f = getFile();
+			// Create any enclosing directories as necessary.
+			f.getParentFile().mkdirs();
+			// Write to a temporary file, and then move it into place. This ensures
+			// readers in other processes never see a partially written file.
+			File tmp = new File(f.getParentFile(), INTERNAL_PREFIX + f.getName() + ".tmp");
+			try (FileOutputStream fout = new FileOutputStream(tmp)) {
+				Compression c = policy();
+				if (c != null) {
+					c.write(key, fout, bytes != null ? bytes : serialise(key, value));
+				} else if (bytes != null) {
+					fout.write(bytes);
+				} else {
+					StoreEvents.write(key, fout, value);
 				}
-				// File now exists, therefore we can write to it.
-				FileOutputStream fout = new FileOutputStream(f);
-				Content.Type ct = value.contentType();
-				ct.write(fout, value);
-				fout.close();
 			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			if (metrics != null) {
+				metrics.record("flush", key.contentType(), System.nanoTime() - start, f.length());
+			}
+			if (event.shouldCommit()) {
+				event.set(key, f.length());
+				event.commit();
+			}
+			return Stamp.of(f);
+		}
+
+		/**
+		 * Determine whether the file corresponding to this entry has been written or
+		 * deleted by another since this entry last read or wrote it.
+		 *
+		 * @return
+		 */
+		public boolean isModifiedExternally() {
+			return !Objects.equals(stamp, Stamp.of(getFile()));
 		}
 
 		private File getFile() {
-			String filename = encdec.encode(key);
+			if (file == null) {
+				String filename = encdec.encode(key);
+				file = new File(dir, filename);
+			}
 			// Done.
-			return new File(dir, filename);
+			return file;
 		}
 
 		@Override
@@ -342,7 +1386,10 @@ public class DirectoryStore<S>
 			for (int i = 0; i != contents.length; ++i) {
 				File ith = contents[i];
 				//
-				if (ith.isDirectory()) {
+				if (ith.getName().startsWith(INTERNAL_PREFIX)) {
+					// Skip files used for coordination
+					continue;
+				} else if (ith.isDirectory()) {
 					findAll(n - 1, ith, filter, files);
 				} else {
 					files.add(ith);
@@ -19,13 +19,32 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Flow;
 import java.util.function.Predicate;
 
+import jbuildstore.core.Batch;
 import jbuildstore.core.Content;
 import jbuildstore.core.Key;
 
 public class HashMapStore<S> implements Content.Store<S>, Iterable<Content.Entry<S>> {
-	private final HashMap<Key<S, ?>, Content> map;
+	/**
+	 * The current contents of this store. This is replaced with a copy when written
+	 * after a snapshot has been taken, such that snapshots are never modified.
+	 */
+	private volatile HashMap<Key<S, ?>, Content> map;
+	/**
+	 * Indicates whether the current map is shared with one or more snapshots.
+	 */
+	private boolean shared;
+	/**
+	 * Metrics into which internal events are recorded, or <code>null</code> if
+	 * none.
+	 */
+	private volatile Metrics metrics;
+	/**
+	 * Publishes changes made to this store.
+	 */
+	private final ChangePublisher<S> changes = new ChangePublisher<>();
 
 	public HashMapStore() {
 		this.map = new HashMap<>();
@@ -39,6 +58,159 @@ public class HashMapStore<S> implements Content.Store<S>, Iterable<Content.Entry
 
 	@Override
 	public <T extends Content> List<T> getAll(Predicate<Key<S,?>> query) throws IOException {
+		return getAll(map, query);
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		return match(map, query);
+	}
+
+	@Override
+	public synchronized <T extends Content> void put(Key<S,T> key, T value) {
+		if(key.contentType() != value.contentType()) {
+			throw new IllegalArgumentException("invalid key-value pair");
+		}
+		unshare().put(key, value);
+		changes.publish(ChangePublisher.Kind.PUT, key);
+	}
+
+	@Override
+	public synchronized void remove(Key<S,?> key) {
+		if (unshare().remove(key) != null) {
+			changes.publish(ChangePublisher.Kind.REMOVE, key);
+		}
+	}
+
+	@Override
+	public synchronized Content.Source<S> snapshot() {
+		shared = true;
+		return new Snapshot<>(map);
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		return new Batch<>(this::commit);
+	}
+
+	@Override
+	public Iterator<Content.Entry<S>> iterator() {
+		return iterator(map);
+	}
+
+	@Override
+	public void synchronise() throws IOException {
+		throw new UnsupportedOperationException("implement me");
+	}
+
+	/**
+	 * Get the publisher of changes made to this store. Specifically, a <code>PUT</code>
+	 * (resp. <code>REMOVE</code>) is published for every entry written (resp.
+	 * removed). Removing a key which has no entry publishes nothing.
+	 *
+	 * @return
+	 */
+	public Flow.Publisher<ChangePublisher.Change<S>> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Set the metrics into which this store records its internal events. Since
+	 * values are held in memory, the only such events are copies made after a
+	 * snapshot (<code>copy</code>). Recording is disabled by supplying
+	 * <code>null</code>.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public String toString() {
+		return map.toString();
+	}
+
+	/**
+	 * Apply a set of changes staged by a transaction in one step.
+	 *
+	 * @param changes
+	 */
+	private synchronized void commit(Map<Key<S, ?>, Content> changes) {
+		HashMap<Key<S, ?>, Content> map = unshare();
+		for (Map.Entry<Key<S, ?>, Content> e : changes.entrySet()) {
+			if (e.getValue() == null) {
+				if (map.remove(e.getKey()) != null) {
+					this.changes.publish(ChangePublisher.Kind.REMOVE, e.getKey());
+				}
+			} else {
+				map.put(e.getKey(), e.getValue());
+				this.changes.publish(ChangePublisher.Kind.PUT, e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Get the map which can be safely written. If the current map is shared with a
+	 * snapshot, then it is first copied.
+	 *
+	 * @return
+	 */
+	private HashMap<Key<S, ?>, Content> unshare() {
+		if (shared) {
+			map = new HashMap<>(map);
+			shared = false;
+			if (metrics != null) {
+				metrics.count("copy", null);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * An immutable view of a <code>HashMapStore</code> at a given point in time.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	private static class Snapshot<S> implements Content.Source<S>, Iterable<Content.Entry<S>> {
+		private final HashMap<Key<S, ?>, Content> map;
+
+		public Snapshot(HashMap<Key<S, ?>, Content> map) {
+			this.map = map;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T extends Content> T get(Key<S, T> key) {
+			return (T) map.get(key);
+		}
+
+		@Override
+		public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) {
+			return HashMapStore.getAll(map, query);
+		}
+
+		@Override
+		public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+			return HashMapStore.match(map, query);
+		}
+
+		@Override
+		public Iterator<Content.Entry<S>> iterator() {
+			return HashMapStore.iterator(map);
+		}
+
+		@Override
+		public String toString() {
+			return map.toString();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <S, T extends Content> List<T> getAll(HashMap<Key<S, ?>, Content> map,
+			Predicate<Key<S, ?>> query) {
 		ArrayList<T> items = new ArrayList<>();
 		for(Map.Entry<Key<S,?>,Content> e : map.entrySet()) {
 			if(query.test(e.getKey())) {
@@ -48,8 +220,9 @@ public class HashMapStore<S> implements Content.Store<S>, Iterable<Content.Entry
 		return items;
 	}
 
-	@Override
-	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+	@SuppressWarnings("unchecked")
+	private static <S, T extends Content> List<Key<S, T>> match(HashMap<Key<S, ?>, Content> map,
+			Predicate<Key<S, ?>> query) {
 		ArrayList<Key<S, T>> items = new ArrayList<>();
 		for(Map.Entry<Key<S,?>,Content> e : map.entrySet()) {
 			if(query.test(e.getKey())) {
@@ -59,21 +232,7 @@ public class HashMapStore<S> implements Content.Store<S>, Iterable<Content.Entry
 		return items;
 	}
 
-	@Override
-	public <T extends Content> void put(Key<S,T> key, T value) {
-		if(key.contentType() != value.contentType()) {
-			throw new IllegalArgumentException("invalid key-value pair");
-		}
-		map.put(key, value);
-	}
-
-	@Override
-	public void remove(Key<S,?> key) {
-		map.remove(key);
-	}
-
-	@Override
-	public Iterator<Content.Entry<S>> iterator() {
+	private static <S> Iterator<Content.Entry<S>> iterator(HashMap<Key<S, ?>, Content> map) {
 		final Iterator<Map.Entry<Key<S, ?>, Content>> iter = map.entrySet().iterator();
 		//
 		return new Iterator<>() {
@@ -107,14 +266,4 @@ public class HashMapStore<S> implements Content.Store<S>, Iterable<Content.Entry
 			}
 		};
 	}
-
-	@Override
-	public void synchronise() throws IOException {
-		throw new UnsupportedOperationException("implement me");
-	}
-
-	@Override
-	public String toString() {
-		return map.toString();
-	}
 }
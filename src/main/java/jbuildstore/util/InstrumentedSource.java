@@ -0,0 +1,84 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Wraps an arbitrary <code>Content.Source</code> and records the latency of
+ * every operation performed on it into a given set of <code>Metrics</code>.
+ * Lookups by key are additionally recorded against the content type of the
+ * key.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class InstrumentedSource<S> implements Content.Source<S> {
+	protected final Content.Source<S> source;
+	protected final Metrics metrics;
+
+	public InstrumentedSource(Content.Source<S> source, Metrics metrics) {
+		if (source == null) {
+			throw new IllegalArgumentException("source required");
+		} else if (metrics == null) {
+			throw new IllegalArgumentException("metrics required");
+		}
+		this.source = source;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		long start = System.nanoTime();
+		T value = source.get(key);
+		metrics.record(value == null ? "get.miss" : "get", key.contentType(), System.nanoTime() - start);
+		return value;
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		long start = System.nanoTime();
+		List<T> values = source.getAll(query);
+		metrics.record("getAll", null, System.nanoTime() - start);
+		return values;
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		long start = System.nanoTime();
+		List<Key<S, T>> keys = source.match(query);
+		metrics.record("match", null, System.nanoTime() - start);
+		return keys;
+	}
+
+	/**
+	 * Get the metrics being recorded by this source.
+	 *
+	 * @return
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+}
@@ -0,0 +1,103 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.IOException;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Wraps an arbitrary <code>Content.Store</code> and records the latency of
+ * every operation performed on it into a given set of <code>Metrics</code>.
+ * Snapshots and transactions obtained through this store are instrumented as
+ * well. Combined with the internal events reported by the builtin stores (see
+ * e.g. <code>DirectoryStore.setMetrics()</code>), this provides a picture of
+ * where time is spent in a store.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class InstrumentedStore<S> extends InstrumentedSource<S> implements Content.Store<S> {
+	private final Content.Store<S> store;
+
+	public InstrumentedStore(Content.Store<S> store, Metrics metrics) {
+		super(store, metrics);
+		this.store = store;
+	}
+
+	@Override
+	public <T extends Content> void put(Key<S, T> key, T value) {
+		long start = System.nanoTime();
+		store.put(key, value);
+		metrics.record("put", key.contentType(), System.nanoTime() - start);
+	}
+
+	@Override
+	public void remove(Key<S, ?> key) {
+		long start = System.nanoTime();
+		store.remove(key);
+		metrics.record("remove", key.contentType(), System.nanoTime() - start);
+	}
+
+	@Override
+	public void synchronise() throws IOException {
+		long start = System.nanoTime();
+		store.synchronise();
+		metrics.record("synchronise", null, System.nanoTime() - start);
+	}
+
+	@Override
+	public Content.Source<S> snapshot() {
+		long start = System.nanoTime();
+		Content.Source<S> snapshot = store.snapshot();
+		metrics.record("snapshot", null, System.nanoTime() - start);
+		return new InstrumentedSource<>(snapshot, metrics);
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		final Content.Transaction<S> tx = store.begin();
+		return new Content.Transaction<S>() {
+			@Override
+			public <T extends Content> void put(Key<S, T> key, T value) {
+				tx.put(key, value);
+			}
+
+			@Override
+			public void remove(Key<S, ?> key) {
+				tx.remove(key);
+			}
+
+			@Override
+			public void commit() {
+				long start = System.nanoTime();
+				tx.commit();
+				metrics.record("commit", null, System.nanoTime() - start);
+			}
+
+			@Override
+			public void rollback() {
+				tx.rollback();
+				metrics.count("rollback", null);
+			}
+
+			@Override
+			public void close() {
+				tx.close();
+			}
+		};
+	}
+}
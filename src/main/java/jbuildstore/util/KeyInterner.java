@@ -0,0 +1,197 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * A factory for keys which ensures there is exactly one instance of every
+ * distinct key in use. Interned keys cache their hash code and their encoded
+ * form (e.g. filename). Since there is only one instance for each key,
+ * comparing interned keys typically succeeds on reference equality without
+ * examining their identifiers. An interner is also a <code>Key.Map</code> which
+ * wraps an existing mapping, such that it can be supplied directly to a store
+ * (e.g. <code>DirectoryStore</code>). In this case, every key decoded by the
+ * store is interned, and encoding an interned key simply returns its cached
+ * encoding. Interned keys are only weakly held, such that the interner retains
+ * no more keys than are in use elsewhere (e.g. by stores). Thus, a key which is
+ * no longer in use may later be interned as a new instance (and encoded again).
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class KeyInterner<S> implements Key.Map<S, String> {
+	private final Key.Map<S, String> encdec;
+	/**
+	 * The interned keys, indexed by a plain copy of themselves (since the index
+	 * must not keep them alive).
+	 */
+	private final ConcurrentHashMap<Key<S, ?>, Ref<S>> keys;
+	/**
+	 * Receives references to interned keys which are no longer in use, whose
+	 * entries are then removed from the index.
+	 */
+	private final ReferenceQueue<Interned<S, ?>> collected;
+
+	public KeyInterner(Key.Map<S, String> encdec) {
+		if (encdec == null) {
+			throw new IllegalArgumentException("Content encoder/decoder is required");
+		}
+		this.encdec = encdec;
+		this.keys = new ConcurrentHashMap<>();
+		this.collected = new ReferenceQueue<>();
+	}
+
+	/**
+	 * Get the unique key for a given identifier and content type.
+	 *
+	 * @param <T>
+	 * @param id
+	 * @param contentType
+	 * @return
+	 */
+	public <T extends Content> Interned<S, T> intern(S id, Content.Type<T> contentType) {
+		return intern(new Key.Pair<>(id, contentType));
+	}
+
+	/**
+	 * Get the unique key equivalent to a given key.
+	 *
+	 * @param <T>
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Content> Interned<S, T> intern(Key<S, T> key) {
+		if (key instanceof Interned && ((Interned<S, T>) key).owner == this) {
+			return (Interned<S, T>) key;
+		}
+		expunge();
+		while (true) {
+			Ref<S> r = keys.get(key);
+			Interned<S, T> k = (r == null) ? null : (Interned<S, T>) r.get();
+			if (k != null) {
+				return k;
+			}
+			Interned<S, T> n = new Interned<>(this, key.id(), key.contentType());
+			Key.Pair<S, T> plain = new Key.Pair<>(key.id(), key.contentType());
+			Ref<S> nr = new Ref<>(plain, n, collected);
+			// Otherwise, another thread interned (or replaced) this key first, so retry
+			if (r == null ? keys.putIfAbsent(plain, nr) == null : keys.replace(plain, r, nr)) {
+				return n;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of keys currently interned. This may include keys which are
+	 * no longer in use, but have yet to be collected.
+	 *
+	 * @return
+	 */
+	public int size() {
+		expunge();
+		return keys.size();
+	}
+
+	@Override
+	public String encode(Key<S, ?> key) {
+		return intern(key).getEncoded();
+	}
+
+	@Override
+	public Key<S, ?> decode(String t) {
+		Key<S, ?> key = encdec.decode(t);
+		if (key == null) {
+			return null;
+		}
+		Interned<S, ?> k = intern(key);
+		if (k.encoded == null) {
+			// Avoid encoding this key again later
+			k.encoded = t;
+		}
+		return k;
+	}
+
+	/**
+	 * Remove the entries of all interned keys which have been collected.
+	 */
+	@SuppressWarnings("unchecked")
+	private void expunge() {
+		Reference<? extends Interned<S, ?>> r;
+		while ((r = collected.poll()) != null) {
+			Ref<S> ref = (Ref<S>) r;
+			// Only if not already replaced by a new instance
+			keys.remove(ref.key, ref);
+		}
+	}
+
+	/**
+	 * A weak reference to an interned key, which records the entry it belongs to.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	private static final class Ref<S> extends WeakReference<Interned<S, ?>> {
+		private final Key<S, ?> key;
+
+		public Ref(Key<S, ?> key, Interned<S, ?> interned, ReferenceQueue<Interned<S, ?>> queue) {
+			super(interned, queue);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A key which has been interned by a given interner.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 * @param <T>
+	 */
+	public static final class Interned<S, T extends Content> extends Key.Pair<S, T> {
+		private final KeyInterner<S> owner;
+		/**
+		 * Cached encoding of this key, or <code>null</code> if not yet computed.
+		 */
+		private volatile String encoded;
+
+		private Interned(KeyInterner<S> owner, S id, Content.Type<T> contentType) {
+			super(id, contentType);
+			this.owner = owner;
+		}
+
+		/**
+		 * Get the encoded form of this key (e.g. its filename).
+		 *
+		 * @return
+		 */
+		public String getEncoded() {
+			String e = encoded;
+			if (e == null) {
+				e = owner.encdec.encode(this);
+				encoded = e;
+			}
+			return e;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jbuildstore.core.Content;
+
+/**
+ * A collection of low overhead counters and latency histograms for recording
+ * the work performed by a store. Metrics are recorded against named operations
+ * (e.g. <code>get</code> or <code>flush</code>) and, where a content type is
+ * given, also against the operation for that content type (e.g.
+ * <code>get:txt</code>). All counters are implemented with
+ * <code>LongAdder</code> such that concurrent updates do not contend, and
+ * latencies are recorded in power-of-two buckets. A consistent-enough view can
+ * be taken at any time with <code>snapshot()</code>.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class Metrics {
+	private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+	/**
+	 * Record that a given operation took a given amount of time, and involved a
+	 * given number of bytes.
+	 *
+	 * @param operation Name of the operation.
+	 * @param type      Content type involved in the operation, or
+	 *                  <code>null</code> if none.
+	 * @param nanos     Duration of the operation in nanoseconds.
+	 * @param bytes     Number of bytes read or written by the operation.
+	 */
+	public void record(String operation, Content.Type<?> type, long nanos, long bytes) {
+		Histogram h = histogram(operation);
+		h.record(nanos, bytes);
+		if (type != null) {
+			h.forType(type).record(nanos, bytes);
+		}
+	}
+
+	/**
+	 * Record that a given operation, which does not itself perform I/O (e.g. an
+	 * in-memory lookup), took a given amount of time.
+	 *
+	 * @param operation Name of the operation.
+	 * @param type      Content type involved in the operation, or
+	 *                  <code>null</code> if none.
+	 * @param nanos     Duration of the operation in nanoseconds.
+	 */
+	public void record(String operation, Content.Type<?> type, long nanos) {
+		record(operation, type, nanos, 0);
+	}
+
+	/**
+	 * Record the occurrence of an event which has no meaningful duration (e.g. a
+	 * cache hit).
+	 *
+	 * @param event
+	 * @param type
+	 */
+	public void count(String event, Content.Type<?> type) {
+		record(event, type, 0);
+	}
+
+	/**
+	 * Discard all recorded metrics.
+	 */
+	public void reset() {
+		histograms.clear();
+	}
+
+	/**
+	 * Take a snapshot of the metrics recorded thus far. The snapshot is a sorted
+	 * map from operation names to summaries.
+	 *
+	 * @return
+	 */
+	public Map<String, Summary> snapshot() {
+		TreeMap<String, Summary> rs = new TreeMap<>();
+		for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			rs.put(e.getKey(), e.getValue().summarise());
+		}
+		return Collections.unmodifiableMap(rs);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Summary> e : snapshot().entrySet()) {
+			sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private Histogram histogram(String operation) {
+		Histogram h = histograms.get(operation);
+		if (h == null) {
+			h = histograms.computeIfAbsent(operation, o -> new Histogram(o));
+		}
+		return h;
+	}
+
+	/**
+	 * Records the distribution of latencies for a given operation. Each bucket
+	 * <code>i</code> counts operations whose duration in nanoseconds lies in the
+	 * range <code>[2^(i-1),2^i)</code>.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private class Histogram {
+		private final String name;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder[] buckets = new LongAdder[64];
+		/**
+		 * Caches the histogram for this operation against each content type (e.g.
+		 * <code>get:txt</code>), such that recording against a type does not
+		 * construct its name every time. Types with the same suffix share a
+		 * histogram.
+		 */
+		private final ConcurrentHashMap<Content.Type<?>, Histogram> types = new ConcurrentHashMap<>();
+
+		public Histogram(String name) {
+			this.name = name;
+			for (int i = 0; i != buckets.length; ++i) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		public Histogram forType(Content.Type<?> type) {
+			Histogram h = types.get(type);
+			if (h == null) {
+				h = types.computeIfAbsent(type, t -> histogram(name + ":" + t.suffix()));
+			}
+			return h;
+		}
+
+		public void record(long nanos, long bytes) {
+			this.count.increment();
+			this.nanos.add(nanos);
+			this.bytes.add(bytes);
+			this.buckets[64 - Long.numberOfLeadingZeros(Math.max(0, nanos))].increment();
+		}
+
+		public Summary summarise() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i != counts.length; ++i) {
+				counts[i] = buckets[i].sum();
+			}
+			return new Summary(count.sum(), nanos.sum(), bytes.sum(), counts);
+		}
+	}
+
+	/**
+	 * An immutable summary of the metrics recorded for a given operation.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static class Summary {
+		private final long count;
+		private final long nanos;
+		private final long bytes;
+		private final long[] buckets;
+
+		public Summary(long count, long nanos, long bytes, long[] buckets) {
+			this.count = count;
+			this.nanos = nanos;
+			this.bytes = bytes;
+			this.buckets = buckets;
+		}
+
+		/**
+		 * Get the number of times this operation was recorded.
+		 *
+		 * @return
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the total time spent in this operation (in nanoseconds).
+		 *
+		 * @return
+		 */
+		public long getTotalNanos() {
+			return nanos;
+		}
+
+		/**
+		 * Get the total number of bytes read or written by this operation. This is
+		 * only recorded for operations which perform I/O (e.g. <code>load</code> and
+		 * <code>flush</code>) and is zero otherwise.
+		 *
+		 * @return
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the mean duration of this operation (in nanoseconds).
+		 *
+		 * @return
+		 */
+		public double getMeanNanos() {
+			return count == 0 ? 0 : (double) nanos / count;
+		}
+
+		/**
+		 * Get an upper bound on the given percentile of durations for this operation
+		 * (in nanoseconds). Since durations are recorded in power-of-two buckets, this
+		 * is accurate to within a factor of two.
+		 *
+		 * @param percentile A value between 0 and 100.
+		 * @return
+		 */
+		public long getPercentileNanos(double percentile) {
+			long threshold = (long) Math.ceil((count * percentile) / 100);
+			long seen = 0;
+			for (int i = 0; i != buckets.length; ++i) {
+				seen += buckets[i];
+				if (seen >= threshold && seen > 0) {
+					return i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE : (1L << i) - 1);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + ", bytes=" + bytes + ", mean=" + (long) getMeanNanos() + "ns, p50<="
+					+ getPercentileNanos(50) + "ns, p99<=" + getPercentileNanos(99) + "ns";
+		}
+	}
+}
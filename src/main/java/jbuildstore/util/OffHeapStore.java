@@ -0,0 +1,584 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Batch;
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * An in-memory store which holds values in their serialised form outside of the
+ * Java heap, rather than as live objects (as for <code>HashMapStore</code>).
+ * Thus, the cost of garbage collection does not grow with the total amount of
+ * content held. Values are serialised when written, and appended to large
+ * direct buffers ("slabs"). They are located using an open-addressing hash
+ * table built from primitive arrays, and are deserialised when read. To avoid
+ * repeatedly deserialising the same values, the most recently read values are
+ * retained in a small on-heap cache. Observe that keys themselves remain on the
+ * heap.
+ * <p>
+ * Since slabs are only ever appended to, space occupied by values which have
+ * been overwritten or removed is not reclaimed immediately. Instead, it is
+ * reclaimed when the store is synchronised, by compacting all live values into
+ * new slabs once the amount of wasted space exceeds that in use.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class OffHeapStore<S> implements Content.Store<S> {
+	/**
+	 * Default size of each slab (in bytes).
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	/**
+	 * Default maximum number of deserialised values retained on the heap.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	private final int slabSize;
+	/**
+	 * The current index of this store. This is replaced with a copy when written
+	 * after a snapshot has been taken, such that snapshots are never modified.
+	 */
+	private volatile Index<S> index;
+	/**
+	 * Indicates whether the current index is shared with one or more snapshots.
+	 */
+	private boolean shared;
+	/**
+	 * Recently read values, ordered by recency of access. This is guarded by the
+	 * store's lock.
+	 */
+	private final LinkedHashMap<Key<S, ?>, Content> cache;
+
+	public OffHeapStore() {
+		this(DEFAULT_SLAB_SIZE, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Construct an off-heap store with a given slab size (in bytes), which retains
+	 * at most a given number of deserialised values on the heap.
+	 *
+	 * @param slabSize
+	 * @param cacheSize
+	 */
+	public OffHeapStore(int slabSize, int cacheSize) {
+		if (slabSize <= 0) {
+			throw new IllegalArgumentException("invalid slab size");
+		} else if (cacheSize < 0) {
+			throw new IllegalArgumentException("invalid cache size");
+		}
+		this.slabSize = slabSize;
+		this.index = new Index<>(16);
+		this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key<S, ?>, Content> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		byte[] bytes;
+		long version;
+		synchronized (this) {
+			T value = (T) cache.get(key);
+			if (value != null) {
+				return value;
+			}
+			int i = index.find(key);
+			if (i < 0) {
+				return null;
+			}
+			// NOTE: the serialised value must be copied out under the lock, since the
+			// slot (and the list of slabs) can be modified by a concurrent write.
+			bytes = index.read(i);
+			version = index.version[i];
+		}
+		// Deserialise outside the lock, since this is typically the expensive part
+		T value = key.contentType().read(new ByteArrayInputStream(bytes));
+		synchronized (this) {
+			// Only cache if the value was not overwritten in the meantime
+			int j = index.find(key);
+			if (j >= 0 && index.version[j] == version) {
+				cache.put(key, value);
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		ArrayList<T> rs = new ArrayList<>();
+		for (Key<S, T> key : this.<T>match(query)) {
+			T value = get(key);
+			if (value != null) {
+				rs.add(value);
+			}
+		}
+		return rs;
+	}
+
+	@Override
+	public synchronized <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		return index.match(query);
+	}
+
+	@Override
+	public synchronized <T extends Content> void put(Key<S, T> key, T value) {
+		if (key == null) {
+			throw new IllegalArgumentException("key required");
+		} else if (key.contentType() != value.contentType()) {
+			throw new IllegalArgumentException("invalid key-value pair");
+		}
+		byte[] bytes = serialise(key, value);
+		unshare().put(key, bytes, slabSize);
+		cache.put(key, value);
+	}
+
+	@Override
+	public synchronized void remove(Key<S, ?> key) {
+		unshare().remove(key);
+		cache.remove(key);
+	}
+
+	@Override
+	public synchronized Content.Source<S> snapshot() {
+		shared = true;
+		return new Snapshot<>(index);
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		return new Batch<>(this::commit);
+	}
+
+	/**
+	 * Reclaim space occupied by overwritten or removed values, if this exceeds the
+	 * space occupied by live values. Since values are held only in memory, nothing
+	 * is written.
+	 */
+	@Override
+	public synchronized void synchronise() throws IOException {
+		Index<S> index = this.index;
+		if (index.garbage > 0 && index.garbage >= index.live) {
+			// NOTE: compaction always creates a new index, hence snapshots are unaffected.
+			this.index = index.compact(slabSize);
+			this.shared = false;
+		}
+	}
+
+	/**
+	 * Get the number of entries in this store.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return index.size;
+	}
+
+	/**
+	 * Get the number of bytes occupied by live values.
+	 *
+	 * @return
+	 */
+	public long getLiveBytes() {
+		return index.live;
+	}
+
+	/**
+	 * Get the total number of bytes allocated off-heap, including space not yet
+	 * used and space not yet reclaimed.
+	 *
+	 * @return
+	 */
+	public long getAllocatedBytes() {
+		long total = 0;
+		for (ByteBuffer b : index.slabs) {
+			total += b.capacity();
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return index.match(k -> true).toString();
+	}
+
+	private synchronized void commit(Map<Key<S, ?>, Content> changes) {
+		// Serialise first, so that a failure leaves this store unchanged
+		LinkedHashMap<Key<S, ?>, byte[]> serialised = new LinkedHashMap<>();
+		for (Map.Entry<Key<S, ?>, Content> e : changes.entrySet()) {
+			serialised.put(e.getKey(), e.getValue() == null ? null : serialise(e.getKey(), e.getValue()));
+		}
+		Index<S> index = unshare();
+		for (Map.Entry<Key<S, ?>, byte[]> e : serialised.entrySet()) {
+			if (e.getValue() == null) {
+				index.remove(e.getKey());
+				cache.remove(e.getKey());
+			} else {
+				index.put(e.getKey(), e.getValue(), slabSize);
+				cache.put(e.getKey(), changes.get(e.getKey()));
+			}
+		}
+	}
+
+	/**
+	 * Get the index which can be safely written. If the current index is shared
+	 * with a snapshot, then it is first copied.
+	 *
+	 * @return
+	 */
+	private Index<S> unshare() {
+		if (shared) {
+			index = index.copy();
+			shared = false;
+		}
+		return index;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static byte[] serialise(Key<?, ?> key, Content value) {
+		try {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			Content.Type ct = key.contentType();
+			ct.write(bout, value);
+			return bout.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("cannot serialise " + key, e);
+		}
+	}
+
+	/**
+	 * An immutable view of an <code>OffHeapStore</code> at a given point in time.
+	 * Values read through a snapshot are not cached.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	private static class Snapshot<S> implements Content.Source<S> {
+		private final Index<S> index;
+
+		public Snapshot(Index<S> index) {
+			this.index = index;
+		}
+
+		@Override
+		public <T extends Content> T get(Key<S, T> key) throws IOException {
+			int i = index.find(key);
+			return i < 0 ? null : key.contentType().read(new ByteArrayInputStream(index.read(i)));
+		}
+
+		@Override
+		public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+			ArrayList<T> rs = new ArrayList<>();
+			for (Key<S, T> key : this.<T>match(query)) {
+				rs.add(get(key));
+			}
+			return rs;
+		}
+
+		@Override
+		public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+			return index.match(query);
+		}
+
+		@Override
+		public String toString() {
+			return index.match(k -> true).toString();
+		}
+	}
+
+	/**
+	 * An open-addressing hash table (with linear probing) mapping keys to the
+	 * location of their serialised values, along with the slabs holding them. Slots
+	 * are spread across parallel primitive arrays, such that the table itself
+	 * consists of only a handful of objects.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	private static final class Index<S> {
+		private Key<S, ?>[] keys;
+		private int[] hashes;
+		private int[] slab;
+		private int[] offset;
+		private int[] length;
+		/**
+		 * The version of the value in each slot. This is taken from
+		 * <code>versions</code> whenever a value is written, and is preserved by
+		 * compaction (which does not change values). Unlike its location, a value's
+		 * version is never reused (e.g. after compaction).
+		 */
+		private long[] version;
+		private int size;
+		/**
+		 * Number of values written thus far, which is carried over to copies and
+		 * compactions.
+		 */
+		private long versions;
+		/**
+		 * The slabs holding serialised values. Only the last slab is appended to, and
+		 * <code>fill</code> gives the number of bytes used in it.
+		 */
+		private final ArrayList<ByteBuffer> slabs;
+		private int fill;
+		/**
+		 * Number of bytes occupied by live (resp. dead) values.
+		 */
+		private long live;
+		private long garbage;
+
+		public Index(int capacity) {
+			this.keys = newKeys(capacity);
+			this.hashes = new int[capacity];
+			this.slab = new int[capacity];
+			this.offset = new int[capacity];
+			this.length = new int[capacity];
+			this.version = new long[capacity];
+			this.slabs = new ArrayList<>();
+		}
+
+		private Index(Index<S> other) {
+			this.keys = other.keys.clone();
+			this.hashes = other.hashes.clone();
+			this.slab = other.slab.clone();
+			this.offset = other.offset.clone();
+			this.length = other.length.clone();
+			this.version = other.version.clone();
+			this.size = other.size;
+			this.versions = other.versions;
+			this.slabs = new ArrayList<>(other.slabs);
+			this.fill = other.fill;
+			this.live = other.live;
+			this.garbage = other.garbage;
+		}
+
+		public Index<S> copy() {
+			return new Index<>(this);
+		}
+
+		/**
+		 * Find the slot holding a given key, or return a negative value if there is
+		 * none.
+		 *
+		 * @param key
+		 * @return
+		 */
+		public int find(Key<S, ?> key) {
+			int h = hash(key);
+			int mask = keys.length - 1;
+			for (int i = h & mask; keys[i] != null; i = (i + 1) & mask) {
+				if (hashes[i] == h && keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Read the serialised value in a given slot.
+		 *
+		 * @param i
+		 * @return
+		 */
+		public byte[] read(int i) {
+			byte[] bytes = new byte[length[i]];
+			ByteBuffer b = slabs.get(slab[i]).duplicate();
+			b.position(offset[i]);
+			b.get(bytes);
+			return bytes;
+		}
+
+		/**
+		 * Write the serialised value for a given key.
+		 *
+		 * @param key
+		 * @param bytes
+		 * @param slabSize
+		 * @return The slot holding the key.
+		 */
+		public int put(Key<S, ?> key, byte[] bytes, int slabSize) {
+			if ((size + 1) * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			int h = hash(key);
+			int mask = keys.length - 1;
+			int i = h & mask;
+			while (keys[i] != null && !(hashes[i] == h && keys[i].equals(key))) {
+				i = (i + 1) & mask;
+			}
+			if (keys[i] == null) {
+				keys[i] = key;
+				hashes[i] = h;
+				size = size + 1;
+			} else {
+				live -= length[i];
+				garbage += length[i];
+			}
+			append(i, bytes, slabSize);
+			return i;
+		}
+
+		public void remove(Key<S, ?> key) {
+			int i = find(key);
+			if (i < 0) {
+				return;
+			}
+			live -= length[i];
+			garbage += length[i];
+			size = size - 1;
+			// Shift subsequent entries in the same cluster back, so that lookups never
+			// encounter a hole before their key.
+			int mask = keys.length - 1;
+			int hole = i;
+			for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+				int home = hashes[j] & mask;
+				// Move j into the hole if its home does not lie cyclically in (hole,j]
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					move(j, hole);
+					hole = j;
+				}
+			}
+			keys[hole] = null;
+		}
+
+		public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+			ArrayList<Key<S, T>> rs = new ArrayList<>();
+			for (Key<S, ?> k : keys) {
+				if (k != null && query.test(k)) {
+					rs.add(cast(k));
+				}
+			}
+			return rs;
+		}
+
+		/**
+		 * Create a new index containing only the live values of this index, packed
+		 * into new slabs.
+		 *
+		 * @param slabSize
+		 * @return
+		 */
+		public Index<S> compact(int slabSize) {
+			Index<S> r = new Index<>(keys.length);
+			r.versions = versions;
+			for (int i = 0; i != keys.length; ++i) {
+				if (keys[i] != null) {
+					int j = r.put(keys[i], read(i), slabSize);
+					r.version[j] = version[i];
+				}
+			}
+			return r;
+		}
+
+		/**
+		 * Append a serialised value to the last slab, allocating a new one if needed,
+		 * and record its location in a given slot.
+		 *
+		 * @param i
+		 * @param bytes
+		 * @param slabSize
+		 */
+		private void append(int i, byte[] bytes, int slabSize) {
+			ByteBuffer last = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+			if (last == null || last.capacity() - fill < bytes.length) {
+				// NOTE: values larger than a slab are given one of their own.
+				last = ByteBuffer.allocateDirect(Math.max(slabSize, bytes.length));
+				slabs.add(last);
+				fill = 0;
+			}
+			// NOTE: a snapshot may share this slab, but never reads beyond the space used
+			// when it was taken.
+			ByteBuffer b = last.duplicate();
+			b.position(fill);
+			b.put(bytes);
+			slab[i] = slabs.size() - 1;
+			offset[i] = fill;
+			length[i] = bytes.length;
+			version[i] = ++versions;
+			fill += bytes.length;
+			live += bytes.length;
+		}
+
+		private void move(int from, int to) {
+			keys[to] = keys[from];
+			hashes[to] = hashes[from];
+			slab[to] = slab[from];
+			offset[to] = offset[from];
+			length[to] = length[from];
+			version[to] = version[from];
+		}
+
+		private void resize(int capacity) {
+			Key<S, ?>[] oldKeys = keys;
+			int[] oldHashes = hashes, oldSlab = slab, oldOffset = offset, oldLength = length;
+			long[] oldVersion = version;
+			keys = newKeys(capacity);
+			hashes = new int[capacity];
+			slab = new int[capacity];
+			offset = new int[capacity];
+			length = new int[capacity];
+			version = new long[capacity];
+			int mask = capacity - 1;
+			for (int j = 0; j != oldKeys.length; ++j) {
+				if (oldKeys[j] != null) {
+					int i = oldHashes[j] & mask;
+					while (keys[i] != null) {
+						i = (i + 1) & mask;
+					}
+					keys[i] = oldKeys[j];
+					hashes[i] = oldHashes[j];
+					slab[i] = oldSlab[j];
+					offset[i] = oldOffset[j];
+					length[i] = oldLength[j];
+					version[i] = oldVersion[j];
+				}
+			}
+		}
+
+		private static int hash(Key<?, ?> key) {
+			int h = key.hashCode();
+			// Spread higher bits downwards, as for HashMap
+			return h ^ (h >>> 16);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <S> Key<S, ?>[] newKeys(int capacity) {
+			return (Key<S, ?>[]) new Key<?, ?>[capacity];
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <S, T extends Content> Key<S, T> cast(Key<S, ?> key) {
+			return (Key<S, T>) key;
+		}
+	}
+}
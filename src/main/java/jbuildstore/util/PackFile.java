@@ -0,0 +1,632 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * A read-only source backed by a single immutable file, which is intended for
+ * content that is written once and read many times (e.g. a published library).
+ * The file is memory mapped on opening, and holds an index based on a minimal
+ * perfect hash of the encoded keys. Thus, opening a pack file requires no
+ * scanning, lookups require a constant number of probes, and no state is held on
+ * the heap for individual entries. Pack files are created using a
+ * <code>PackFile.Writer</code>. The layout of a pack file is as follows:
+ *
+ * <pre>
+ * +--------+-------+-------+-------+------+
+ * | header | blobs | seeds | slots | keys |
+ * +--------+-------+-------+-------+------+
+ * </pre>
+ *
+ * Here, <code>blobs</code> holds the serialised value of each entry (deflated,
+ * if this makes it smaller). Blobs of at least a page are aligned to a page
+ * boundary, whilst smaller ones never span a page boundary. Then,
+ * <code>seeds</code> holds the displacement for each bucket of the perfect hash
+ * (following the "hash, displace and compress" scheme), <code>slots</code>
+ * holds a fixed-size record locating each entry's key and blob, and
+ * <code>keys</code> holds the encoded keys (in UTF-8). Observe that, since the
+ * file is mapped in one piece, it is limited to 2GB.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class PackFile<S> implements Content.Source<S>, Closeable {
+	/**
+	 * Identifies a pack file.
+	 */
+	public static final int MAGIC = 0x4A42504B; // "JBPK"
+	public static final int VERSION = 1;
+	/**
+	 * Size of a page, to which large blobs are aligned.
+	 */
+	public static final int PAGE_SIZE = 4096;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 32;
+	/**
+	 * Flag indicating a blob is deflated.
+	 */
+	private static final int DEFLATED = 1;
+	/**
+	 * Average number of keys per bucket of the perfect hash.
+	 */
+	private static final int BUCKET_SIZE = 4;
+
+	private final Key.Map<S, String> encdec;
+	private final File file;
+	private volatile ByteBuffer buffer;
+	private final int count;
+	private final int buckets;
+	private final int seeds;
+	private final int slots;
+	private final int keys;
+
+	/**
+	 * Open a given pack file.
+	 *
+	 * @param encdec
+	 * @param file
+	 * @throws IOException
+	 */
+	public PackFile(Key.Map<S, String> encdec, File file) throws IOException {
+		if (encdec == null) {
+			throw new IllegalArgumentException("Content encoder/decoder is required");
+		}
+		this.encdec = encdec;
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_SIZE) {
+				throw new IOException("invalid pack file (too short): " + file);
+			} else if (size > Integer.MAX_VALUE) {
+				throw new IOException("pack file too large: " + file);
+			}
+			// NOTE: the mapping remains valid after the channel is closed.
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (b.getInt(0) != MAGIC) {
+				throw new IOException("invalid pack file (bad magic): " + file);
+			} else if (b.getInt(4) != VERSION) {
+				throw new IOException("unsupported pack file version " + b.getInt(4) + ": " + file);
+			}
+			this.count = b.getInt(8);
+			this.buckets = b.getInt(12);
+			this.seeds = (int) b.getLong(16);
+			this.slots = (int) b.getLong(24);
+			this.keys = (int) b.getLong(32);
+			long end = b.getLong(40);
+			if (count < 0 || buckets <= 0 || end != size || seeds + 4L * buckets > slots
+					|| slots + (long) SLOT_SIZE * count > keys || keys > size) {
+				throw new IOException("invalid pack file (corrupt header): " + file);
+			}
+			this.buffer = b;
+		}
+	}
+
+	/**
+	 * Get the number of entries in this pack file.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return count;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		int slot = find(buffer(), encdec.encode(key).getBytes(StandardCharsets.UTF_8));
+		return slot < 0 ? null : (T) read(key, slot);
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		ArrayList<T> rs = new ArrayList<>();
+		ByteBuffer b = buffer();
+		for (int i = 0; i != count; ++i) {
+			Key<S, ?> key = key(b, i);
+			if (key != null && query.test(key)) {
+				rs.add(cast(read(key, i)));
+			}
+		}
+		return rs;
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		ArrayList<Key<S, T>> rs = new ArrayList<>();
+		ByteBuffer b = buffer();
+		for (int i = 0; i != count; ++i) {
+			Key<S, ?> key = key(b, i);
+			if (key != null && query.test(key)) {
+				rs.add(cast(key));
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * Release the mapping of this pack file. Observe the mapping itself is only
+	 * released once it is garbage collected.
+	 */
+	@Override
+	public void close() {
+		buffer = null;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+
+	private ByteBuffer buffer() {
+		ByteBuffer b = buffer;
+		if (b == null) {
+			throw new IllegalStateException("pack file closed: " + file);
+		}
+		return b;
+	}
+
+	/**
+	 * Find the slot holding a given encoded key, or return a negative value if
+	 * there is none.
+	 *
+	 * @param b
+	 * @param key
+	 * @return
+	 */
+	private int find(ByteBuffer b, byte[] key) {
+		if (count == 0) {
+			return -1;
+		}
+		int bucket = (int) Long.remainderUnsigned(hash(key, 0), buckets);
+		int slot = slot(key, b.getInt(seeds + 4 * bucket), count);
+		// The perfect hash maps every key to some slot, so check it's the right one
+		int base = slots + slot * SLOT_SIZE;
+		int offset = b.getInt(base + 16);
+		int length = b.getInt(base + 20);
+		if (length != key.length) {
+			return -1;
+		}
+		for (int i = 0; i != length; ++i) {
+			if (b.get(keys + offset + i) != key[i]) {
+				return -1;
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * Decode the key in a given slot.
+	 *
+	 * @param b
+	 * @param slot
+	 * @return
+	 */
+	private Key<S, ?> key(ByteBuffer b, int slot) {
+		int base = slots + slot * SLOT_SIZE;
+		byte[] bytes = new byte[b.getInt(base + 20)];
+		ByteBuffer d = b.duplicate();
+		d.position(keys + b.getInt(base + 16));
+		d.get(bytes);
+		return encdec.decode(new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Deserialise the value in a given slot.
+	 *
+	 * @param key
+	 * @param slot
+	 * @return
+	 * @throws IOException
+	 */
+	private Content read(Key<S, ?> key, int slot) throws IOException {
+		ByteBuffer b = buffer();
+		int base = slots + slot * SLOT_SIZE;
+		long offset = b.getLong(base);
+		int length = b.getInt(base + 8);
+		int flags = b.getInt(base + 24);
+		ByteBuffer blob = b.duplicate();
+		blob.position((int) offset);
+		blob.limit((int) offset + length);
+		InputStream in = new ByteBufferInputStream(blob.slice());
+		if ((flags & DEFLATED) != 0) {
+			in = new InflaterInputStream(in);
+		}
+		return StoreEvents.read(key, in);
+	}
+
+	/**
+	 * Determine the slot for a given key, given the seed of its bucket. A positive
+	 * seed gives the displacement used to hash keys in the bucket, whilst a
+	 * negative seed directly encodes the slot of the bucket's only key.
+	 *
+	 * @param key
+	 * @param seed
+	 * @param count
+	 * @return
+	 */
+	private static int slot(byte[] key, int seed, int count) {
+		if (seed < 0) {
+			return -seed - 1;
+		}
+		return (int) Long.remainderUnsigned(hash(key, seed), count);
+	}
+
+	/**
+	 * A seeded 64bit hash of a sequence of bytes. This must be stable across
+	 * JVMs, since it determines the layout of the file.
+	 *
+	 * @param bytes
+	 * @param seed
+	 * @return
+	 */
+	private static long hash(byte[] bytes, long seed) {
+		long h = 0xCBF29CE484222325L ^ (seed * 0x9E3779B97F4A7C15L);
+		for (byte b : bytes) {
+			h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+		}
+		// Finalise as for MurmurHash3, to spread the bits
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T cast(Object o) {
+		return (T) o;
+	}
+
+	/**
+	 * Creates a pack file. Entries are serialised and appended to the file as they
+	 * are added, such that only their keys are retained in memory. The index is
+	 * then constructed and written when the writer is closed.
+	 *
+	 * @author David J. Pearce
+	 *
+	 * @param <S>
+	 */
+	public static class Writer<S> implements Closeable {
+		private final Key.Map<S, String> encdec;
+		private final RandomAccessFile out;
+		private final int level;
+		private final int threshold;
+		private final ArrayList<byte[]> keys = new ArrayList<>();
+		private final HashSet<String> seen = new HashSet<>();
+		/**
+		 * Offset, stored length and flags of each blob, in order of addition.
+		 */
+		private long[] offsets = new long[16];
+		private int[] lengths = new int[16];
+		private int[] flags = new int[16];
+		private boolean closed;
+
+		/**
+		 * Construct a writer which does not compress entries.
+		 *
+		 * @param encdec
+		 * @param file
+		 * @throws IOException
+		 */
+		public Writer(Key.Map<S, String> encdec, File file) throws IOException {
+			this(encdec, file, Deflater.NO_COMPRESSION, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Construct a writer which deflates entries whose serialised form is at least
+		 * a given size, provided this makes them smaller.
+		 *
+		 * @param encdec
+		 * @param file
+		 * @param level     Compression level (see <code>Deflater</code>).
+		 * @param threshold Minimum size (in bytes) of entries to compress.
+		 * @throws IOException
+		 */
+		public Writer(Key.Map<S, String> encdec, File file, int level, int threshold) throws IOException {
+			if (encdec == null) {
+				throw new IllegalArgumentException("Content encoder/decoder is required");
+			} else if (threshold < 0) {
+				throw new IllegalArgumentException("invalid threshold");
+			}
+			this.encdec = encdec;
+			this.level = level;
+			this.threshold = threshold;
+			this.out = new RandomAccessFile(file, "rw");
+			this.out.setLength(0);
+			// Header is written on close
+			this.out.write(new byte[HEADER_SIZE]);
+		}
+
+		/**
+		 * Add an entry to the pack file.
+		 *
+		 * @param key
+		 * @param value
+		 * @throws IOException
+		 */
+		public <T extends Content> void add(Key<S, T> key, T value) throws IOException {
+			if (closed) {
+				throw new IllegalStateException("writer closed");
+			} else if (key.contentType() != value.contentType()) {
+				throw new IllegalArgumentException("invalid key-value pair");
+			}
+			String encoded = encdec.encode(key);
+			if (!seen.add(encoded)) {
+				throw new IllegalArgumentException("duplicate key: " + key);
+			}
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			StoreEvents.write(key, bout, value);
+			byte[] bytes = bout.toByteArray();
+			int flag = 0;
+			if (bytes.length >= threshold && level != Deflater.NO_COMPRESSION) {
+				ByteArrayOutputStream zout = new ByteArrayOutputStream();
+				Deflater deflater = new Deflater(level);
+				try (DeflaterOutputStream dout = new DeflaterOutputStream(zout, deflater)) {
+					dout.write(bytes);
+				} finally {
+					deflater.end();
+				}
+				if (zout.size() < bytes.length) {
+					bytes = zout.toByteArray();
+					flag = DEFLATED;
+				}
+			}
+			int n = keys.size();
+			if (n == offsets.length) {
+				offsets = Arrays.copyOf(offsets, n * 2);
+				lengths = Arrays.copyOf(lengths, n * 2);
+				flags = Arrays.copyOf(flags, n * 2);
+			}
+			offsets[n] = append(bytes);
+			lengths[n] = bytes.length;
+			flags[n] = flag;
+			keys.add(encoded.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Build and write the index, and then close the file.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				int count = keys.size();
+				int buckets = Math.max(1, count / BUCKET_SIZE);
+				int[] seeds = new int[buckets];
+				int[] order = build(seeds);
+				// Write seeds
+				long seedsOffset = align(out.getFilePointer(), 8);
+				ByteBuffer b = ByteBuffer.allocate(4 * buckets);
+				for (int s : seeds) {
+					b.putInt(s);
+				}
+				out.seek(seedsOffset);
+				out.write(b.array());
+				// Write slots, and determine key offsets
+				long slotsOffset = align(out.getFilePointer(), 8);
+				b = ByteBuffer.allocate(SLOT_SIZE * count);
+				int keyOffset = 0;
+				for (int slot = 0; slot != count; ++slot) {
+					int i = order[slot];
+					b.putLong(offsets[i]);
+					b.putInt(lengths[i]);
+					b.putInt(0);
+					b.putInt(keyOffset);
+					b.putInt(keys.get(i).length);
+					b.putInt(flags[i]);
+					b.putInt(0);
+					keyOffset += keys.get(i).length;
+				}
+				out.seek(slotsOffset);
+				out.write(b.array());
+				// Write keys
+				long keysOffset = out.getFilePointer();
+				for (int slot = 0; slot != count; ++slot) {
+					out.write(keys.get(order[slot]));
+				}
+				long end = out.getFilePointer();
+				if (end > Integer.MAX_VALUE) {
+					throw new IOException("pack file too large");
+				}
+				// NOTE: empty tables are not written, so ensure the file reaches the end.
+				out.setLength(end);
+				// Finally, write header
+				b = ByteBuffer.allocate(HEADER_SIZE);
+				b.putInt(MAGIC);
+				b.putInt(VERSION);
+				b.putInt(count);
+				b.putInt(buckets);
+				b.putLong(seedsOffset);
+				b.putLong(slotsOffset);
+				b.putLong(keysOffset);
+				b.putLong(end);
+				out.seek(0);
+				out.write(b.array());
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Append a blob, respecting the alignment rules, and return its offset.
+		 *
+		 * @param bytes
+		 * @return
+		 * @throws IOException
+		 */
+		private long append(byte[] bytes) throws IOException {
+			long offset = out.getFilePointer();
+			long page = offset % PAGE_SIZE;
+			if (bytes.length >= PAGE_SIZE || page + bytes.length > PAGE_SIZE) {
+				// Would span a page boundary, so start on the next page
+				offset = align(offset, PAGE_SIZE);
+			}
+			out.seek(offset);
+			out.write(bytes);
+			return offset;
+		}
+
+		/**
+		 * Construct the minimal perfect hash of the keys, returning the key assigned
+		 * to each slot.
+		 *
+		 * @param seeds The seed for each bucket, which is filled in.
+		 * @return
+		 */
+		private int[] build(int[] seeds) {
+			int count = keys.size();
+			int buckets = seeds.length;
+			// Distribute keys into buckets
+			ArrayList<List<Integer>> members = new ArrayList<>();
+			for (int i = 0; i != buckets; ++i) {
+				members.add(new ArrayList<>());
+			}
+			for (int i = 0; i != count; ++i) {
+				members.get((int) Long.remainderUnsigned(hash(keys.get(i), 0), buckets)).add(i);
+			}
+			// Place largest buckets first, since they are hardest to place
+			Integer[] sorted = new Integer[buckets];
+			for (int i = 0; i != buckets; ++i) {
+				sorted[i] = i;
+			}
+			Arrays.sort(sorted, (x, y) -> Integer.compare(members.get(y).size(), members.get(x).size()));
+			int[] order = new int[count];
+			boolean[] used = new boolean[count];
+			int[] candidate = new int[BUCKET_SIZE * 16];
+			int free = 0;
+			for (int bucket : sorted) {
+				List<Integer> ms = members.get(bucket);
+				if (ms.isEmpty()) {
+					break;
+				} else if (ms.size() == 1) {
+					// Place directly in any free slot
+					while (used[free]) {
+						free++;
+					}
+					used[free] = true;
+					order[free] = ms.get(0);
+					seeds[bucket] = -free - 1;
+					continue;
+				}
+				if (candidate.length < ms.size()) {
+					candidate = new int[ms.size()];
+				}
+				for (int seed = 1;; ++seed) {
+					if (seed < 0) {
+						throw new IllegalStateException("cannot construct perfect hash");
+					}
+					int k = 0;
+					for (; k != ms.size(); ++k) {
+						int slot = slot(keys.get(ms.get(k)), seed, count);
+						if (used[slot] || contains(candidate, k, slot)) {
+							break;
+						}
+						candidate[k] = slot;
+					}
+					if (k == ms.size()) {
+						for (k = 0; k != ms.size(); ++k) {
+							used[candidate[k]] = true;
+							order[candidate[k]] = ms.get(k);
+						}
+						seeds[bucket] = seed;
+						break;
+					}
+				}
+			}
+			return order;
+		}
+
+		private static boolean contains(int[] items, int n, int item) {
+			for (int i = 0; i != n; ++i) {
+				if (items[i] == item) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static long align(long offset, int alignment) {
+			long r = offset % alignment;
+			return r == 0 ? offset : offset + (alignment - r);
+		}
+	}
+
+	/**
+	 * Provides an input stream over a byte buffer, without copying it.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) {
+			if (len == 0) {
+				return 0;
+			} else if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(bytes, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
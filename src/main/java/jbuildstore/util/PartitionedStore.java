@@ -0,0 +1,350 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import jbuildstore.core.Batch;
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * A store which spreads its entries across several directories (e.g. on
+ * different disks), each managed by a separate <code>DirectoryStore</code>
+ * ("shard"). Every key belongs to exactly one shard, as determined by a
+ * partitioner. By default, keys are partitioned by a hash of their encoded
+ * form, which is stable across runs. Shards are scanned when opened, and
+ * flushed when synchronised, in parallel. Observe that the partitioner must not
+ * change between runs, since entries found in a shard to which they do not
+ * belong are ignored. Likewise, transactions are applied to each shard
+ * separately and, hence, are not atomic across shards.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class PartitionedStore<S> implements Content.Store<S> {
+	/**
+	 * Runs each task on a new daemon thread. This is appropriate since tasks (one
+	 * per shard) are infrequent and blocked on I/O.
+	 */
+	private static final Executor THREAD_PER_TASK = r -> {
+		Thread t = new Thread(r, "jbuildstore-partition");
+		t.setDaemon(true);
+		t.start();
+	};
+
+	private final List<DirectoryStore<S>> shards;
+	private final ToIntFunction<Key<S, ?>> partitioner;
+	private final Executor executor;
+
+	/**
+	 * Construct a store partitioned across a given set of directories by a hash of
+	 * the encoded key.
+	 *
+	 * @param encdec
+	 * @param roots
+	 * @throws IOException
+	 */
+	public PartitionedStore(Key.Map<S, String> encdec, List<File> roots) throws IOException {
+		this(encdec, roots, hashPartitioner(encdec, roots.size()), THREAD_PER_TASK);
+	}
+
+	/**
+	 * Construct a store partitioned across a given set of directories by a given
+	 * partitioner, which maps each key to the index of its directory. Operations
+	 * on shards are run in parallel using a given executor.
+	 *
+	 * @param encdec
+	 * @param roots
+	 * @param partitioner
+	 * @param executor
+	 * @throws IOException
+	 */
+	public PartitionedStore(Key.Map<S, String> encdec, List<File> roots, ToIntFunction<Key<S, ?>> partitioner,
+			Executor executor) throws IOException {
+		if (encdec == null) {
+			throw new IllegalArgumentException("Content encoder/decoder is required");
+		} else if (roots == null || roots.isEmpty()) {
+			throw new IllegalArgumentException("At least one root is required");
+		} else if (partitioner == null) {
+			throw new IllegalArgumentException("Partitioner is required");
+		} else if (executor == null) {
+			throw new IllegalArgumentException("Executor is required");
+		}
+		this.partitioner = partitioner;
+		this.executor = executor;
+		List<DirectoryStore<S>> opened = Collections.synchronizedList(new ArrayList<>());
+		try {
+			this.shards = Collections.unmodifiableList(parallel(roots.size(), i -> {
+				DirectoryStore<S> shard = new DirectoryStore<>(encdec, roots.get(i));
+				opened.add(shard);
+				return shard;
+			}));
+		} catch (IOException | RuntimeException | Error e) {
+			// NOTE: every shard has finished opening by now, and directory locks are only
+			// held during an operation. Hence, releasing a shard amounts to stopping its
+			// write-behind thread (should one have been started).
+			for (DirectoryStore<S> shard : opened) {
+				shard.setWriteBehind(0);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the shards of this store, for example to configure them.
+	 *
+	 * @return
+	 */
+	public List<DirectoryStore<S>> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Get the shard to which a given key belongs.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public DirectoryStore<S> getShard(Key<S, ?> key) {
+		return shards.get(partition(key));
+	}
+
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		return getShard(key).get(key);
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		ArrayList<T> rs = new ArrayList<>();
+		for (int i = 0; i != shards.size(); ++i) {
+			rs.addAll(shards.get(i).getAll(owned(i, query)));
+		}
+		return rs;
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		ArrayList<Key<S, T>> rs = new ArrayList<>();
+		for (int i = 0; i != shards.size(); ++i) {
+			rs.addAll(shards.get(i).match(owned(i, query)));
+		}
+		return rs;
+	}
+
+	@Override
+	public <T extends Content> void put(Key<S, T> key, T value) {
+		getShard(key).put(key, value);
+	}
+
+	@Override
+	public void remove(Key<S, ?> key) {
+		getShard(key).remove(key);
+	}
+
+	/**
+	 * Synchronise all shards in parallel. If any fail, the first failure is thrown
+	 * with any others attached as suppressed exceptions.
+	 */
+	@Override
+	public void synchronise() throws IOException {
+		parallel(shards.size(), i -> {
+			shards.get(i).synchronise();
+			return null;
+		});
+	}
+
+	/**
+	 * Take a snapshot of every shard. Observe that snapshots of different shards
+	 * are taken one after another and, hence, a concurrent write may be visible in
+	 * one but not another.
+	 */
+	@Override
+	public Content.Source<S> snapshot() {
+		final ArrayList<Content.Source<S>> snapshots = new ArrayList<>();
+		for (DirectoryStore<S> shard : shards) {
+			snapshots.add(shard.snapshot());
+		}
+		return new Content.Source<S>() {
+			@Override
+			public <T extends Content> T get(Key<S, T> key) throws IOException {
+				return snapshots.get(partition(key)).get(key);
+			}
+
+			@Override
+			public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+				ArrayList<T> rs = new ArrayList<>();
+				for (int i = 0; i != snapshots.size(); ++i) {
+					rs.addAll(snapshots.get(i).getAll(owned(i, query)));
+				}
+				return rs;
+			}
+
+			@Override
+			public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+				ArrayList<Key<S, T>> rs = new ArrayList<>();
+				for (int i = 0; i != snapshots.size(); ++i) {
+					rs.addAll(snapshots.get(i).match(owned(i, query)));
+				}
+				return rs;
+			}
+		};
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		return new Batch<>(this::commit);
+	}
+
+	@Override
+	public String toString() {
+		return shards.toString();
+	}
+
+	/**
+	 * Apply a set of changes staged by a transaction, as one transaction per
+	 * shard.
+	 *
+	 * @param changes
+	 */
+	private void commit(Map<Key<S, ?>, Content> changes) {
+		HashMap<Integer, Map<Key<S, ?>, Content>> split = new HashMap<>();
+		for (Map.Entry<Key<S, ?>, Content> e : changes.entrySet()) {
+			split.computeIfAbsent(partition(e.getKey()), i -> new LinkedHashMap<>()).put(e.getKey(), e.getValue());
+		}
+		for (Map.Entry<Integer, Map<Key<S, ?>, Content>> s : split.entrySet()) {
+			try (Content.Transaction<S> tx = shards.get(s.getKey()).begin()) {
+				for (Map.Entry<Key<S, ?>, Content> e : s.getValue().entrySet()) {
+					if (e.getValue() == null) {
+						tx.remove(e.getKey());
+					} else {
+						put(tx, e.getKey(), e.getValue());
+					}
+				}
+				tx.commit();
+			}
+		}
+	}
+
+	private int partition(Key<S, ?> key) {
+		int i = partitioner.applyAsInt(key);
+		if (i < 0 || i >= shards.size()) {
+			throw new IllegalArgumentException("invalid partition " + i + " for " + key);
+		}
+		return i;
+	}
+
+	/**
+	 * Restrict a query to those keys belonging to a given shard.
+	 *
+	 * @param shard
+	 * @param query
+	 * @return
+	 */
+	private Predicate<Key<S, ?>> owned(int shard, Predicate<Key<S, ?>> query) {
+		return k -> query.test(k) && partitioner.applyAsInt(k) == shard;
+	}
+
+	/**
+	 * Apply a given function to each shard index in parallel, returning the results
+	 * in order. This waits for every shard to finish, even if some fail. Then, the
+	 * first failure is thrown as is (i.e. unchecked exceptions and errors are not
+	 * wrapped), with any others attached as suppressed exceptions.
+	 *
+	 * @param <T>
+	 * @param n
+	 * @param fn
+	 * @return
+	 * @throws IOException
+	 */
+	private <T> List<T> parallel(int n, ShardFunction<T> fn) throws IOException {
+		ArrayList<CompletableFuture<T>> futures = new ArrayList<>();
+		for (int i = 0; i != n; ++i) {
+			final int index = i;
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return fn.apply(index);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor));
+		}
+		ArrayList<T> results = new ArrayList<>();
+		Throwable error = null;
+		for (CompletableFuture<T> f : futures) {
+			try {
+				results.add(f.join());
+			} catch (CompletionException e) {
+				Throwable cause = e.getCause();
+				Throwable ex = (cause instanceof UncheckedIOException) ? cause.getCause() : cause;
+				if (error == null) {
+					error = ex;
+				} else {
+					error.addSuppressed(ex);
+				}
+			}
+		}
+		if (error instanceof IOException) {
+			throw (IOException) error;
+		} else if (error instanceof RuntimeException) {
+			throw (RuntimeException) error;
+		} else if (error instanceof Error) {
+			throw (Error) error;
+		} else if (error != null) {
+			throw new IOException(error);
+		}
+		return results;
+	}
+
+	/**
+	 * Construct a partitioner which assigns keys to one of a given number of
+	 * shards by a hash of their encoded form.
+	 *
+	 * @param <S>
+	 * @param encdec
+	 * @param n
+	 * @return
+	 */
+	public static <S> ToIntFunction<Key<S, ?>> hashPartitioner(Key.Map<S, String> encdec, int n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException("invalid number of partitions");
+		}
+		// NOTE: String.hashCode() is specified, hence stable across runs.
+		return k -> Math.floorMod(encdec.encode(k).hashCode(), n);
+	}
+
+	private interface ShardFunction<T> {
+		T apply(int shard) throws IOException;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <S, T extends Content> void put(Content.Sink<S> sink, Key<S, T> key, Content value) {
+		sink.put(key, (T) value);
+	}
+}
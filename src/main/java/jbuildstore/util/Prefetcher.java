@@ -0,0 +1,208 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Loads entries of a source in the background, ahead of them being needed. For
+ * sources which load their entries lazily (e.g. <code>DirectoryStore</code> or
+ * <code>ZipFile</code>), this means a subsequent <code>get()</code> finds the
+ * entry already loaded and deserialised. Prefetching is only a hint: at most a
+ * bounded number of entries are loaded at any one time and any further requests
+ * are dropped, as are any errors encountered whilst loading (which will instead
+ * be reported when the entry is actually read).
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class Prefetcher<S> implements AutoCloseable {
+	/**
+	 * Default maximum number of entries being loaded at any one time.
+	 */
+	public static final int DEFAULT_LIMIT = 64;
+
+	private final Content.Source<S> source;
+	private final Executor executor;
+	/**
+	 * Executor created by (and, hence, shut down by) this prefetcher, or
+	 * <code>null</code> if supplied by the caller.
+	 */
+	private final ExecutorService owned;
+	private final Semaphore permits;
+	/**
+	 * Keys currently being loaded, such that each is loaded at most once.
+	 */
+	private final Set<Key<S, ?>> inflight;
+	private final LongAdder issued = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/**
+	 * Construct a prefetcher for a given source using a fixed pool of daemon
+	 * threads, one per available processor.
+	 *
+	 * @param source
+	 */
+	public Prefetcher(Content.Source<S> source) {
+		this(source, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread t = new Thread(r, "jbuildstore-prefetch");
+			t.setDaemon(true);
+			return t;
+		}), DEFAULT_LIMIT, true);
+	}
+
+	/**
+	 * Construct a prefetcher for a given source which loads entries using a given
+	 * executor, with at most a given number in flight at any one time. Since
+	 * loading is typically blocked on I/O, an executor with many (or inexpensive)
+	 * threads is appropriate.
+	 *
+	 * @param source
+	 * @param executor
+	 * @param limit
+	 */
+	public Prefetcher(Content.Source<S> source, Executor executor, int limit) {
+		this(source, executor, limit, false);
+	}
+
+	private Prefetcher(Content.Source<S> source, Executor executor, int limit, boolean owned) {
+		if (source == null) {
+			throw new IllegalArgumentException("Source is required");
+		} else if (executor == null) {
+			throw new IllegalArgumentException("Executor is required");
+		} else if (limit <= 0) {
+			throw new IllegalArgumentException("invalid limit");
+		}
+		this.source = source;
+		this.executor = executor;
+		this.owned = owned ? (ExecutorService) executor : null;
+		this.permits = new Semaphore(limit);
+		this.inflight = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Get the source whose entries are prefetched.
+	 *
+	 * @return
+	 */
+	public Content.Source<S> getSource() {
+		return source;
+	}
+
+	/**
+	 * Load a given entry in the background.
+	 *
+	 * @param key
+	 * @return <code>true</code> if the entry will be loaded, or <code>false</code>
+	 *         if the request was dropped.
+	 */
+	public boolean prefetch(Key<S, ?> key) {
+		if (!inflight.add(key)) {
+			// Already being loaded
+			return false;
+		} else if (!permits.tryAcquire()) {
+			inflight.remove(key);
+			dropped.increment();
+			return false;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					source.get(key);
+				} catch (Exception e) {
+					// Errors will be reported when the entry is actually read
+				} finally {
+					inflight.remove(key);
+					permits.release();
+				}
+			});
+			issued.increment();
+			return true;
+		} catch (RejectedExecutionException e) {
+			inflight.remove(key);
+			permits.release();
+			dropped.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * Load a given set of entries in the background.
+	 *
+	 * @param keys
+	 * @return The number of entries which will be loaded.
+	 */
+	public int prefetch(Collection<? extends Key<S, ?>> keys) {
+		int count = 0;
+		for (Key<S, ?> key : keys) {
+			if (prefetch(key)) {
+				count = count + 1;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Load all entries matching a given query in the background. For example, this
+	 * can be used to load all entries in a package before compiling it.
+	 *
+	 * @param query
+	 * @return The number of entries which will be loaded.
+	 */
+	public int prefetch(Predicate<Key<S, ?>> query) {
+		return prefetch(source.match(query));
+	}
+
+	/**
+	 * Get the number of entries for which a background load was issued.
+	 *
+	 * @return
+	 */
+	public long getIssued() {
+		return issued.sum();
+	}
+
+	/**
+	 * Get the number of requests dropped because too many entries were already
+	 * being loaded.
+	 *
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Shut down the executor, if it was created by this prefetcher.
+	 */
+	@Override
+	public void close() {
+		if (owned != null) {
+			owned.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,475 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Batch;
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * A store layered over a local store, which reads through to and writes back to
+ * a shared remote cache over HTTP. Entries are identified in the remote cache
+ * by the hash of a namespace and their encoded key, such that <code>GET</code>
+ * and <code>PUT</code> requests against <code>{remote}/{hash}</code> retrieve
+ * and store their serialised form. Observe that the remote cache holds only one
+ * entry per key in each namespace. Thus, builds which may produce different
+ * content for the same key (e.g. different branches, configurations or
+ * toolchain versions) must use distinct namespaces, otherwise one may be served
+ * the other's output. On a local miss, the remote cache is consulted and any
+ * entry found is added to the local store, unless the key was removed through
+ * this store. Entries written to this store are uploaded to the remote cache
+ * when it is synchronised. Requests for
+ * many entries (see <code>prefetch()</code> and <code>synchronise()</code>)
+ * are issued concurrently, up to a bounded number in flight, and are
+ * multiplexed over a shared connection where supported. The remote cache is
+ * treated as best effort: when it cannot be reached, this store falls back to
+ * the local store alone for a period before trying again. See
+ * <code>CacheServer</code> for a simple implementation of the remote cache.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class RemoteCacheStore<S> implements Content.Store<S> {
+	/**
+	 * Default maximum number of requests in flight at any one time.
+	 */
+	public static final int DEFAULT_CONCURRENCY = 16;
+	/**
+	 * Default timeout for connecting and for individual requests.
+	 */
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(5);
+	/**
+	 * Default period for which the remote cache is not contacted after a failure.
+	 */
+	public static final Duration DEFAULT_BACKOFF = Duration.ofSeconds(30);
+
+	private final Key.Map<S, String> encdec;
+	private final Content.Store<S> local;
+	private final URI remote;
+	/**
+	 * Distinguishes entries written by different kinds of build to the same remote
+	 * cache.
+	 */
+	private final String namespace;
+	private final HttpClient client;
+	private final Duration timeout;
+	private final Duration backoff;
+	/**
+	 * Bounds the number of requests in flight.
+	 */
+	private final Semaphore permits;
+	/**
+	 * Entries written since the last synchronisation, which should be uploaded.
+	 */
+	private final LinkedHashMap<Key<S, ?>, Content> pending;
+	/**
+	 * Keys removed through this store (and not written since), which must not be
+	 * read through from the remote cache.
+	 */
+	private final HashSet<Key<S, ?>> removed;
+	/**
+	 * Time (as given by <code>System.nanoTime()</code>) before which the remote
+	 * cache should not be contacted, or zero if it is available.
+	 */
+	private volatile long unavailableUntil;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder uploads = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	public RemoteCacheStore(Key.Map<S, String> encdec, Content.Store<S> local, URI remote) {
+		this(encdec, local, remote, "");
+	}
+
+	public RemoteCacheStore(Key.Map<S, String> encdec, Content.Store<S> local, URI remote, String namespace) {
+		this(encdec, local, remote, namespace, DEFAULT_CONCURRENCY, DEFAULT_TIMEOUT, DEFAULT_BACKOFF);
+	}
+
+	public RemoteCacheStore(Key.Map<S, String> encdec, Content.Store<S> local, URI remote, String namespace,
+			int concurrency, Duration timeout, Duration backoff) {
+		if (encdec == null) {
+			throw new IllegalArgumentException("Content encoder/decoder is required");
+		} else if (local == null) {
+			throw new IllegalArgumentException("Local store is required");
+		} else if (remote == null) {
+			throw new IllegalArgumentException("Remote cache is required");
+		} else if (namespace == null) {
+			throw new IllegalArgumentException("Namespace is required");
+		} else if (concurrency <= 0) {
+			throw new IllegalArgumentException("invalid concurrency");
+		}
+		this.encdec = encdec;
+		this.local = local;
+		this.remote = remote.getPath().endsWith("/") ? remote : URI.create(remote.toString() + "/");
+		this.namespace = namespace;
+		this.timeout = timeout;
+		this.backoff = backoff;
+		this.permits = new Semaphore(concurrency);
+		this.pending = new LinkedHashMap<>();
+		this.removed = new HashSet<>();
+		this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+	}
+
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		T value = local.get(key);
+		if (value == null && isAvailable() && !isRemoved(key)) {
+			try {
+				value = fetch(key).join();
+			} catch (RuntimeException e) {
+				failed();
+			}
+		}
+		return value;
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		// NOTE: the remote cache cannot be queried, hence only local entries match.
+		return local.getAll(query);
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		return local.match(query);
+	}
+
+	@Override
+	public synchronized <T extends Content> void put(Key<S, T> key, T value) {
+		local.put(key, value);
+		pending.put(key, value);
+		removed.remove(key);
+	}
+
+	@Override
+	public synchronized void remove(Key<S, ?> key) {
+		local.remove(key);
+		pending.remove(key);
+		removed.add(key);
+	}
+
+	@Override
+	public Content.Source<S> snapshot() {
+		return local.snapshot();
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		return new Batch<>(this::commit);
+	}
+
+	/**
+	 * Synchronise the local store, and then upload all entries written since they
+	 * were last uploaded to the remote cache. Uploads are issued concurrently, and
+	 * failures to upload are not considered errors. Instead, entries which could
+	 * not be uploaded (e.g. because the remote cache is unavailable) remain queued
+	 * and are retried on the next synchronisation.
+	 */
+	@Override
+	public void synchronise() throws IOException {
+		local.synchronise();
+		if (!isAvailable()) {
+			return;
+		}
+		Map<Key<S, ?>, Content> uploads;
+		synchronized (this) {
+			uploads = new LinkedHashMap<>(pending);
+		}
+		ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (Map.Entry<Key<S, ?>, Content> e : uploads.entrySet()) {
+			futures.add(upload(e.getKey(), e.getValue()));
+		}
+		join(futures);
+	}
+
+	/**
+	 * Get the number of entries awaiting upload to the remote cache.
+	 *
+	 * @return
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Fetch a given set of entries from the remote cache which are not already
+	 * present in the local store. Requests are issued concurrently, and this
+	 * returns once they have all completed.
+	 *
+	 * @param keys
+	 * @return The number of entries fetched from the remote cache.
+	 * @throws IOException
+	 */
+	public int prefetch(Collection<? extends Key<S, ?>> keys) throws IOException {
+		ArrayList<CompletableFuture<? extends Content>> futures = new ArrayList<>();
+		for (Key<S, ?> key : keys) {
+			if (!isAvailable()) {
+				break;
+			} else if (local.get(key) == null && !isRemoved(key)) {
+				futures.add(fetch(key));
+			}
+		}
+		int count = 0;
+		for (CompletableFuture<? extends Content> f : futures) {
+			try {
+				if (f.join() != null) {
+					count = count + 1;
+				}
+			} catch (RuntimeException e) {
+				failed();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of entries found in the remote cache.
+	 *
+	 * @return
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of entries not found in the remote cache.
+	 *
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of entries uploaded to the remote cache.
+	 *
+	 * @return
+	 */
+	public long getUploads() {
+		return uploads.sum();
+	}
+
+	/**
+	 * Get the number of requests which failed because the remote cache could not
+	 * be reached.
+	 *
+	 * @return
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * Determine whether the remote cache is currently considered reachable.
+	 *
+	 * @return
+	 */
+	public boolean isAvailable() {
+		long until = unavailableUntil;
+		return until == 0 || System.nanoTime() - until >= 0;
+	}
+
+	@Override
+	public String toString() {
+		return local.toString();
+	}
+
+	private synchronized void commit(Map<Key<S, ?>, Content> changes) {
+		Content.Transaction<S> tx = local.begin();
+		for (Map.Entry<Key<S, ?>, Content> e : changes.entrySet()) {
+			if (e.getValue() == null) {
+				tx.remove(e.getKey());
+				pending.remove(e.getKey());
+				removed.add(e.getKey());
+			} else {
+				put(tx, e.getKey(), e.getValue());
+				pending.put(e.getKey(), e.getValue());
+				removed.remove(e.getKey());
+			}
+		}
+		tx.commit();
+	}
+
+	/**
+	 * Asynchronously fetch a given entry from the remote cache. If found, the entry
+	 * is added to the local store, unless the key was written or removed through
+	 * this store in the meantime.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private <T extends Content> CompletableFuture<T> fetch(Key<S, T> key) {
+		HttpRequest request = HttpRequest.newBuilder(locate(key)).timeout(timeout).GET().build();
+		return send(request).thenApply(response -> {
+			if (response.statusCode() != 200) {
+				misses.increment();
+				return null;
+			}
+			try {
+				T value = key.contentType().read(new ByteArrayInputStream(response.body()));
+				hits.increment();
+				// NOTE: the key may have been written or removed whilst the request was in
+				// flight, in which case the remote entry is stale.
+				synchronized (this) {
+					if (removed.contains(key)) {
+						return null;
+					}
+					T current = local.get(key);
+					if (current != null) {
+						return current;
+					}
+					local.put(key, value);
+				}
+				return value;
+			} catch (IOException e) {
+				// Treat corrupt entries as missing
+				misses.increment();
+				return null;
+			}
+		});
+	}
+
+	private synchronized boolean isRemoved(Key<S, ?> key) {
+		return removed.contains(key);
+	}
+
+	/**
+	 * Asynchronously upload a given entry to the remote cache. Once the upload
+	 * completes (or is rejected), the entry is no longer pending unless it has
+	 * since been written again. Entries are left pending when the remote cache
+	 * could not be reached, or reported a server error.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private CompletableFuture<Void> upload(Key<S, ?> key, Content value) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		Content.Type ct = value.contentType();
+		ct.write(bout, value);
+		HttpRequest request = HttpRequest.newBuilder(locate(key)).timeout(timeout)
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(bout.toByteArray())).build();
+		return send(request).thenAccept(response -> {
+			int status = response.statusCode() / 100;
+			if (status == 2) {
+				uploads.increment();
+			}
+			if (status != 5) {
+				synchronized (this) {
+					if (pending.get(key) == value) {
+						pending.remove(key);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send a request once a permit is available, releasing the permit when it
+	 * completes.
+	 *
+	 * @param request
+	 * @return
+	 */
+	private CompletableFuture<HttpResponse<byte[]>> send(HttpRequest request) {
+		permits.acquireUninterruptibly();
+		try {
+			return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+					.whenComplete((r, e) -> permits.release());
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait for a set of requests to complete, marking the remote cache unavailable
+	 * if any failed.
+	 *
+	 * @param futures
+	 */
+	private void join(List<CompletableFuture<Void>> futures) {
+		for (CompletableFuture<Void> f : futures) {
+			try {
+				f.join();
+			} catch (RuntimeException e) {
+				failed();
+			}
+		}
+	}
+
+	/**
+	 * Record that a request failed, and stop contacting the remote cache for a
+	 * while.
+	 */
+	private void failed() {
+		failures.increment();
+		unavailableUntil = System.nanoTime() + Math.max(1, backoff.toNanos());
+	}
+
+	/**
+	 * Determine the location of a given key in the remote cache.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private URI locate(Key<S, ?> key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(namespace.getBytes(StandardCharsets.UTF_8));
+			// Separator ensures distinct (namespace, key) pairs hash differently
+			md.update((byte) 0);
+			byte[] digest = md.digest(encdec.encode(key).getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return remote.resolve(sb.toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <S, T extends Content> void put(Content.Sink<S> sink, Key<S, T> key, Content value) {
+		sink.put(key, (T) value);
+	}
+}
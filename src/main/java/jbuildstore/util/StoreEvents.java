@@ -0,0 +1,281 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events emitted by the builtin stores. These allow the
+ * time spent loading, flushing and (de)serialising individual entries to be
+ * attributed to specific keys and content types in a recording. All events are
+ * disabled by default, in which case their cost is negligible. They can be
+ * enabled by name (e.g. <code>jbuildstore.Load</code>) in a recording's
+ * settings, optionally with a threshold such that only slow operations are
+ * recorded.
+ *
+ * @author David J. Pearce
+ *
+ */
+public class StoreEvents {
+
+	/**
+	 * Emitted when an entry is loaded from its underlying medium on demand.
+	 */
+	@Name("jbuildstore.Load")
+	@Label("Load Entry")
+	@Category("JBuildStore")
+	@Description("Entry loaded and deserialised on first access")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Load extends Event {
+		@Label("Key")
+		public String key;
+		@Label("Content Type")
+		public String contentType;
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+
+		public void set(Key<?, ?> key, long bytes) {
+			this.key = key.id().toString();
+			this.contentType = key.contentType().suffix();
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Emitted when a modified entry is written to its underlying medium.
+	 */
+	@Name("jbuildstore.Flush")
+	@Label("Flush Entry")
+	@Category("JBuildStore")
+	@Description("Modified entry serialised and written out")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Flush extends Event {
+		@Label("Key")
+		public String key;
+		@Label("Content Type")
+		public String contentType;
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+
+		public void set(Key<?, ?> key, long bytes) {
+			this.key = key.id().toString();
+			this.contentType = key.contentType().suffix();
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Emitted around a call to <code>Content.Type.read()</code>.
+	 */
+	@Name("jbuildstore.Deserialise")
+	@Label("Deserialise")
+	@Category("JBuildStore")
+	@Description("Content read from its binary form")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Deserialise extends Event {
+		@Label("Key")
+		public String key;
+		@Label("Content Type")
+		public String contentType;
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+
+		public void set(Key<?, ?> key, long bytes) {
+			this.key = key.id().toString();
+			this.contentType = key.contentType().suffix();
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Emitted around a call to <code>Content.Type.write()</code>.
+	 */
+	@Name("jbuildstore.Serialise")
+	@Label("Serialise")
+	@Category("JBuildStore")
+	@Description("Content written into its binary form")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Serialise extends Event {
+		@Label("Key")
+		public String key;
+		@Label("Content Type")
+		public String contentType;
+		@Label("Bytes")
+		@DataAmount
+		public long bytes;
+
+		public void set(Key<?, ?> key, long bytes) {
+			this.key = key.id().toString();
+			this.contentType = key.contentType().suffix();
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Emitted around a call to <code>Content.Store.synchronise()</code>.
+	 */
+	@Name("jbuildstore.Synchronise")
+	@Label("Synchronise")
+	@Category("JBuildStore")
+	@Description("Store synchronised against its underlying medium")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Synchronise extends Event {
+		@Label("Store")
+		public String store;
+		@Label("Entries Flushed")
+		public int flushed;
+		@Label("Entries Deleted")
+		public int deleted;
+	}
+
+	/**
+	 * Emitted around a scan of a directory tree (e.g. when a
+	 * <code>DirectoryStore</code> is opened).
+	 */
+	@Name("jbuildstore.Scan")
+	@Label("Directory Scan")
+	@Category("JBuildStore")
+	@Description("Directory tree scanned for entries")
+	@Enabled(false)
+	@StackTrace(false)
+	public static class Scan extends Event {
+		@Label("Directory")
+		public String directory;
+		@Label("Files")
+		public int files;
+		@Label("Entries")
+		public int entries;
+	}
+
+	/**
+	 * Deserialise the content for a given key from a given input stream, emitting
+	 * a <code>Deserialise</code> event if enabled.
+	 *
+	 * @param key
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	static Content read(Key<?, ?> key, InputStream input) throws IOException {
+		Deserialise event = new Deserialise();
+		if (!event.isEnabled()) {
+			return key.contentType().read(input);
+		}
+		CountingInputStream cin = new CountingInputStream(input);
+		event.begin();
+		Content value = key.contentType().read(cin);
+		event.end();
+		if (event.shouldCommit()) {
+			event.set(key, cin.count);
+			event.commit();
+		}
+		return value;
+	}
+
+	/**
+	 * Serialise the content for a given key to a given output stream, emitting a
+	 * <code>Serialise</code> event if enabled.
+	 *
+	 * @param key
+	 * @param output
+	 * @param value
+	 * @throws IOException
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static void write(Key<?, ?> key, OutputStream output, Content value) throws IOException {
+		Content.Type ct = value.contentType();
+		Serialise event = new Serialise();
+		if (!event.isEnabled()) {
+			ct.write(output, value);
+			return;
+		}
+		CountingOutputStream cout = new CountingOutputStream(output);
+		event.begin();
+		ct.write(cout, value);
+		event.end();
+		if (event.shouldCommit()) {
+			event.set(key, cout.count);
+			event.commit();
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
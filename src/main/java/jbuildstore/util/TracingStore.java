@@ -0,0 +1,487 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Wraps an arbitrary <code>Content.Store</code> and writes a trace of every
+ * operation performed on it (including through its snapshots and transactions).
+ * Each operation is written on a separate line giving (tab separated) its start
+ * time and duration (in nanoseconds, relative to the creation of this store),
+ * the thread performing it, the operation itself, the number of results, the
+ * size of the value written or read (in serialised bytes), the content type
+ * suffix and, finally, the encoded key. Fields which don't apply to an
+ * operation are given as <code>-</code>. Backslashes, tabs and line breaks in
+ * the content type or key are escaped (as for Java string literals), as is a
+ * field consisting solely of <code>-</code>. Traces captured from a live build can
+ * then be read back (see <code>read()</code>) and replayed offline against other
+ * stores. Observe that values written or read are serialised to determine their
+ * size, hence tracing is relatively expensive.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class TracingStore<S> implements Content.Store<S>, Closeable {
+	private final Content.Store<S> store;
+	private final Key.Map<S, String> encdec;
+	private final Writer out;
+	private final long epoch;
+	/**
+	 * The first error encountered writing the trace, which is reported on close.
+	 */
+	private IOException error;
+
+	public TracingStore(Content.Store<S> store, Key.Map<S, String> encdec, Writer out) {
+		if (store == null) {
+			throw new IllegalArgumentException("store required");
+		} else if (encdec == null) {
+			throw new IllegalArgumentException("Content encoder/decoder is required");
+		} else if (out == null) {
+			throw new IllegalArgumentException("writer required");
+		}
+		this.store = store;
+		this.encdec = encdec;
+		this.out = out;
+		this.epoch = System.nanoTime();
+	}
+
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		return get(store, key);
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		return getAll(store, query);
+	}
+
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		return match(store, query);
+	}
+
+	@Override
+	public <T extends Content> void put(Key<S, T> key, T value) {
+		put(store, key, value);
+	}
+
+	@Override
+	public void remove(Key<S, ?> key) {
+		remove(store, key);
+	}
+
+	@Override
+	public void synchronise() throws IOException {
+		long start = System.nanoTime();
+		store.synchronise();
+		record(start, "synchronise", -1, -1, null);
+	}
+
+	@Override
+	public Content.Source<S> snapshot() {
+		long start = System.nanoTime();
+		final Content.Source<S> snapshot = store.snapshot();
+		record(start, "snapshot", -1, -1, null);
+		return new Content.Source<S>() {
+			@Override
+			public <T extends Content> T get(Key<S, T> key) throws IOException {
+				return TracingStore.this.get(snapshot, key);
+			}
+
+			@Override
+			public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+				return TracingStore.this.getAll(snapshot, query);
+			}
+
+			@Override
+			public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+				return TracingStore.this.match(snapshot, query);
+			}
+		};
+	}
+
+	@Override
+	public Content.Transaction<S> begin() {
+		final Content.Transaction<S> tx = store.begin();
+		return new Content.Transaction<S>() {
+			@Override
+			public <T extends Content> void put(Key<S, T> key, T value) {
+				TracingStore.this.put(tx, key, value);
+			}
+
+			@Override
+			public void remove(Key<S, ?> key) {
+				TracingStore.this.remove(tx, key);
+			}
+
+			@Override
+			public void commit() {
+				long start = System.nanoTime();
+				tx.commit();
+				record(start, "commit", -1, -1, null);
+			}
+
+			@Override
+			public void rollback() {
+				long start = System.nanoTime();
+				tx.rollback();
+				record(start, "rollback", -1, -1, null);
+			}
+
+			@Override
+			public void close() {
+				tx.close();
+			}
+		};
+	}
+
+	/**
+	 * Flush and close the trace.
+	 *
+	 * @throws IOException If any part of the trace could not be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (out) {
+			out.close();
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return store.toString();
+	}
+
+	private <T extends Content> T get(Content.Source<S> source, Key<S, T> key) throws IOException {
+		long start = System.nanoTime();
+		T value = source.get(key);
+		long end = System.nanoTime();
+		record(start, end, value == null ? "get.miss" : "get", -1, size(value), key);
+		return value;
+	}
+
+	private <T extends Content> List<T> getAll(Content.Source<S> source, Predicate<Key<S, ?>> query)
+			throws IOException {
+		long start = System.nanoTime();
+		List<T> values = source.getAll(query);
+		record(start, "getAll", values.size(), -1, null);
+		return values;
+	}
+
+	private <T extends Content> List<Key<S, T>> match(Content.Source<S> source, Predicate<Key<S, ?>> query) {
+		long start = System.nanoTime();
+		List<Key<S, T>> keys = source.match(query);
+		record(start, "match", keys.size(), -1, null);
+		return keys;
+	}
+
+	private <T extends Content> void put(Content.Sink<S> sink, Key<S, T> key, T value) {
+		long start = System.nanoTime();
+		sink.put(key, value);
+		long end = System.nanoTime();
+		record(start, end, "put", -1, size(value), key);
+	}
+
+	private void remove(Content.Sink<S> sink, Key<S, ?> key) {
+		long start = System.nanoTime();
+		sink.remove(key);
+		record(start, "remove", -1, -1, key);
+	}
+
+	private void record(long start, String operation, long count, long bytes, Key<S, ?> key) {
+		record(start, System.nanoTime(), operation, count, bytes, key);
+	}
+
+	private void record(long start, long end, String operation, long count, long bytes, Key<S, ?> key) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(start - epoch).append('\t');
+		sb.append(end - start).append('\t');
+		sb.append(Thread.currentThread().getId()).append('\t');
+		sb.append(operation).append('\t');
+		sb.append(count < 0 ? "-" : Long.toString(count)).append('\t');
+		sb.append(bytes < 0 ? "-" : Long.toString(bytes)).append('\t');
+		if (key == null) {
+			sb.append("-\t-");
+		} else {
+			escape(key.contentType().suffix(), sb).append('\t');
+			escape(encdec.encode(key), sb);
+		}
+		sb.append('\n');
+		synchronized (out) {
+			try {
+				out.write(sb.toString());
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determine the size of a given value in serialised bytes, or
+	 * <code>-1</code> if it cannot be serialised.
+	 *
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static long size(Content value) {
+		if (value == null) {
+			return -1;
+		}
+		long[] count = new long[1];
+		OutputStream sink = new OutputStream() {
+			@Override
+			public void write(int b) {
+				count[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				count[0] += len;
+			}
+		};
+		try {
+			Content.Type ct = value.contentType();
+			ct.write(sink, value);
+			return count[0];
+		} catch (IOException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Read a trace previously written by a <code>TracingStore</code>.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Operation> read(Reader in) throws IOException {
+		ArrayList<Operation> operations = new ArrayList<>();
+		BufferedReader reader = new BufferedReader(in);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			String[] fields = line.split("\t", 8);
+			if (fields.length != 8) {
+				throw new IOException("invalid trace line: " + line);
+			}
+			try {
+				operations.add(new Operation(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+						Long.parseLong(fields[2]), fields[3], parse(fields[4]), parse(fields[5]), optional(fields[6]),
+						optional(fields[7])));
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid trace line: " + line, e);
+			}
+		}
+		return operations;
+	}
+
+	private static long parse(String field) {
+		return field.equals("-") ? -1 : Long.parseLong(field);
+	}
+
+	private static String optional(String field) throws IOException {
+		return field.equals("-") ? null : unescape(field);
+	}
+
+	/**
+	 * Append a field to the trace, escaping any characters which would otherwise
+	 * be confused with field or line separators.
+	 *
+	 * @param field
+	 * @param sb
+	 * @return
+	 */
+	private static StringBuilder escape(String field, StringBuilder sb) {
+		if (field.equals("-")) {
+			return sb.append("\\-");
+		}
+		for (int i = 0; i != field.length(); ++i) {
+			char c = field.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb;
+	}
+
+	private static String unescape(String field) throws IOException {
+		if (field.indexOf('\\') < 0) {
+			return field;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < field.length(); ++i) {
+			char c = field.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+			} else if (++i == field.length()) {
+				throw new IOException("invalid escape in trace: " + field);
+			} else {
+				switch (field.charAt(i)) {
+				case '\\':
+					sb.append('\\');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case '-':
+					sb.append('-');
+					break;
+				default:
+					throw new IOException("invalid escape in trace: " + field);
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A single operation in a trace.
+	 *
+	 * @author David J. Pearce
+	 *
+	 */
+	public static final class Operation {
+		private final long start;
+		private final long nanos;
+		private final long thread;
+		private final String operation;
+		private final long count;
+		private final long bytes;
+		private final String type;
+		private final String key;
+
+		public Operation(long start, long nanos, long thread, String operation, long count, long bytes, String type,
+				String key) {
+			this.start = start;
+			this.nanos = nanos;
+			this.thread = thread;
+			this.operation = operation;
+			this.count = count;
+			this.bytes = bytes;
+			this.type = type;
+			this.key = key;
+		}
+
+		/**
+		 * Get the start time of this operation (in nanoseconds since the trace began).
+		 *
+		 * @return
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * Get the duration of this operation (in nanoseconds).
+		 *
+		 * @return
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		public long getThread() {
+			return thread;
+		}
+
+		/**
+		 * Get the name of this operation (e.g. <code>get</code>, <code>put</code>,
+		 * <code>synchronise</code>, etc).
+		 *
+		 * @return
+		 */
+		public String getOperation() {
+			return operation;
+		}
+
+		/**
+		 * Get the number of results of a query, or <code>-1</code> if not applicable.
+		 *
+		 * @return
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Get the size (in serialised bytes) of the value read or written, or
+		 * <code>-1</code> if not applicable.
+		 *
+		 * @return
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the content type suffix of the key, or <code>null</code> if there is no
+		 * key.
+		 *
+		 * @return
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * Get the encoded key, or <code>null</code> if there is no key.
+		 *
+		 * @return
+		 */
+		public String getKey() {
+			return key;
+		}
+	}
+}
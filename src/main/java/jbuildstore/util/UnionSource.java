@@ -0,0 +1,240 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Combines an ordered list of sources into a single source, in a similar
+ * fashion to a classpath. When a given key is present in more than one source,
+ * the first source in the list takes precedence and the key is said to be
+ * <i>shadowed</i> in the others. Rather than trying each source in turn, a
+ * merged index maps every key to the source which provides it. Thus, a lookup
+ * costs the same regardless of how many sources are combined. Since sources can
+ * change, the index for a given source can be refreshed without rebuilding the
+ * index for the others.
+ * <p>
+ * Observe that the index reflects the keys of each source as of construction
+ * or its last refresh, and changes to a source are not observed until it is
+ * refreshed. Until then, keys added to it are not found (or, if shadowed
+ * elsewhere, are still read from the lower precedence source), whilst keys
+ * removed from it are still matched, but then read as <code>null</code>.
+ * Values are always read from the sources themselves and, hence, are never
+ * stale. A union is not thread-safe, and must not be refreshed whilst being
+ * read.
+ *
+ * @author David J. Pearce
+ *
+ * @param <S>
+ */
+public class UnionSource<S> implements Content.Source<S> {
+	/**
+	 * The sources being combined, in order of precedence.
+	 */
+	private final List<Content.Source<S>> members;
+	/**
+	 * The keys provided by each source, as of its last refresh.
+	 */
+	private final List<HashSet<Key<S, ?>>> keys;
+	/**
+	 * The merged index mapping each key to the index of the source which provides
+	 * it.
+	 */
+	private final LinkedHashMap<Key<S, ?>, Integer> index;
+
+	@SafeVarargs
+	public UnionSource(Content.Source<S>... members) {
+		this.members = new ArrayList<>(members.length);
+		for (Content.Source<S> m : members) {
+			this.members.add(m);
+		}
+		this.keys = new ArrayList<>();
+		this.index = new LinkedHashMap<>();
+		initialise();
+	}
+
+	public UnionSource(List<? extends Content.Source<S>> members) {
+		this.members = new ArrayList<>(members);
+		this.keys = new ArrayList<>();
+		this.index = new LinkedHashMap<>();
+		initialise();
+	}
+
+	/**
+	 * Construct the merged index from the keys of every member.
+	 */
+	private void initialise() {
+		for (int i = 0; i != members.size(); ++i) {
+			keys.add(new HashSet<>());
+		}
+		// Add members in reverse order so higher precedence members overwrite
+		for (int i = members.size() - 1; i >= 0; --i) {
+			for (Key<S, ?> k : members.get(i).match(k -> true)) {
+				keys.get(i).add(k);
+				index.put(k, i);
+			}
+		}
+	}
+
+	@Override
+	public <T extends Content> T get(Key<S, T> key) throws IOException {
+		Integer i = index.get(key);
+		return i == null ? null : members.get(i).get(key);
+	}
+
+	@Override
+	public <T extends Content> List<T> getAll(Predicate<Key<S, ?>> query) throws IOException {
+		ArrayList<T> rs = new ArrayList<>();
+		for (Map.Entry<Key<S, ?>, Integer> e : index.entrySet()) {
+			if (query.test(e.getKey())) {
+				rs.add(get(e.getKey(), e.getValue()));
+			}
+		}
+		return rs;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
+		ArrayList<Key<S, T>> rs = new ArrayList<>();
+		for (Key<S, ?> k : index.keySet()) {
+			if (query.test(k)) {
+				// Following must be safe!
+				rs.add((Key<S, T>) k);
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * Get the number of sources combined in this union.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * Get the source which provides a given key, or <code>null</code> if no source
+	 * provides it.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public Content.Source<S> getProvider(Key<S, ?> key) {
+		Integer i = index.get(key);
+		return i == null ? null : members.get(i);
+	}
+
+	/**
+	 * Refresh the index for a given source which has changed. Only entries in the
+	 * merged index which were affected by the change are updated. Thus, the cost of
+	 * this is proportional to the size of the source being refreshed, rather than
+	 * the size of the whole union.
+	 *
+	 * @param source
+	 */
+	public void refresh(Content.Source<S> source) {
+		int i = members.indexOf(source);
+		if (i < 0) {
+			throw new IllegalArgumentException("unknown source");
+		}
+		refresh(i);
+	}
+
+	/**
+	 * Refresh the index for the ith source.
+	 *
+	 * @param i
+	 */
+	public void refresh(int i) {
+		HashSet<Key<S, ?>> before = keys.get(i);
+		HashSet<Key<S, ?>> after = new HashSet<>(members.get(i).match(k -> true));
+		keys.set(i, after);
+		// Remove keys no longer provided by this source
+		for (Key<S, ?> k : before) {
+			if (!after.contains(k) && index.get(k) == i) {
+				// Fall back to the next source providing this key (if any)
+				int j = find(k, i + 1);
+				if (j < 0) {
+					index.remove(k);
+				} else {
+					index.put(k, j);
+				}
+			}
+		}
+		// Add keys now provided by this source
+		for (Key<S, ?> k : after) {
+			Integer j = index.get(k);
+			if (j == null || j > i) {
+				index.put(k, i);
+			}
+		}
+	}
+
+	/**
+	 * Report all shadowed entries. That is, every key provided by more than one
+	 * source, along with the sources which are shadowed for it (i.e. all those
+	 * except the one which provides it).
+	 *
+	 * @return
+	 */
+	public Map<Key<S, ?>, List<Content.Source<S>>> getShadowed() {
+		LinkedHashMap<Key<S, ?>, List<Content.Source<S>>> rs = new LinkedHashMap<>();
+		for (int i = 0; i != members.size(); ++i) {
+			for (Key<S, ?> k : keys.get(i)) {
+				if (index.get(k) != i) {
+					rs.computeIfAbsent(k, x -> new ArrayList<>()).add(members.get(i));
+				}
+			}
+		}
+		return rs;
+	}
+
+	@Override
+	public String toString() {
+		return members.toString();
+	}
+
+	/**
+	 * Find the first source at or after a given index which provides a given key.
+	 *
+	 * @param key
+	 * @param start
+	 * @return
+	 */
+	private int find(Key<S, ?> key, int start) {
+		for (int i = start; i < members.size(); ++i) {
+			if (keys.get(i).contains(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Content> T get(Key<S, ?> key, int i) throws IOException {
+		return members.get(i).get((Key<S, T>) key);
+	}
+}
@@ -20,6 +20,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Flow;
 import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -76,6 +77,21 @@ public class ZipFile<S> implements Content, Content.Source<S> {
 	 */
 	private final List<Entry<S>> entries;
 
+	/**
+	 * Metrics into which lazy loads are recorded, or <code>null</code> if none.
+	 */
+	private volatile Metrics metrics;
+
+	/**
+	 * Cache through which entries are deserialised, or <code>null</code> if none.
+	 */
+	private volatile ContentCache cache;
+
+	/**
+	 * Publishes changes made to this zip file.
+	 */
+	private final ChangePublisher<S> changes = new ChangePublisher<>();
+
 	/**
 	 * Construct an empty ZipFile
 	 */
@@ -117,6 +133,7 @@ public class ZipFile<S> implements Content, Content.Source<S> {
 
 	public void add(Key<S, ?> key, byte[] bytes) {
 		this.entries.add(new Entry<>(key, bytes));
+		changes.publish(ChangePublisher.Kind.PUT, key);
 	}
 
 	/**
@@ -135,7 +152,7 @@ public class ZipFile<S> implements Content, Content.Source<S> {
 		for (int i = 0; i != entries.size(); ++i) {
 			Entry<S> ith = entries.get(i);
 			if (ith.key.equals(p)) {
-				return (T) ith.get();
+				return (T) load(ith);
 			}
 		}
 		// Didn't find anything.
@@ -149,15 +166,100 @@ public class ZipFile<S> implements Content, Content.Source<S> {
 		for (int i = 0; i != entries.size(); ++i) {
 			Entry<S> ith = entries.get(i);
 			if (query.test(ith.key)) {
-				rs.add((T) ith.get());
+				rs.add((T) load(ith));
 			}
 		}
 		return rs;
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public <T extends Content> List<Key<S, T>> match(Predicate<Key<S, ?>> query) {
-		throw new UnsupportedOperationException();
+		ArrayList<Key<S, T>> rs = new ArrayList<>();
+		for (int i = 0; i != entries.size(); ++i) {
+			Entry<S> ith = entries.get(i);
+			if (query.test(ith.key)) {
+				// Following must be safe!
+				rs.add((Key<S, T>) ith.key);
+			}
+		}
+		return rs;
+	}
+
+	/**
+	 * Get the publisher of changes made to this zip file. Specifically, a <code>PUT</code>
+	 * is published for every entry added.
+	 *
+	 * @return
+	 */
+	public Flow.Publisher<ChangePublisher.Change<S>> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Set the metrics into which this zip file records lazy loads of its entries
+	 * (<code>load</code>). Recording is disabled by supplying <code>null</code>.
+	 *
+	 * @param metrics
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the cache through which entries of this zip file are deserialised, such that identical
+	 * entries read through other stores are deserialised only once. Since values may
+	 * then be shared with other stores, they must not be modified once read.
+	 * Caching is disabled by supplying <code>null</code>.
+	 *
+	 * @param cache
+	 */
+	public void setContentCache(ContentCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Get the content of a given entry, recording the load if it was not already
+	 * loaded.
+	 *
+	 * @param e
+	 * @return
+	 */
+	private Content load(Entry<S> e) {
+		Content value = e.value;
+		if (value != null) {
+			return value;
+		}
+		// NOTE: entries may be loaded concurrently (e.g. by a prefetcher), hence
+		// ensure each is loaded at most once.
+		synchronized (e) {
+			if (e.value != null) {
+				return e.value;
+			}
+			StoreEvents.Load event = new StoreEvents.Load();
+			event.begin();
+			long start = System.nanoTime();
+			ContentCache cc = cache;
+			if (cc != null) {
+				try {
+					value = e.value = cc.read(e.key.contentType(), e.bytes, in -> StoreEvents.read(e.key, in));
+				} catch (IOException ex) {
+					// NOTE: consistent with Entry.get()
+					value = null;
+				}
+			} else {
+				value = e.get();
+			}
+			Metrics m = metrics;
+			if (m != null) {
+				m.record("load", e.key.contentType(), System.nanoTime() - start, e.bytes.length);
+			}
+			if (event.shouldCommit()) {
+				event.set(e.key, e.bytes.length);
+				event.commit();
+			}
+			return value;
+		}
 	}
 
 	private byte[] readEntryContents(InputStream in) throws IOException {
@@ -177,7 +279,7 @@ public class ZipFile<S> implements Content, Content.Source<S> {
 	private final static class Entry<S> implements Content.Entry<S> {
 		public final Key<S, ?> key;
 		public final byte[] bytes;
-		public Content value;
+		public volatile Content value;
 
 		public Entry(Key<S, ?> key, byte[] bytes) {
 			this.key = key;
@@ -190,10 +292,10 @@ public class ZipFile<S> implements Content, Content.Source<S> {
 		}
 
 		@Override
-		public Content get() {
+		public synchronized Content get() {
 			try {
 				if (value == null) {
-					value = key.contentType().read(getInputStream());
+					value = StoreEvents.read(key, getInputStream());
 				}
 				return value;
 			} catch (IOException e) {
@@ -0,0 +1,114 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.core;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+import jbuildstore.util.TextFile;
+
+public class ContentTests {
+	/**
+	 * A store implemented outside the library which only provides the abstract
+	 * methods of <code>Content.Store</code>.
+	 */
+	private static class MinimalStore implements Content.Store<String> {
+		private final HashMap<Key<String, ?>, Content> items = new HashMap<>();
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T extends Content> T get(Key<String, T> key) {
+			return (T) items.get(key);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T extends Content> List<T> getAll(Predicate<Key<String, ?>> query) {
+			ArrayList<T> rs = new ArrayList<>();
+			items.forEach((k, v) -> {
+				if (query.test(k)) {
+					rs.add((T) v);
+				}
+			});
+			return rs;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public <T extends Content> List<Key<String, T>> match(Predicate<Key<String, ?>> query) {
+			ArrayList<Key<String, T>> rs = new ArrayList<>();
+			for (Key<String, ?> k : items.keySet()) {
+				if (query.test(k)) {
+					rs.add((Key<String, T>) k);
+				}
+			}
+			return rs;
+		}
+
+		@Override
+		public <T extends Content> void put(Key<String, T> key, T value) {
+			items.put(key, value);
+		}
+
+		@Override
+		public void remove(Key<String, ?> key) {
+			items.remove(key);
+		}
+
+		@Override
+		public void synchronise() {
+		}
+	}
+
+	private static final Key<String, TextFile> A = new Key.Pair<>("a", TextFile.ContentTypeUtf8);
+	private static final Key<String, TextFile> B = new Key.Pair<>("b", TextFile.ContentTypeUtf8);
+
+	@Test
+	public void test_01() {
+		// Default transactions apply staged writes on commit
+		MinimalStore store = new MinimalStore();
+		store.put(A, new TextFile(TextFile.ContentTypeUtf8, "a"));
+		try (Content.Transaction<String> tx = store.begin()) {
+			tx.remove(A);
+			tx.put(B, new TextFile(TextFile.ContentTypeUtf8, "b"));
+			assertNotNull(store.get(A));
+			assertNull(store.get(B));
+			tx.commit();
+		}
+		assertNull(store.get(A));
+		assertNotNull(store.get(B));
+	}
+
+	@Test
+	public void test_02() {
+		// Default transactions discard staged writes on close
+		MinimalStore store = new MinimalStore();
+		try (Content.Transaction<String> tx = store.begin()) {
+			tx.put(B, new TextFile(TextFile.ContentTypeUtf8, "b"));
+		}
+		assertNull(store.get(B));
+	}
+
+	@Test
+	public void test_03() {
+		// Default snapshots are unsupported
+		assertThrows(UnsupportedOperationException.class, () -> new MinimalStore().snapshot());
+	}
+}
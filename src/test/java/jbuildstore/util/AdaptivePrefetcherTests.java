@@ -0,0 +1,122 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import jbuildstore.core.Key;
+
+public class AdaptivePrefetcherTests {
+
+	@Test
+	public void test_01() throws IOException {
+		// A successor seen twice is prefetched
+		Recorder recorder = new Recorder();
+		AdaptivePrefetcher<String> source = new AdaptivePrefetcher<>(recorder);
+		read(source, "a", "b", "a", "b");
+		recorder.prefetched.clear();
+		source.get(key("a"));
+		assertEquals(List.of(key("b")), recorder.prefetched);
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Repeated reads within the window count only once
+		Recorder recorder = new Recorder();
+		AdaptivePrefetcher<String> source = new AdaptivePrefetcher<>(recorder);
+		read(source, "a", "a", "a", "b");
+		recorder.prefetched.clear();
+		source.get(key("a"));
+		assertTrue(recorder.prefetched.isEmpty());
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// New successors are still learned once the successors are full
+		Recorder recorder = new Recorder();
+		AdaptivePrefetcher<String> source = new AdaptivePrefetcher<>(recorder);
+		for (int round = 0; round != 2; ++round) {
+			for (int i = 0; i != 16; ++i) {
+				read(source, "a", "s" + i);
+			}
+		}
+		read(source, "a", "x", "a", "x");
+		recorder.prefetched.clear();
+		source.get(key("a"));
+		assertTrue(recorder.prefetched.contains(key("x")));
+	}
+
+	@Test
+	public void test_04() throws Exception {
+		// Concurrent readers are recorded safely, and patterns are still learned
+		Recorder recorder = new Recorder();
+		AdaptivePrefetcher<String> source = new AdaptivePrefetcher<>(recorder, 2, 0, 64);
+		ExecutorService readers = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] futures = new Future<?>[4];
+			for (int t = 0; t != futures.length; ++t) {
+				int offset = t * 1000;
+				futures[t] = readers.submit(() -> {
+					for (int i = 0; i != 5000; ++i) {
+						source.get(key("k" + (offset + (i % 100))));
+					}
+					return null;
+				});
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			readers.shutdownNow();
+		}
+		read(source, "a", "b", "a", "b");
+		recorder.prefetched.clear();
+		source.get(key("a"));
+		assertTrue(recorder.prefetched.contains(key("b")));
+	}
+
+	private static void read(AdaptivePrefetcher<String> source, String... ids) throws IOException {
+		for (String id : ids) {
+			source.get(key(id));
+		}
+	}
+
+	/**
+	 * Records the keys prefetched, rather than loading them.
+	 */
+	private static class Recorder extends Prefetcher<String> {
+		private final List<Key<String, ?>> prefetched = Collections.synchronizedList(new ArrayList<>());
+
+		public Recorder() {
+			super(new HashMapStore<>(), Runnable::run, 1);
+		}
+
+		@Override
+		public boolean prefetch(Key<String, ?> key) {
+			prefetched.add(key);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class BuildGraphTests {
+	@TempDir
+	File dir;
+
+	/**
+	 * Construct a graph where task A reads x and writes y, task B reads y and
+	 * writes z, and task C lists the keys under w/.
+	 *
+	 * @param store
+	 * @return
+	 * @throws IOException
+	 */
+	private static BuildGraph<String> build(HashMapStore<String> store) throws IOException {
+		store.put(key("x"), text("x"));
+		store.put(key("w/1"), text("w1"));
+		store.put(key("w/2"), text("w2"));
+		BuildGraph<String> graph = new BuildGraph<>(ENCDEC);
+		BuildGraph<String>.Task a = graph.begin("A");
+		a.source(store).get(key("x"));
+		a.sink(store).put(key("y"), text("y"));
+		a.commit();
+		BuildGraph<String>.Task b = graph.begin("B");
+		b.source(store).get(key("y"));
+		b.sink(store).put(key("z"), text("z"));
+		b.commit();
+		BuildGraph<String>.Task c = graph.begin("C");
+		c.source(store).match(k -> k.id().startsWith("w/"));
+		c.commit();
+		return graph;
+	}
+
+	@Test
+	public void test_01() throws IOException {
+		// Staleness propagates through outputs
+		BuildGraph<String> graph = build(new HashMapStore<>());
+		assertEquals(Set.of("A", "B"), graph.getStale(List.of(key("x"))));
+		assertEquals(Set.of(), graph.getStale(List.of(key("unknown"))));
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Changing an output externally makes its producer stale
+		BuildGraph<String> graph = build(new HashMapStore<>());
+		assertEquals(Set.of("A", "B"), graph.getStale(List.of(key("y"))));
+		assertEquals(Set.of("B"), graph.getStale(List.of(key("z"))));
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Matching records presence only, without loading content
+		HashMapStore<String> store = new HashMapStore<>();
+		BuildGraph<String> graph = build(store);
+		assertEquals(Set.of(key("w/1"), key("w/2")), graph.getMatches("C"));
+		assertTrue(graph.getReads("C").isEmpty());
+		int[] gets = new int[1];
+		Content.Source<String> counting = new Content.Source<String>() {
+			@Override
+			public <T extends Content> T get(Key<String, T> key) throws IOException {
+				gets[0]++;
+				return store.get(key);
+			}
+
+			@Override
+			public <T extends Content> List<T> getAll(Predicate<Key<String, ?>> query) throws IOException {
+				return store.getAll(query);
+			}
+
+			@Override
+			public <T extends Content> List<Key<String, T>> match(Predicate<Key<String, ?>> query) {
+				return store.match(query);
+			}
+		};
+		// Changing content of a matched key is not a change, but removing it is.
+		store.put(key("w/1"), text("changed"));
+		assertEquals(Set.of(), graph.getChanged(counting));
+		store.remove(key("w/2"));
+		assertEquals(Set.of(key("w/2")), graph.getChanged(counting));
+		assertEquals(Set.of("C"), graph.getStale(graph.getChanged(counting)));
+		// Only x, which A read, is ever loaded
+		assertEquals(3, gets[0]);
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Graph survives saving and loading
+		HashMapStore<String> store = new HashMapStore<>();
+		build(store).save(new File(dir, "graph"));
+		BuildGraph<String> graph = BuildGraph.load(ENCDEC, new File(dir, "graph"));
+		assertEquals(Set.of("A", "B", "C"), graph.getTasks());
+		assertEquals(Set.of(key("w/1"), key("w/2")), graph.getMatches("C"));
+		assertEquals(Set.of(key("y")), graph.getWrites("A"));
+		store.put(key("x"), text("changed"));
+		assertEquals(Set.of(key("x")), graph.getChanged(store));
+		assertEquals(Set.of("A", "B"), graph.getStale(graph.getChanged(store)));
+	}
+
+	@Test
+	public void test_05() {
+		// Task names cannot contain line breaks of any kind
+		BuildGraph<String> graph = new BuildGraph<>(ENCDEC);
+		for (String name : new String[] { "a\nb", "a\rb", "a\r\nb", "\r" }) {
+			assertThrows(IllegalArgumentException.class, () -> graph.begin(name));
+		}
+		assertThrows(IllegalArgumentException.class, () -> graph.begin(null));
+	}
+}
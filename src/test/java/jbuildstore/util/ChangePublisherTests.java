@@ -0,0 +1,301 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class ChangePublisherTests {
+	/**
+	 * An executor which queues tasks until explicitly run, such that deliveries
+	 * happen at known points.
+	 */
+	private static class ManualExecutor implements Executor {
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		private int executed;
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.add(task);
+			executed = executed + 1;
+		}
+
+		public void run() {
+			while (!tasks.isEmpty()) {
+				tasks.poll().run();
+			}
+		}
+	}
+
+	/**
+	 * A subscriber which records everything delivered to it, and initially
+	 * requests a given number of changes.
+	 */
+	private static class Recorder implements Flow.Subscriber<ChangePublisher.Change<String>> {
+		private final long initial;
+		private final List<String> changes = new ArrayList<>();
+		private Flow.Subscription subscription;
+		private Throwable error;
+		private boolean completed;
+
+		public Recorder(long initial) {
+			this.initial = initial;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			if (initial > 0) {
+				subscription.request(initial);
+			}
+		}
+
+		@Override
+		public void onNext(ChangePublisher.Change<String> change) {
+			changes.add(change.getKey() == null ? change.getKind().toString()
+					: change.getKind() + " " + change.getKey().id());
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+	}
+
+	@Test
+	public void test_01() {
+		// Changes to the same key are coalesced for each subscriber independently
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 16);
+		Recorder fast = new Recorder(Long.MAX_VALUE);
+		Recorder slow = new Recorder(0);
+		publisher.subscribe(fast);
+		publisher.subscribe(slow);
+		publisher.publish(ChangePublisher.Kind.PUT, key("a"));
+		executor.run();
+		publisher.publish(ChangePublisher.Kind.PUT, key("b"));
+		publisher.publish(ChangePublisher.Kind.REMOVE, key("a"));
+		executor.run();
+		assertEquals(Arrays.asList("PUT a", "PUT b", "REMOVE a"), fast.changes);
+		assertTrue(slow.changes.isEmpty());
+		slow.subscription.request(Long.MAX_VALUE);
+		executor.run();
+		// Only the latest change to each key remains, in order of its latest occurrence
+		assertEquals(Arrays.asList("PUT b", "REMOVE a"), slow.changes);
+	}
+
+	@Test
+	public void test_02() {
+		// A full buffer is replaced with an overflow
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 2);
+		Recorder r = new Recorder(0);
+		publisher.subscribe(r);
+		publisher.publish(ChangePublisher.Kind.PUT, key("a"));
+		publisher.publish(ChangePublisher.Kind.PUT, key("b"));
+		// Coalesced changes do not count towards the capacity
+		publisher.publish(ChangePublisher.Kind.PUT, key("b"));
+		publisher.publish(ChangePublisher.Kind.PUT, key("c"));
+		r.subscription.request(Long.MAX_VALUE);
+		executor.run();
+		assertEquals(Arrays.asList("OVERFLOW", "PUT c"), r.changes);
+	}
+
+	@Test
+	public void test_03() {
+		// No more changes are delivered than requested
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 16);
+		Recorder r = new Recorder(2);
+		publisher.subscribe(r);
+		for (String id : new String[] { "a", "b", "c", "d" }) {
+			publisher.publish(ChangePublisher.Kind.PUT, key(id));
+		}
+		executor.run();
+		assertEquals(Arrays.asList("PUT a", "PUT b"), r.changes);
+		r.subscription.request(1);
+		executor.run();
+		assertEquals(Arrays.asList("PUT a", "PUT b", "PUT c"), r.changes);
+		// Demand saturates rather than overflowing
+		r.subscription.request(Long.MAX_VALUE);
+		r.subscription.request(Long.MAX_VALUE);
+		executor.run();
+		assertEquals(4, r.changes.size());
+		publisher.publish(ChangePublisher.Kind.PUT, key("e"));
+		executor.run();
+		assertEquals(5, r.changes.size());
+	}
+
+	@Test
+	public void test_04() {
+		// Non-positive requests are reported as errors, and end the subscription
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 16);
+		Recorder r = new Recorder(0);
+		publisher.subscribe(r);
+		publisher.publish(ChangePublisher.Kind.PUT, key("a"));
+		r.subscription.request(0);
+		executor.run();
+		assertTrue(r.error instanceof IllegalArgumentException);
+		assertTrue(r.changes.isEmpty());
+		assertFalse(publisher.hasSubscribers());
+	}
+
+	@Test
+	public void test_05() {
+		// Cancelled subscribers receive nothing further
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 16);
+		Recorder r = new Recorder(Long.MAX_VALUE);
+		publisher.subscribe(r);
+		publisher.publish(ChangePublisher.Kind.PUT, key("a"));
+		r.subscription.cancel();
+		assertFalse(publisher.hasSubscribers());
+		publisher.publish(ChangePublisher.Kind.PUT, key("b"));
+		executor.run();
+		assertTrue(r.changes.isEmpty());
+		assertFalse(r.completed);
+	}
+
+	@Test
+	public void test_06() {
+		// A subscriber which throws is cancelled
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 16);
+		Recorder r = new Recorder(Long.MAX_VALUE) {
+			@Override
+			public void onNext(ChangePublisher.Change<String> change) {
+				super.onNext(change);
+				throw new IllegalStateException();
+			}
+		};
+		publisher.subscribe(r);
+		publisher.publish(ChangePublisher.Kind.PUT, key("a"));
+		publisher.publish(ChangePublisher.Kind.PUT, key("b"));
+		executor.run();
+		assertEquals(Arrays.asList("PUT a"), r.changes);
+		assertFalse(publisher.hasSubscribers());
+	}
+
+	@Test
+	public void test_07() {
+		// Only one delivery task is outstanding at any time, and it drains
+		// everything published before it runs.
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 64);
+		Recorder r = new Recorder(Long.MAX_VALUE);
+		publisher.subscribe(r);
+		executor.run();
+		int before = executor.executed;
+		for (int i = 0; i != 10; ++i) {
+			publisher.publish(ChangePublisher.Kind.PUT, key("k" + i));
+		}
+		assertEquals(before + 1, executor.executed);
+		executor.run();
+		assertEquals(10, r.changes.size());
+		// Changes published whilst draining are delivered by the same task
+		ChangePublisher<String> other = new ChangePublisher<>(executor, 64);
+		Recorder nested = new Recorder(Long.MAX_VALUE) {
+			@Override
+			public void onNext(ChangePublisher.Change<String> change) {
+				super.onNext(change);
+				if (change.getKey().id().equals("x")) {
+					other.publish(ChangePublisher.Kind.PUT, key("y"));
+				}
+			}
+		};
+		other.subscribe(nested);
+		executor.run();
+		before = executor.executed;
+		other.publish(ChangePublisher.Kind.PUT, key("x"));
+		executor.run();
+		assertEquals(before + 1, executor.executed);
+		assertEquals(Arrays.asList("PUT x", "PUT y"), nested.changes);
+	}
+
+	@Test
+	public void test_08() {
+		// Closing completes subscribers once remaining changes are delivered
+		ManualExecutor executor = new ManualExecutor();
+		ChangePublisher<String> publisher = new ChangePublisher<>(executor, 16);
+		Recorder r = new Recorder(0);
+		publisher.subscribe(r);
+		publisher.publish(ChangePublisher.Kind.PUT, key("a"));
+		publisher.close();
+		executor.run();
+		assertFalse(r.completed);
+		r.subscription.request(1);
+		executor.run();
+		assertEquals(Arrays.asList("PUT a"), r.changes);
+		assertTrue(r.completed);
+		// Subscribers arriving later are completed immediately
+		Recorder late = new Recorder(1);
+		publisher.subscribe(late);
+		executor.run();
+		assertTrue(late.completed);
+	}
+
+	@Test
+	public void test_09() throws InterruptedException {
+		// Stores publish their changes, but not removals of absent keys
+		HashMapStore<String> store = new HashMapStore<>();
+		BlockingQueue<ChangePublisher.Change<String>> received = new LinkedBlockingQueue<>();
+		store.getChanges().subscribe(new Flow.Subscriber<ChangePublisher.Change<String>>() {
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(ChangePublisher.Change<String> change) {
+				received.add(change);
+			}
+
+			@Override
+			public void onError(Throwable error) {
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+		store.put(key("a"), text("a"));
+		ChangePublisher.Change<String> c = received.poll(10, TimeUnit.SECONDS);
+		assertEquals(ChangePublisher.Kind.PUT, c.getKind());
+		assertEquals(key("a"), c.getKey());
+		store.remove(key("b"));
+		store.remove(key("a"));
+		c = received.poll(10, TimeUnit.SECONDS);
+		assertEquals(ChangePublisher.Kind.REMOVE, c.getKind());
+		assertEquals(key("a"), c.getKey());
+		assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+	}
+}
@@ -0,0 +1,156 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import jbuildstore.core.Content;
+
+public class CodecTests {
+	/**
+	 * A simple content type holding a name, a count and some tags.
+	 */
+	private static final class Item implements Content {
+		private final Content.Type<Item> type;
+		private final String name;
+		private final long count;
+		private final List<String> tags;
+
+		public Item(Content.Type<Item> type, String name, long count, List<String> tags) {
+			this.type = type;
+			this.name = name;
+			this.count = count;
+			this.tags = tags;
+		}
+
+		@Override
+		public Content.Type<Item> contentType() {
+			return type;
+		}
+	}
+
+	private static Codec.Type<Item> type(int version) {
+		Codec.Type<Item>[] type = newTypes(1);
+		type[0] = new Codec.Type<>("item", version, Codec.of((out, i) -> {
+			out.writeString(i.name);
+			out.writeLong(i.count);
+			Codec.list(Codec.STRING).encode(out, i.tags);
+		}, in -> new Item(type[0], in.readString(), in.readLong(), Codec.list(Codec.STRING).decode(in))));
+		return type[0];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Content> Codec.Type<T>[] newTypes(int n) {
+		return (Codec.Type<T>[]) new Codec.Type<?>[n];
+	}
+
+	private static <T extends Content> byte[] write(Content.Type<T> type, T value) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		type.write(bout, value);
+		return bout.toByteArray();
+	}
+
+	@Test
+	public void test_01() throws IOException {
+		// Values survive a round trip, including repeated and non-ASCII strings
+		Codec.Type<Item> type = type(1);
+		Item item = new Item(type, "caf\u00e9", -123456789012L, Arrays.asList("a", "b", "a", "caf\u00e9"));
+		Item copy = type.read(new ByteArrayInputStream(write(type, item)));
+		assertEquals(item.name, copy.name);
+		assertEquals(item.count, copy.count);
+		assertEquals(item.tags, copy.tags);
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Entries written with an older version are read by its supported codec
+		Codec.Type<Item> v1 = type(1);
+		byte[] bytes = write(v1, new Item(v1, "x", 1, List.of()));
+		Codec.Type<Item> v2 = type(2);
+		assertThrows(IOException.class, () -> v2.read(new ByteArrayInputStream(bytes)));
+		v2.support(1, Codec.of((out, i) -> {
+			throw new IOException("read only");
+		}, in -> new Item(v2, in.readString() + "!", in.readLong(), Codec.list(Codec.STRING).decode(in))));
+		assertEquals("x!", v2.read(new ByteArrayInputStream(bytes)).name);
+		assertEquals(2, v2.getVersion());
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Writing and reading may be nested on the same thread
+		Codec.Type<Item> inner = type(1);
+		Codec.Type<Item> outer = new Codec.Type<>("outer", 1, Codec.of((out, i) -> {
+			out.writeString(i.name);
+			out.writeBytes(write(inner, i));
+			out.writeString(i.name);
+		}, in -> {
+			String name = in.readString();
+			Item i = inner.read(new ByteArrayInputStream(in.readBytes()));
+			assertEquals(name, in.readString());
+			return i;
+		}));
+		Item item = new Item(inner, "n", 7, List.of("t"));
+		Item copy = outer.read(new ByteArrayInputStream(write(outer, item)));
+		assertEquals("n", copy.name);
+		assertEquals(7, copy.count);
+		assertEquals(List.of("t"), copy.tags);
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Records, unions and nullable values round trip
+		Codec<int[]> pair = Codec.record(Codec.INT, p -> p[0], Codec.INT, p -> p[1], (x, y) -> new int[] { x, y });
+		Codec.Union<Object> union = new Codec.Union<>().add(0, String.class, Codec.STRING).add(5, int[].class, pair);
+		Codec<Object> codec = Codec.nullable(union);
+		Codec.Encoder out = new Codec.Encoder();
+		codec.encode(out, "s");
+		codec.encode(out, new int[] { -1, Integer.MAX_VALUE });
+		codec.encode(out, null);
+		Codec.Decoder in = new Codec.Decoder(out.toByteArray());
+		assertEquals("s", codec.decode(in));
+		assertArrayEquals(new int[] { -1, Integer.MAX_VALUE }, (int[]) codec.decode(in));
+		assertNull(codec.decode(in));
+		assertEquals(0, in.remaining());
+	}
+
+	@Test
+	public void test_05() {
+		// Union tags are bounded, and unknown tags are rejected
+		Codec.Union<Object> union = new Codec.Union<>();
+		assertThrows(IllegalArgumentException.class, () -> union.add(Integer.MAX_VALUE, String.class, Codec.STRING));
+		assertThrows(IllegalArgumentException.class, () -> union.add(-1, String.class, Codec.STRING));
+		union.add(Codec.Union.MAX_TAG, String.class, Codec.STRING);
+		Codec.Encoder out = new Codec.Encoder();
+		out.writeUnsigned(3);
+		assertThrows(IOException.class, () -> union.decode(new Codec.Decoder(out.toByteArray())));
+	}
+
+	@Test
+	public void test_06() {
+		// Corrupt five byte varints which decode as negative are rejected
+		byte[] corrupt = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F };
+		Codec.Union<Object> union = new Codec.Union<>().add(0, String.class, Codec.STRING);
+		assertThrows(IOException.class, () -> union.decode(new Codec.Decoder(corrupt)));
+		assertThrows(IOException.class, () -> new Codec.Decoder(corrupt).readString());
+		assertThrows(IOException.class, () -> new Codec.Decoder(corrupt).readLength());
+	}
+}
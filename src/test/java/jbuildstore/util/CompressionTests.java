@@ -0,0 +1,179 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class CompressionTests {
+	private static final Content.Type<BinaryFile> BINARY = BinaryFile.ContentType("bin");
+
+	@TempDir
+	File dir;
+
+	private static byte[] write(Compression c, Key<String, ?> key, Content value) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		c.write(key, bout, value);
+		return bout.toByteArray();
+	}
+
+	private static boolean startsWith(byte[] bytes, byte[] header) {
+		return Arrays.equals(bytes, 0, header.length, header, 0, header.length);
+	}
+
+	@Test
+	public void test_01() throws IOException {
+		// Large compressible entries are compressed
+		Compression c = new Compression(6, 16);
+		String s = "abcdefgh".repeat(100);
+		byte[] bytes = write(c, key("a"), text(s));
+		assertTrue(startsWith(bytes, Compression.MAGIC));
+		assertTrue(bytes.length < s.length());
+		assertEquals(s, string((TextFile) c.read(key("a"), new ByteArrayInputStream(bytes))));
+		assertEquals(1, c.getCompressedCount());
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Small entries are left uncompressed
+		Compression c = new Compression(6, 16);
+		byte[] bytes = write(c, key("a"), text("tiny"));
+		assertEquals("JBSRtiny", new String(bytes, "UTF-8"));
+		assertEquals("tiny", string((TextFile) c.read(key("a"), new ByteArrayInputStream(bytes))));
+		assertEquals(0, c.getCompressedCount());
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Uncompressed entries beginning with a header are read correctly
+		Compression c = new Compression(6, 1024);
+		for (String s : new String[] { "", "JBSZ", "JBSZ and more", "JBSR", "JBSRJBSZ" }) {
+			byte[] bytes = write(c, key("a"), text(s));
+			assertTrue(startsWith(bytes, Compression.RAW));
+			assertEquals(s, string((TextFile) c.read(key("a"), new ByteArrayInputStream(bytes))));
+		}
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Entries of types not selected are never compressed
+		Compression c = new Compression(6, 0, BINARY);
+		String s = "JBSZ".repeat(100);
+		byte[] bytes = write(c, key("a"), text(s));
+		assertEquals(0, c.getCompressedCount());
+		assertEquals(s, string((TextFile) c.read(key("a"), new ByteArrayInputStream(bytes))));
+	}
+
+	@Test
+	public void test_05() throws IOException {
+		// Entries which do not compress are stored uncompressed
+		Compression c = new Compression(9, 16);
+		byte[] payload = new byte[4096];
+		new Random(0).nextBytes(payload);
+		Key<String, BinaryFile> k = new Key.Pair<>("a", BINARY);
+		byte[] bytes = write(c, k, new BinaryFile(BINARY, payload));
+		assertEquals(0, c.getCompressedCount());
+		assertTrue(startsWith(bytes, Compression.RAW));
+		assertArrayEquals(payload, ((BinaryFile) c.read(k, new ByteArrayInputStream(bytes))).getBytes());
+	}
+
+	@Test
+	public void test_06() throws IOException {
+		// Files written before compression was enabled can still be read, even when
+		// they begin with a header.
+		String[] contents = { "JBSZ written without policy", "JBSR written without policy", "JBSZx", "plain" };
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		for (int i = 0; i != contents.length; ++i) {
+			store.put(key("f" + i), text(contents[i]));
+		}
+		store.synchronise();
+		DirectoryStore<String> reopened = new DirectoryStore<>(ENCDEC, dir);
+		reopened.setCompression(new Compression(6, 0));
+		assertTrue(new File(dir, DirectoryStore.COMPRESSION_FILE).exists());
+		for (int i = 0; i != contents.length; ++i) {
+			assertEquals(contents[i], string(reopened.get(key("f" + i))));
+		}
+		// Existing stores observe this on refresh, and stores without a policy
+		// can read the directory.
+		assertTrue(store.refresh());
+		DirectoryStore<String> plain = new DirectoryStore<>(ENCDEC, dir);
+		for (int i = 0; i != contents.length; ++i) {
+			assertEquals(contents[i], string(store.get(key("f" + i))));
+			assertEquals(contents[i], string(plain.get(key("f" + i))));
+		}
+	}
+
+	@Test
+	public void test_07() throws IOException {
+		// Compressed entries survive a round trip through a store
+		Compression c = new Compression(6, 16);
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.setCompression(c);
+		String s = "abcdefgh".repeat(100);
+		store.put(key("big"), text(s));
+		store.put(key("escaped"), text("JBSZ"));
+		store.synchronise();
+		assertTrue(Files.size(new File(dir, "big.txt").toPath()) < s.length());
+		DirectoryStore<String> reopened = new DirectoryStore<>(ENCDEC, dir);
+		reopened.setCompression(c);
+		assertEquals(s, string(reopened.get(key("big"))));
+		assertEquals("JBSZ", string(reopened.get(key("escaped"))));
+	}
+
+	@Test
+	public void test_08() throws IOException {
+		// Corrupt or unmarked entries are reported rather than misread
+		Compression c = new Compression(6, 16);
+		byte[] bytes = write(c, key("a"), text("abcdefgh".repeat(100)));
+		byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+		assertThrows(IOException.class, () -> c.read(key("a"), new ByteArrayInputStream(truncated)));
+		byte[] header = Arrays.copyOf(bytes, Compression.MAGIC.length + 1);
+		assertThrows(IOException.class, () -> c.read(key("a"), new ByteArrayInputStream(header)));
+		byte[] plain = "plain".getBytes("UTF-8");
+		assertThrows(IOException.class, () -> c.read(key("a"), new ByteArrayInputStream(plain)));
+	}
+
+	@Test
+	public void test_09() throws IOException {
+		// Entries written behind after compression is enabled are written with a header
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.setWriteBehind(1 << 20);
+		store.put(key("a"), text("JBSZ before"));
+		store.setCompression(new Compression(6, 16));
+		store.put(key("b"), text("abcdefgh".repeat(100)));
+		store.put(key("c"), text("JBSR after"));
+		store.synchronise();
+		store.setWriteBehind(0);
+		DirectoryStore<String> reopened = new DirectoryStore<>(ENCDEC, dir);
+		assertEquals("JBSZ before", string(reopened.get(key("a"))));
+		assertEquals("abcdefgh".repeat(100), string(reopened.get(key("b"))));
+		assertEquals("JBSR after", string(reopened.get(key("c"))));
+		assertTrue(startsWith(Files.readAllBytes(new File(dir, "a.txt").toPath()), Compression.RAW));
+		assertTrue(startsWith(Files.readAllBytes(new File(dir, "b.txt").toPath()), Compression.MAGIC));
+	}
+}
@@ -0,0 +1,113 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ContentAddressedStoreTests {
+	@TempDir
+	File dir;
+
+	@Test
+	public void test_01() throws IOException {
+		// Identical content shares a single blob
+		ContentAddressedStore<String> store = new ContentAddressedStore<>(ENCDEC, dir);
+		store.put(key("a"), text("same"));
+		store.put(key("b"), text("same"));
+		store.put(key("c"), text("different"));
+		store.synchronise();
+		assertEquals(2, store.getBlobCount());
+		assertEquals(2, countFiles(new File(dir, ContentAddressedStore.BLOBS)));
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Blob is only deleted once its last reference is removed
+		ContentAddressedStore<String> store = new ContentAddressedStore<>(ENCDEC, dir);
+		store.put(key("a"), text("same"));
+		store.put(key("b"), text("same"));
+		store.synchronise();
+		store.remove(key("a"));
+		store.synchronise();
+		assertEquals(1, store.getBlobCount());
+		assertEquals(1, countFiles(new File(dir, ContentAddressedStore.BLOBS)));
+		assertEquals("same", string(store.get(key("b"))));
+		store.remove(key("b"));
+		store.synchronise();
+		assertEquals(0, store.getBlobCount());
+		assertEquals(0, countFiles(new File(dir, ContentAddressedStore.BLOBS)));
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Overwriting a key releases its previous blob
+		ContentAddressedStore<String> store = new ContentAddressedStore<>(ENCDEC, dir);
+		store.put(key("a"), text("first"));
+		store.synchronise();
+		store.put(key("a"), text("second"));
+		store.synchronise();
+		assertEquals(1, store.getBlobCount());
+		assertEquals(1, countFiles(new File(dir, ContentAddressedStore.BLOBS)));
+		assertEquals("second", string(store.get(key("a"))));
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Reference counts are reconstructed from the index
+		ContentAddressedStore<String> store = new ContentAddressedStore<>(ENCDEC, dir);
+		store.put(key("a"), text("same"));
+		store.put(key("b"), text("same"));
+		store.synchronise();
+		ContentAddressedStore<String> reopened = new ContentAddressedStore<>(ENCDEC, dir);
+		assertEquals(1, reopened.getBlobCount());
+		reopened.remove(key("a"));
+		reopened.synchronise();
+		assertEquals("same", string(reopened.get(key("b"))));
+		assertEquals(1, countFiles(new File(dir, ContentAddressedStore.BLOBS)));
+	}
+
+	@Test
+	public void test_05() throws IOException {
+		// Garbage collection deletes unreferenced blobs only
+		ContentAddressedStore<String> store = new ContentAddressedStore<>(ENCDEC, dir);
+		store.put(key("a"), text("kept"));
+		store.synchronise();
+		File stray = new File(new File(new File(dir, ContentAddressedStore.BLOBS), "00"), "stray");
+		stray.getParentFile().mkdirs();
+		assertTrue(stray.createNewFile());
+		assertEquals(1, store.gc());
+		assertFalse(stray.exists());
+		assertEquals(0, store.gc());
+		assertEquals("kept", string(store.get(key("a"))));
+	}
+
+	@Test
+	public void test_06() throws IOException {
+		// Unsynchronised writes are not visible when reopened
+		ContentAddressedStore<String> store = new ContentAddressedStore<>(ENCDEC, dir);
+		store.put(key("a"), text("a"));
+		store.synchronise();
+		store.put(key("b"), text("b"));
+		ContentAddressedStore<String> reopened = new ContentAddressedStore<>(ENCDEC, dir);
+		assertNull(reopened.get(key("b")));
+		assertEquals("a", string(reopened.get(key("a"))));
+	}
+}
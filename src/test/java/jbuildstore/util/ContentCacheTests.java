@@ -0,0 +1,164 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jbuildstore.core.Content;
+
+public class ContentCacheTests {
+	@TempDir
+	File dir;
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a text file through a cache, counting the number of times it is
+	 * actually decoded.
+	 */
+	private static Content read(ContentCache cache, String s, AtomicInteger decoded) throws IOException {
+		return cache.read(TEXT, bytes(s), in -> {
+			decoded.incrementAndGet();
+			return TEXT.read(in);
+		});
+	}
+
+	private DirectoryStore<String> open(String name, ContentCache cache, Compression compression)
+			throws IOException {
+		File root = new File(dir, name);
+		root.mkdirs();
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, root);
+		if (compression != null) {
+			store.setCompression(compression);
+		}
+		store.setContentCache(cache);
+		return store;
+	}
+
+	@Test
+	public void test_01() throws IOException {
+		// Identical bytes are decoded once
+		ContentCache cache = new ContentCache(1024);
+		AtomicInteger decoded = new AtomicInteger();
+		Content a = read(cache, "hello", decoded);
+		Content b = read(cache, "hello", decoded);
+		assertSame(a, b);
+		assertEquals(1, decoded.get());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(5, cache.getBytes());
+		// The same bytes of another content type are not shared
+		Content.Type<BinaryFile> bin = BinaryFile.ContentType("bin");
+		assertTrue(cache.read(bin, bytes("hello")) instanceof BinaryFile);
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// The least recently used values are evicted once the byte budget is exceeded
+		ContentCache cache = new ContentCache(80);
+		AtomicInteger decoded = new AtomicInteger();
+		for (char c = 'a'; c <= 'h'; ++c) {
+			read(cache, Character.toString(c).repeat(10), decoded);
+		}
+		assertEquals(8, cache.size());
+		assertEquals(80, cache.getBytes());
+		// Touch the eldest, so the next eldest is evicted instead
+		read(cache, "a".repeat(10), decoded);
+		read(cache, "i".repeat(10), decoded);
+		assertEquals(8, cache.size());
+		assertEquals(80, cache.getBytes());
+		assertEquals(1, cache.getEvictions());
+		decoded.set(0);
+		read(cache, "a".repeat(10), decoded);
+		assertEquals(0, decoded.get());
+		read(cache, "b".repeat(10), decoded);
+		assertEquals(1, decoded.get());
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Values larger than an eighth of the capacity are never cached
+		ContentCache cache = new ContentCache(80);
+		AtomicInteger decoded = new AtomicInteger();
+		read(cache, "x".repeat(10), decoded);
+		read(cache, "y".repeat(11), decoded);
+		read(cache, "y".repeat(11), decoded);
+		assertEquals(3, decoded.get());
+		assertEquals(1, cache.size());
+		assertEquals(10, cache.getBytes());
+		assertEquals(0, cache.getEvictions());
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Identical files in different stores are deserialised once
+		ContentCache cache = new ContentCache(1024);
+		DirectoryStore<String> first = open("first", cache, null);
+		DirectoryStore<String> second = open("second", cache, null);
+		first.put(key("a"), text("shared"));
+		second.put(key("a"), text("shared"));
+		second.put(key("b"), text("other"));
+		first.synchronise();
+		second.synchronise();
+		first = open("first", cache, null);
+		second = open("second", cache, null);
+		assertSame(first.get(key("a")), second.get(key("a")));
+		assertEquals("other", string(second.get(key("b"))));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void test_05() throws IOException {
+		// Files are cached by their bytes on disk, hence after compression
+		ContentCache cache = new ContentCache(1 << 20);
+		Compression compression = new Compression(6, 16);
+		String s = "abcdefgh".repeat(100);
+		DirectoryStore<String> first = open("first", cache, compression);
+		DirectoryStore<String> second = open("second", cache, compression);
+		DirectoryStore<String> plain = open("plain", cache, null);
+		first.put(key("a"), text(s));
+		second.put(key("a"), text(s));
+		plain.put(key("a"), text(s));
+		first.synchronise();
+		second.synchronise();
+		plain.synchronise();
+		first = open("first", cache, compression);
+		second = open("second", cache, null);
+		plain = open("plain", cache, null);
+		TextFile a = first.get(key("a"));
+		assertEquals(s, string(a));
+		// The directory is compressed, so is decompressed even without a policy
+		assertSame(a, second.get(key("a")));
+		// Uncompressed files differ on disk, hence are not shared
+		TextFile b = plain.get(key("a"));
+		assertNotSame(a, b);
+		assertEquals(s, string(b));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertTrue(cache.getBytes() < s.length() * 2);
+	}
+}
@@ -0,0 +1,358 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class DirectoryStoreTests {
+	@TempDir
+	File dir;
+
+	@Test
+	public void test_01() throws IOException {
+		// Removed entries are deleted on synchronise
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.put(key("a/b"), text("b"));
+		store.put(key("c"), text("c"));
+		store.synchronise();
+		assertTrue(new File(dir, "a/b.txt").exists());
+		store.remove(key("a/b"));
+		assertTrue(new File(dir, "a/b.txt").exists());
+		store.synchronise();
+		assertFalse(new File(dir, "a/b.txt").exists());
+		assertEquals("c", read(new File(dir, "c.txt")));
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Removing an entry which was never flushed writes nothing
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.put(key("a"), text("a"));
+		store.remove(key("a"));
+		store.synchronise();
+		assertFalse(new File(dir, "a.txt").exists());
+		assertNull(store.get(key("a")));
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Rewriting a removed entry before synchronising retains the file
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.put(key("a"), text("first"));
+		store.synchronise();
+		store.remove(key("a"));
+		store.put(key("a"), text("second"));
+		store.synchronise();
+		assertEquals("second", read(new File(dir, "a.txt")));
+		assertEquals("second", string(new DirectoryStore<>(ENCDEC, dir).get(key("a"))));
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Removals are not visible in earlier snapshots
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.put(key("a"), text("a"));
+		store.synchronise();
+		Content.Source<String> snapshot = store.snapshot();
+		store.remove(key("a"));
+		assertNull(store.get(key("a")));
+		assertEquals("a", string(snapshot.get(key("a"))));
+	}
+
+	@Test
+	public void test_05() throws IOException {
+		// Synchronise leaves orphaned files, whilst sweep deletes only recognised ones
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.put(key("a"), text("a"));
+		store.synchronise();
+		Files.write(new File(dir, "orphan.txt").toPath(), new byte[0]);
+		Files.write(new File(dir, "other.dat").toPath(), new byte[0]);
+		store.synchronise();
+		assertTrue(new File(dir, "orphan.txt").exists());
+		assertEquals(1, store.sweep());
+		assertFalse(new File(dir, "orphan.txt").exists());
+		assertTrue(new File(dir, "other.dat").exists());
+		assertTrue(new File(dir, "a.txt").exists());
+		assertEquals(0, store.sweep());
+	}
+
+	@Test
+	public void test_06() throws IOException {
+		// Removals made through a transaction are deleted on synchronise
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.put(key("a"), text("a"));
+		store.put(key("b"), text("b"));
+		store.synchronise();
+		try (Content.Transaction<String> tx = store.begin()) {
+			tx.remove(key("a"));
+			tx.commit();
+		}
+		store.synchronise();
+		assertFalse(new File(dir, "a.txt").exists());
+		assertTrue(new File(dir, "b.txt").exists());
+	}
+
+	@Test
+	public void test_07() throws IOException {
+		// Changes made by another store are picked up on refresh
+		DirectoryStore<String> first = new DirectoryStore<>(ENCDEC, dir);
+		first.put(key("a"), text("a"));
+		first.synchronise();
+		DirectoryStore<String> second = new DirectoryStore<>(ENCDEC, dir);
+		second.put(key("a"), text("changed"));
+		second.put(key("b"), text("b"));
+		second.synchronise();
+		assertTrue(first.refresh());
+		assertEquals("changed", string(first.get(key("a"))));
+		assertEquals("b", string(first.get(key("b"))));
+		assertFalse(first.refresh());
+	}
+
+	@Test
+	public void test_08() throws IOException {
+		// Conflicting writes are detected, and resolved by reverting
+		DirectoryStore<String> first = new DirectoryStore<>(ENCDEC, dir);
+		first.put(key("a"), text("a"));
+		first.synchronise();
+		DirectoryStore<String> second = new DirectoryStore<>(ENCDEC, dir);
+		second.put(key("a"), text("second"));
+		second.synchronise();
+		first.put(key("a"), text("first"));
+		first.put(key("b"), text("b"));
+		IOException e = assertThrows(IOException.class, () -> first.synchronise());
+		assertTrue(e.getMessage().contains(key("a").toString()));
+		// Nothing was written
+		assertEquals("second", read(new File(dir, "a.txt")));
+		assertFalse(new File(dir, "b.txt").exists());
+		first.revert(key("a"));
+		first.synchronise();
+		assertEquals("second", string(first.get(key("a"))));
+		assertEquals("b", read(new File(dir, "b.txt")));
+	}
+
+	@Test
+	public void test_09() throws IOException {
+		// Removing a file rewritten by another store is a conflict
+		DirectoryStore<String> first = new DirectoryStore<>(ENCDEC, dir);
+		first.put(key("a"), text("a"));
+		first.synchronise();
+		DirectoryStore<String> second = new DirectoryStore<>(ENCDEC, dir);
+		second.put(key("a"), text("second"));
+		second.synchronise();
+		first.remove(key("a"));
+		assertThrows(IOException.class, () -> first.synchronise());
+		assertTrue(new File(dir, "a.txt").exists());
+	}
+
+	@Test
+	public void test_10() throws IOException {
+		// Removing a file already deleted by another store is not a conflict
+		DirectoryStore<String> first = new DirectoryStore<>(ENCDEC, dir);
+		first.put(key("a"), text("a"));
+		first.synchronise();
+		DirectoryStore<String> second = new DirectoryStore<>(ENCDEC, dir);
+		second.remove(key("a"));
+		second.synchronise();
+		first.remove(key("a"));
+		first.synchronise();
+		first.synchronise();
+		assertFalse(new File(dir, "a.txt").exists());
+		// Likewise when deleted outside of any store
+		first.put(key("b"), text("b"));
+		first.synchronise();
+		first.remove(key("b"));
+		assertTrue(new File(dir, "b.txt").delete());
+		first.synchronise();
+	}
+
+	@Test
+	public void test_11() throws Exception {
+		// Entries written behind reach disk without synchronising
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.setWriteBehind(1024 * 1024);
+		try {
+			store.put(key("a"), text("a"));
+			store.put(key("b"), text("b"));
+			awaitFlushed(store);
+			assertEquals("a", read(new File(dir, "a.txt")));
+			assertEquals("b", read(new File(dir, "b.txt")));
+		} finally {
+			store.setWriteBehind(0);
+		}
+	}
+
+	@Test
+	public void test_12() throws Exception {
+		// Entries removed before being written behind leave nothing on disk
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.setWriteBehind(1024 * 1024);
+		try {
+			for (int i = 0; i != 100; ++i) {
+				store.put(key("k" + i), text("v" + i));
+				store.remove(key("k" + i));
+			}
+			awaitFlushed(store);
+			store.synchronise();
+			for (int i = 0; i != 100; ++i) {
+				assertFalse(new File(dir, "k" + i + ".txt").exists());
+			}
+		} finally {
+			store.setWriteBehind(0);
+		}
+	}
+
+	@Test
+	public void test_13() throws Exception {
+		// An entry removed whilst its first write behind is in progress is deleted
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch removed = new CountDownLatch(1);
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.setMetrics(new Metrics() {
+			@Override
+			public void record(String operation, Content.Type<?> type, long nanos, long bytes) {
+				if (operation.equals("flush") && writing.getCount() > 0) {
+					// The file is in place, but the flush has yet to complete
+					writing.countDown();
+					try {
+						removed.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.record(operation, type, nanos, bytes);
+			}
+		});
+		store.setWriteBehind(1024 * 1024);
+		try {
+			store.put(key("a"), text("a"));
+			writing.await();
+			store.remove(key("a"));
+			removed.countDown();
+			awaitFlushed(store);
+			assertTrue(new File(dir, "a.txt").exists());
+			store.synchronise();
+			assertFalse(new File(dir, "a.txt").exists());
+		} finally {
+			removed.countDown();
+			store.setWriteBehind(0);
+		}
+	}
+
+	@Test
+	public void test_14() throws IOException {
+		// Entries still awaiting a flush when writing behind stops are written on synchronise
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.setWriteBehind(1024 * 1024);
+		store.put(key("a"), text("a"));
+		store.setWriteBehind(0);
+		assertEquals(0, store.getDirtyBytes());
+		store.synchronise();
+		assertEquals("a", read(new File(dir, "a.txt")));
+	}
+
+	@Test
+	public void test_15() throws Exception {
+		// An unexpected failure stops writing behind without blocking writers, and is
+		// reported on synchronise
+		Key.Map<String, String> encdec = new Key.Map<>() {
+			private volatile boolean failed;
+
+			@Override
+			public String encode(Key<String, ?> key) {
+				if (!failed && Thread.currentThread().getName().equals("jbuildstore-write-behind")) {
+					failed = true;
+					throw new IllegalStateException("encode failed");
+				}
+				return ENCDEC.encode(key);
+			}
+
+			@Override
+			public Key<String, ?> decode(String t) {
+				return ENCDEC.decode(t);
+			}
+		};
+		DirectoryStore<String> store = new DirectoryStore<>(encdec, dir);
+		store.setWriteBehind(1);
+		store.put(key("a"), text("a"));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (store.isWritingBehind()) {
+			assertTrue(System.currentTimeMillis() < deadline, "write-behind did not stop");
+			Thread.sleep(1);
+		}
+		assertEquals(0, store.getDirtyBytes());
+		assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+			store.put(key("b"), text("b"));
+			store.put(key("c"), text("c"));
+		});
+		IOException e = assertThrows(IOException.class, () -> store.synchronise());
+		assertTrue(e.getCause() instanceof IllegalStateException);
+		// Everything was nevertheless written, and the failure is reported only once
+		store.synchronise();
+		assertEquals("a", read(new File(dir, "a.txt")));
+		assertEquals("c", read(new File(dir, "c.txt")));
+	}
+
+	@Test
+	public void test_16() throws Exception {
+		// Snapshots are unaffected by entries written behind after they were taken
+		DirectoryStore<String> first = new DirectoryStore<>(ENCDEC, dir);
+		first.put(key("a"), text("old"));
+		first.put(key("b"), text("old"));
+		first.synchronise();
+		// Nothing is loaded in a new store
+		DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, dir);
+		store.setWriteBehind(1024 * 1024);
+		try {
+			Content.Source<String> snapshot = store.snapshot();
+			store.put(key("a"), text("new"));
+			store.remove(key("b"));
+			store.put(key("b"), text("new"));
+			awaitFlushed(store);
+			assertEquals("new", read(new File(dir, "a.txt")));
+			assertEquals("new", read(new File(dir, "b.txt")));
+			assertEquals("old", string(snapshot.get(key("a"))));
+			assertEquals("old", string(snapshot.get(key("b"))));
+			assertEquals("new", string(store.get(key("a"))));
+		} finally {
+			store.setWriteBehind(0);
+		}
+	}
+
+	/**
+	 * Wait until nothing remains awaiting a write-behind flush.
+	 *
+	 * @param store
+	 * @throws InterruptedException
+	 */
+	private static void awaitFlushed(DirectoryStore<String> store) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (store.getDirtyBytes() > 0) {
+			assertTrue(System.currentTimeMillis() < deadline, "write-behind flush timed out");
+			Thread.sleep(1);
+		}
+	}
+}
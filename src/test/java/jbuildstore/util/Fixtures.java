@@ -0,0 +1,96 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+/**
+ * Common keys, values and helpers used across the tests.
+ *
+ * @author David J. Pearce
+ *
+ */
+final class Fixtures {
+	static final Content.Type<TextFile> TEXT = TextFile.ContentTypeUtf8;
+
+	/**
+	 * Maps keys to filenames of the form <code>a/b.txt</code>.
+	 */
+	static final Key.Map<String, String> ENCDEC = new Key.Map<>() {
+		@Override
+		public String encode(Key<String, ?> key) {
+			return key.id() + "." + key.contentType().suffix();
+		}
+
+		@Override
+		public Key<String, ?> decode(String t) {
+			if (t.endsWith(".txt")) {
+				return new Key.Pair<>(t.substring(0, t.length() - 4), TEXT);
+			}
+			return null;
+		}
+	};
+
+	static Key<String, TextFile> key(String id) {
+		return new Key.Pair<>(id, TEXT);
+	}
+
+	static TextFile text(String s) {
+		return new TextFile(TEXT, s);
+	}
+
+	/**
+	 * Get the contents of a text file as a string, or <code>null</code> if none.
+	 *
+	 * @param f
+	 * @return
+	 */
+	static String string(TextFile f) {
+		return f == null ? null : new String(f.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a file on disk as a string.
+	 *
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	static String read(File f) throws IOException {
+		return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Count the regular files beneath a given directory.
+	 *
+	 * @param dir
+	 * @return
+	 */
+	static int countFiles(File dir) {
+		File[] files = dir.listFiles();
+		int count = 0;
+		if (files != null) {
+			for (File f : files) {
+				count += f.isDirectory() ? countFiles(f) : 1;
+			}
+		}
+		return count;
+	}
+}
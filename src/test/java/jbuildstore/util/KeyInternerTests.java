@@ -0,0 +1,119 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class KeyInternerTests {
+	@TempDir
+	File dir;
+
+	/**
+	 * Wraps the fixture mapping to count the number of keys encoded.
+	 */
+	private static class Counting implements Key.Map<String, String> {
+		private final AtomicInteger encoded = new AtomicInteger();
+
+		@Override
+		public String encode(Key<String, ?> key) {
+			encoded.incrementAndGet();
+			return ENCDEC.encode(key);
+		}
+
+		@Override
+		public Key<String, ?> decode(String t) {
+			return ENCDEC.decode(t);
+		}
+	}
+
+	@Test
+	public void test_01() {
+		// Equal keys are interned as the same instance
+		KeyInterner<String> interner = new KeyInterner<>(ENCDEC);
+		KeyInterner.Interned<String, TextFile> a = interner.intern(key("a"));
+		assertSame(a, interner.intern("a", TEXT));
+		assertSame(a, interner.intern(a));
+		assertEquals(key("a"), a);
+		assertEquals(a.hashCode(), key("a").hashCode());
+		Content.Type<BinaryFile> bin = BinaryFile.ContentType("bin");
+		assertNotSame(a, interner.intern("a", bin));
+		assertEquals(2, interner.size());
+		// Keys interned elsewhere are interned again
+		KeyInterner<String> other = new KeyInterner<>(ENCDEC);
+		KeyInterner.Interned<String, TextFile> b = other.intern(a);
+		assertNotSame(a, b);
+		assertEquals(a, b);
+	}
+
+	@Test
+	public void test_02() {
+		// Encodings are computed at most once, and never for decoded keys
+		Counting encdec = new Counting();
+		KeyInterner<String> interner = new KeyInterner<>(encdec);
+		assertEquals("a.txt", interner.encode(key("a")));
+		assertEquals("a.txt", interner.encode(key("a")));
+		assertEquals(1, encdec.encoded.get());
+		Key<String, ?> b = interner.decode("b.txt");
+		assertSame(b, interner.intern(key("b")));
+		assertEquals("b.txt", interner.encode(key("b")));
+		assertEquals(1, encdec.encoded.get());
+		assertNull(interner.decode("c.bin"));
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Stores using an interner hold interned keys
+		KeyInterner<String> interner = new KeyInterner<>(ENCDEC);
+		DirectoryStore<String> store = new DirectoryStore<>(interner, dir);
+		store.put(key("a"), text("a"));
+		store.put(key("b"), text("b"));
+		store.synchronise();
+		DirectoryStore<String> reopened = new DirectoryStore<>(interner, dir);
+		List<Key<String, TextFile>> keys = reopened.match(k -> true);
+		assertEquals(2, keys.size());
+		for (Key<String, TextFile> k : keys) {
+			assertTrue(k instanceof KeyInterner.Interned);
+			assertSame(k, interner.intern(k.id(), TEXT));
+		}
+		assertEquals("a", string(reopened.get(interner.intern(key("a")))));
+	}
+
+	@Test
+	public void test_04() throws InterruptedException {
+		// Keys no longer in use are eventually forgotten
+		KeyInterner<String> interner = new KeyInterner<>(ENCDEC);
+		KeyInterner.Interned<String, TextFile> kept = interner.intern(key("kept"));
+		for (int i = 0; i != 10000; ++i) {
+			interner.intern(key("k" + i));
+		}
+		for (int i = 0; i != 50 && interner.size() > 1; ++i) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(1, interner.size());
+		assertSame(kept, interner.intern(key("kept")));
+	}
+}
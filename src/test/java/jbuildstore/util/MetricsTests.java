@@ -0,0 +1,58 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTests {
+	@Test
+	public void test_01() {
+		// Operations are recorded both overall and against their type
+		Metrics metrics = new Metrics();
+		metrics.record("get", TextFile.ContentTypeUtf8, 100);
+		metrics.record("get", TextFile.ContentTypeUtf8, 300);
+		metrics.record("get", null, 200);
+		Map<String, Metrics.Summary> summary = metrics.snapshot();
+		assertEquals(3, summary.get("get").getCount());
+		assertEquals(600, summary.get("get").getTotalNanos());
+		assertEquals(2, summary.get("get:txt").getCount());
+		assertEquals(0, summary.get("get").getBytes());
+	}
+
+	@Test
+	public void test_02() {
+		// Distinct types with the same suffix share a histogram
+		Metrics metrics = new Metrics();
+		metrics.record("load", BinaryFile.ContentType("dat"), 10, 5);
+		metrics.record("load", BinaryFile.ContentType("dat"), 10, 7);
+		Map<String, Metrics.Summary> summary = metrics.snapshot();
+		assertEquals(2, summary.get("load:dat").getCount());
+		assertEquals(12, summary.get("load:dat").getBytes());
+	}
+
+	@Test
+	public void test_03() {
+		// Reset discards everything, including per-type histograms
+		Metrics metrics = new Metrics();
+		metrics.count("hit", TextFile.ContentTypeUtf8);
+		metrics.reset();
+		assertTrue(metrics.snapshot().isEmpty());
+		metrics.count("hit", TextFile.ContentTypeUtf8);
+		assertEquals(1, metrics.snapshot().get("hit:txt").getCount());
+	}
+}
@@ -0,0 +1,172 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class OffHeapStoreTests {
+
+	@Test
+	public void test_01() throws IOException {
+		// Entries survive the index being resized
+		OffHeapStore<String> store = new OffHeapStore<>(64, 0);
+		for (int i = 0; i != 1000; ++i) {
+			store.put(key("k" + i), text("v" + i));
+		}
+		assertEquals(1000, store.size());
+		for (int i = 0; i != 1000; ++i) {
+			assertEquals("v" + i, string(store.get(key("k" + i))));
+		}
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Removing entries leaves the remainder reachable
+		OffHeapStore<String> store = new OffHeapStore<>(64, 0);
+		for (int i = 0; i != 1000; ++i) {
+			store.put(key("k" + i), text("v" + i));
+		}
+		for (int i = 0; i < 1000; i += 3) {
+			store.remove(key("k" + i));
+		}
+		for (int i = 0; i != 1000; ++i) {
+			String expected = (i % 3) == 0 ? null : "v" + i;
+			assertEquals(expected, string(store.get(key("k" + i))));
+		}
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Snapshots are unaffected by later writes and compaction
+		OffHeapStore<String> store = new OffHeapStore<>(64, 16);
+		store.put(key("a"), text("1"));
+		Content.Source<String> snapshot = store.snapshot();
+		store.put(key("a"), text("2"));
+		store.remove(key("a"));
+		store.synchronise();
+		assertEquals("1", string(snapshot.get(key("a"))));
+		assertNull(store.get(key("a")));
+		assertEquals(0, store.getLiveBytes());
+	}
+
+	@Test
+	public void test_04() throws Exception {
+		// Reads concurrent with resizing and removal never see a corrupt value
+		OffHeapStore<String> store = new OffHeapStore<>(256, 0);
+		AtomicBoolean done = new AtomicBoolean();
+		ExecutorService readers = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] futures = new Future<?>[4];
+			for (int t = 0; t != futures.length; ++t) {
+				futures[t] = readers.submit(() -> {
+					while (!done.get()) {
+						for (int i = 0; i < 2000; i += 7) {
+							String v = string(store.get(key("k" + i)));
+							if (v != null && !v.equals("v" + i)) {
+								fail("read " + v + " for k" + i);
+							}
+						}
+					}
+					return null;
+				});
+			}
+			for (int round = 0; round != 5; ++round) {
+				for (int i = 0; i != 2000; ++i) {
+					store.put(key("k" + i), text("v" + i));
+				}
+				for (int i = 0; i != 2000; ++i) {
+					store.remove(key("k" + i));
+				}
+				store.synchronise();
+			}
+			done.set(true);
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			done.set(true);
+			readers.shutdownNow();
+		}
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void test_05() throws Exception {
+		// A read which overlaps an overwrite and compaction never caches the old
+		// value, even though compaction moves the new value to the old location.
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch resume = new CountDownLatch(1);
+		AtomicBoolean block = new AtomicBoolean(true);
+		Content.Type<TextFile> blocking = new Content.Type<TextFile>() {
+			@Override
+			public TextFile read(InputStream input) throws IOException {
+				TextFile f = TEXT.read(input);
+				if (block.getAndSet(false)) {
+					reading.countDown();
+					try {
+						resume.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				return new TextFile(this, string(f));
+			}
+
+			@Override
+			public void write(OutputStream output, TextFile value) throws IOException {
+				TEXT.write(output, value);
+			}
+
+			@Override
+			public String suffix() {
+				return "txt";
+			}
+		};
+		Key<String, TextFile> k = new Key.Pair<>("a", blocking);
+		OffHeapStore<String> store = new OffHeapStore<>(64, 1);
+		store.put(k, new TextFile(blocking, "1"));
+		// Evict the cached value, such that the next read deserialises
+		store.put(new Key.Pair<>("b", blocking), new TextFile(blocking, "x"));
+		store.remove(new Key.Pair<>("b", blocking));
+		store.synchronise();
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+		try {
+			Future<TextFile> old = reader.submit(() -> store.get(k));
+			reading.await();
+			store.put(k, new TextFile(blocking, "2"));
+			store.synchronise();
+			resume.countDown();
+			assertEquals("1", string(old.get()));
+		} finally {
+			resume.countDown();
+			reader.shutdownNow();
+		}
+		assertEquals("2", string(store.get(k)));
+	}
+}
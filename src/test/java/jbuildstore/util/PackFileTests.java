@@ -0,0 +1,121 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PackFileTests {
+	@TempDir
+	File dir;
+
+	@Test
+	public void test_01() throws IOException {
+		// Every entry added can be looked up
+		File file = new File(dir, "lib.pack");
+		try (PackFile.Writer<String> writer = new PackFile.Writer<>(ENCDEC, file)) {
+			for (int i = 0; i != 1000; ++i) {
+				writer.add(key("p/k" + i), text("v" + i));
+			}
+		}
+		try (PackFile<String> pack = new PackFile<>(ENCDEC, file)) {
+			assertEquals(1000, pack.size());
+			for (int i = 0; i != 1000; ++i) {
+				assertEquals("v" + i, string(pack.get(key("p/k" + i))));
+			}
+			assertEquals(1000, pack.match(k -> true).size());
+			assertEquals(1, pack.getAll(k -> k.equals(key("p/k7"))).size());
+		}
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Keys which were never added are misses
+		File file = new File(dir, "lib.pack");
+		try (PackFile.Writer<String> writer = new PackFile.Writer<>(ENCDEC, file)) {
+			for (int i = 0; i != 100; ++i) {
+				writer.add(key("k" + i), text("v" + i));
+			}
+		}
+		try (PackFile<String> pack = new PackFile<>(ENCDEC, file)) {
+			for (int i = 100; i != 1100; ++i) {
+				assertNull(pack.get(key("k" + i)));
+			}
+			assertNull(pack.get(key("")));
+		}
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// An empty pack file has no entries
+		File file = new File(dir, "empty.pack");
+		new PackFile.Writer<>(ENCDEC, file).close();
+		try (PackFile<String> pack = new PackFile<>(ENCDEC, file)) {
+			assertEquals(0, pack.size());
+			assertNull(pack.get(key("a")));
+			assertTrue(pack.match(k -> true).isEmpty());
+		}
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Large and compressed entries are read back intact
+		File file = new File(dir, "lib.pack");
+		String large = "x".repeat(3 * PackFile.PAGE_SIZE + 17);
+		try (PackFile.Writer<String> writer = new PackFile.Writer<>(ENCDEC, file, Deflater.BEST_SPEED, 64)) {
+			writer.add(key("small"), text("s"));
+			writer.add(key("large"), text(large));
+			writer.add(key("after"), text("a"));
+		}
+		assertTrue(file.length() < PackFile.PAGE_SIZE);
+		try (PackFile<String> pack = new PackFile<>(ENCDEC, file)) {
+			assertEquals("s", string(pack.get(key("small"))));
+			assertEquals(large, string(pack.get(key("large"))));
+			assertEquals("a", string(pack.get(key("after"))));
+		}
+	}
+
+	@Test
+	public void test_05() throws IOException {
+		// Duplicate keys are rejected
+		File file = new File(dir, "lib.pack");
+		try (PackFile.Writer<String> writer = new PackFile.Writer<>(ENCDEC, file)) {
+			writer.add(key("a"), text("1"));
+			assertThrows(IllegalArgumentException.class, () -> writer.add(key("a"), text("2")));
+		}
+	}
+
+	@Test
+	public void test_06() throws IOException {
+		// Files which are not pack files are rejected, and closed packs cannot be read
+		File file = new File(dir, "bad.pack");
+		Files.write(file.toPath(), new byte[128]);
+		assertThrows(IOException.class, () -> new PackFile<>(ENCDEC, file));
+		File good = new File(dir, "good.pack");
+		try (PackFile.Writer<String> writer = new PackFile.Writer<>(ENCDEC, good)) {
+			writer.add(key("a"), text("1"));
+		}
+		PackFile<String> pack = new PackFile<>(ENCDEC, good);
+		pack.close();
+		assertThrows(IllegalStateException.class, () -> pack.get(key("a")));
+	}
+}
@@ -0,0 +1,138 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.ToIntFunction;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class PartitionedStoreTests {
+	/**
+	 * Keys starting with <code>a</code> go to the first shard, and all others to
+	 * the second.
+	 */
+	private static final ToIntFunction<Key<String, ?>> BY_PREFIX = k -> k.id().startsWith("a") ? 0 : 1;
+	private static final Executor DIRECT = Runnable::run;
+
+	@TempDir
+	File dir;
+
+	@Test
+	public void test_01() throws IOException {
+		// Entries are written to the shard given by the partitioner
+		List<File> roots = List.of(new File(dir, "0"), new File(dir, "1"));
+		PartitionedStore<String> store = new PartitionedStore<>(ENCDEC, roots, BY_PREFIX, DIRECT);
+		store.put(key("a1"), text("x"));
+		store.put(key("b1"), text("y"));
+		store.synchronise();
+		assertTrue(new File(roots.get(0), "a1.txt").exists());
+		assertFalse(new File(roots.get(1), "a1.txt").exists());
+		assertTrue(new File(roots.get(1), "b1.txt").exists());
+		assertSame(store.getShards().get(1), store.getShard(key("b1")));
+		assertEquals("y", string(store.get(key("b1"))));
+		assertEquals(2, store.match(k -> true).size());
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Entries found in a shard to which they don't belong are ignored
+		List<File> roots = List.of(new File(dir, "0"), new File(dir, "1"));
+		roots.get(1).mkdirs();
+		Files.write(new File(roots.get(1), "a2.txt").toPath(), "stray".getBytes());
+		PartitionedStore<String> store = new PartitionedStore<>(ENCDEC, roots, BY_PREFIX, DIRECT);
+		assertNull(store.get(key("a2")));
+		assertTrue(store.match(k -> true).isEmpty());
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Transactions and snapshots span every shard
+		List<File> roots = List.of(new File(dir, "0"), new File(dir, "1"));
+		PartitionedStore<String> store = new PartitionedStore<>(ENCDEC, roots, BY_PREFIX, DIRECT);
+		store.put(key("a1"), text("x"));
+		Content.Source<String> snapshot = store.snapshot();
+		try (Content.Transaction<String> tx = store.begin()) {
+			tx.remove(key("a1"));
+			tx.put(key("b1"), text("y"));
+			tx.commit();
+		}
+		assertNull(store.get(key("a1")));
+		assertEquals("y", string(store.get(key("b1"))));
+		assertEquals("x", string(snapshot.get(key("a1"))));
+		assertNull(snapshot.get(key("b1")));
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// The hash partitioner is stable and spreads entries across all shards
+		List<File> roots = List.of(new File(dir, "0"), new File(dir, "1"), new File(dir, "2"));
+		PartitionedStore<String> store = new PartitionedStore<>(ENCDEC, roots);
+		for (int i = 0; i != 100; ++i) {
+			store.put(key("k" + i), text("v" + i));
+		}
+		store.synchronise();
+		for (File root : roots) {
+			assertTrue(countFiles(root) > 0);
+		}
+		PartitionedStore<String> reopened = new PartitionedStore<>(ENCDEC, roots);
+		for (int i = 0; i != 100; ++i) {
+			assertEquals("v" + i, string(reopened.get(key("k" + i))));
+		}
+	}
+
+	@Test
+	public void test_05() throws IOException {
+		// Invalid partitions are rejected
+		List<File> roots = List.of(new File(dir, "0"));
+		PartitionedStore<String> store = new PartitionedStore<>(ENCDEC, roots, k -> 1, DIRECT);
+		assertThrows(IllegalArgumentException.class, () -> store.put(key("a"), text("x")));
+	}
+
+	@Test
+	public void test_06() throws IOException {
+		// Errors raised by a shard are rethrown unchanged
+		List<File> roots = List.of(new File(dir, "0"), new File(dir, "1"));
+		roots.get(1).mkdirs();
+		Files.write(new File(roots.get(1), "bad.txt").toPath(), "x".getBytes());
+		Key.Map<String, String> encdec = new Key.Map<>() {
+			@Override
+			public String encode(Key<String, ?> key) {
+				return ENCDEC.encode(key);
+			}
+
+			@Override
+			public Key<String, ?> decode(String t) {
+				if (t.equals("bad.txt")) {
+					throw new AssertionError("bad");
+				}
+				return ENCDEC.decode(t);
+			}
+		};
+		AssertionError e = assertThrows(AssertionError.class,
+				() -> new PartitionedStore<>(encdec, roots, BY_PREFIX, DIRECT));
+		assertEquals("bad", e.getMessage());
+	}
+}
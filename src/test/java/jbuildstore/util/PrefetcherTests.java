@@ -0,0 +1,187 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class PrefetcherTests {
+
+	@Test
+	public void test_01() throws Exception {
+		// Entries are loaded in the background
+		Counting source = new Counting("a", "b");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Prefetcher<String> prefetcher = new Prefetcher<>(source, executor, 4);
+			assertSame(source, prefetcher.getSource());
+			assertTrue(prefetcher.prefetch(key("a")));
+			assertTrue(source.loaded.await(10, TimeUnit.SECONDS));
+			assertEquals(1, source.loads.get());
+			assertEquals(1, prefetcher.getIssued());
+			assertEquals(0, prefetcher.getDropped());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void test_02() throws Exception {
+		// Entries being loaded are not loaded again, and requests beyond the limit
+		// are dropped until loads complete
+		Counting source = new Counting("a", "b", "c");
+		source.gate = new CountDownLatch(1);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			Prefetcher<String> prefetcher = new Prefetcher<>(source, executor, 2);
+			assertTrue(prefetcher.prefetch(key("a")));
+			assertFalse(prefetcher.prefetch(key("a")));
+			assertTrue(prefetcher.prefetch(key("b")));
+			assertFalse(prefetcher.prefetch(key("c")));
+			assertEquals(2, prefetcher.getIssued());
+			assertEquals(1, prefetcher.getDropped());
+			source.gate.countDown();
+			// Permits are returned once loads complete
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!prefetcher.prefetch(key("c"))) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertEquals(3, prefetcher.getIssued());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void test_03() {
+		// Rejected requests are dropped, and release their permit
+		Counting source = new Counting("a");
+		AtomicBoolean reject = new AtomicBoolean(true);
+		Prefetcher<String> prefetcher = new Prefetcher<>(source, r -> {
+			if (reject.get()) {
+				throw new RejectedExecutionException();
+			}
+			r.run();
+		}, 1);
+		assertFalse(prefetcher.prefetch(key("a")));
+		assertEquals(1, prefetcher.getDropped());
+		reject.set(false);
+		assertTrue(prefetcher.prefetch(key("a")));
+		assertEquals(1, source.loads.get());
+		assertEquals(1, prefetcher.getIssued());
+	}
+
+	@Test
+	public void test_04() {
+		// Errors whilst loading are ignored
+		Counting source = new Counting("a");
+		source.fail = true;
+		Prefetcher<String> prefetcher = new Prefetcher<>(source, Runnable::run, 1);
+		assertTrue(prefetcher.prefetch(key("a")));
+		assertTrue(prefetcher.prefetch(key("a")));
+		assertEquals(2, source.loads.get());
+	}
+
+	@Test
+	public void test_05() {
+		// Matching entries can be loaded together
+		Counting source = new Counting("p/a", "p/b", "q/c");
+		Prefetcher<String> prefetcher = new Prefetcher<>(source, Runnable::run, 8);
+		assertEquals(2, prefetcher.prefetch(k -> k.id().startsWith("p/")));
+		assertEquals(2, source.loads.get());
+		assertEquals(1, prefetcher.prefetch(List.of(key("q/c"))));
+	}
+
+	@Test
+	public void test_06() {
+		// Only executors created by the prefetcher are shut down on closing
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			new Prefetcher<>(new Counting(), executor, 1).close();
+			assertFalse(executor.isShutdown());
+		} finally {
+			executor.shutdownNow();
+		}
+		Prefetcher<String> prefetcher = new Prefetcher<>(new Counting("a"));
+		prefetcher.close();
+		assertFalse(prefetcher.prefetch(key("a")));
+		assertEquals(1, prefetcher.getDropped());
+	}
+
+	/**
+	 * A source which counts the entries loaded from it, and which can be made to
+	 * block or fail whilst loading.
+	 */
+	private static class Counting implements Content.Source<String> {
+		private final HashMapStore<String> store = new HashMapStore<>();
+		private final AtomicInteger loads = new AtomicInteger();
+		private final CountDownLatch loaded = new CountDownLatch(1);
+		private volatile CountDownLatch gate;
+		private volatile boolean fail;
+
+		public Counting(String... ids) {
+			for (String id : ids) {
+				store.put(key(id), text(id));
+			}
+		}
+
+		@Override
+		public <T extends Content> T get(Key<String, T> key) throws IOException {
+			loads.incrementAndGet();
+			try {
+				CountDownLatch g = gate;
+				if (g != null) {
+					try {
+						g.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				if (fail) {
+					throw new IOException("failed");
+				}
+				return store.get(key);
+			} finally {
+				loaded.countDown();
+			}
+		}
+
+		@Override
+		public <T extends Content> List<T> getAll(Predicate<Key<String, ?>> query) throws IOException {
+			return store.getAll(query);
+		}
+
+		@Override
+		public <T extends Content> List<Key<String, T>> match(Predicate<Key<String, ?>> query) {
+			return store.match(query);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class RemoteCacheStoreTests {
+	@Test
+	public void test_01() throws IOException {
+		// Entries uploaded by one store are read through by another
+		try (CacheServer server = new CacheServer(0)) {
+			RemoteCacheStore<String> writer = new RemoteCacheStore<>(ENCDEC, new OffHeapStore<>(), server.getURI());
+			writer.put(key("a"), text("a"));
+			writer.synchronise();
+			assertEquals(1, writer.getUploads());
+			assertEquals(0, writer.getPending());
+			RemoteCacheStore<String> reader = new RemoteCacheStore<>(ENCDEC, new OffHeapStore<>(), server.getURI());
+			assertEquals("a", string(reader.get(key("a"))));
+			assertEquals(1, reader.getHits());
+			assertNull(reader.get(key("b")));
+			assertEquals(1, reader.getMisses());
+		}
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Removed entries are not read through again
+		try (CacheServer server = new CacheServer(0)) {
+			RemoteCacheStore<String> store = new RemoteCacheStore<>(ENCDEC, new OffHeapStore<>(), server.getURI());
+			store.put(key("a"), text("a"));
+			store.synchronise();
+			store.remove(key("a"));
+			assertNull(store.get(key("a")));
+			assertEquals(0, store.prefetch(List.of(key("a"))));
+			assertNull(store.get(key("a")));
+			// Until written again
+			store.put(key("a"), text("again"));
+			assertEquals("again", string(store.get(key("a"))));
+		}
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Namespaces are isolated from each other
+		try (CacheServer server = new CacheServer(0)) {
+			RemoteCacheStore<String> main = new RemoteCacheStore<>(ENCDEC, new OffHeapStore<>(), server.getURI(), "main");
+			main.put(key("a"), text("main"));
+			main.synchronise();
+			RemoteCacheStore<String> branch = new RemoteCacheStore<>(ENCDEC, new OffHeapStore<>(), server.getURI(),
+					"branch");
+			assertNull(branch.get(key("a")));
+			RemoteCacheStore<String> other = new RemoteCacheStore<>(ENCDEC, new OffHeapStore<>(), server.getURI(), "main");
+			assertEquals("main", string(other.get(key("a"))));
+		}
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Uploads are retained whilst the remote cache is unavailable
+		InetSocketAddress address;
+		URI uri;
+		try (CacheServer server = new CacheServer(0)) {
+			uri = server.getURI();
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(), uri.getPort());
+		}
+		RemoteCacheStore<String> store = new RemoteCacheStore<>(ENCDEC, new OffHeapStore<>(), uri, "",
+				RemoteCacheStore.DEFAULT_CONCURRENCY, Duration.ofSeconds(5), Duration.ZERO);
+		store.put(key("a"), text("a"));
+		store.synchronise();
+		assertEquals(1, store.getFailures());
+		assertEquals(1, store.getPending());
+		try (CacheServer server = new CacheServer(address, 1)) {
+			store.synchronise();
+			assertEquals(0, store.getPending());
+			assertEquals(1, server.size());
+		}
+	}
+
+	@Test
+	public void test_05() throws Exception {
+		// Writes and removals made whilst a fetch is in flight are not overwritten
+		CountDownLatch requested = new CountDownLatch(2);
+		CountDownLatch release = new CountDownLatch(1);
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		TEXT.write(bout, text("remote"));
+		byte[] body = bout.toByteArray();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			requested.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+		ExecutorService readers = Executors.newFixedThreadPool(2);
+		try {
+			URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/");
+			OffHeapStore<String> local = new OffHeapStore<>();
+			RemoteCacheStore<String> store = new RemoteCacheStore<>(ENCDEC, local, uri);
+			Future<TextFile> removed = readers.submit(() -> store.get(key("a")));
+			Future<Integer> written = readers.submit(() -> store.prefetch(List.of(key("b"))));
+			requested.await();
+			store.remove(key("a"));
+			store.put(key("b"), text("local"));
+			release.countDown();
+			assertNull(removed.get());
+			written.get();
+			assertNull(local.get(key("a")));
+			assertEquals("local", string(local.get(key("b"))));
+		} finally {
+			release.countDown();
+			readers.shutdownNow();
+			server.stop(0);
+			((ExecutorService) server.getExecutor()).shutdownNow();
+		}
+	}
+}
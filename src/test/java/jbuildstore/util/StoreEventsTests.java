@@ -0,0 +1,127 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class StoreEventsTests {
+	@TempDir
+	File dir;
+
+	/**
+	 * Run a given action whilst recording all store events, and return those
+	 * recorded.
+	 */
+	private List<RecordedEvent> record(Action action) throws IOException {
+		Path dump = new File(dir, "events.jfr").toPath();
+		try (Recording recording = new Recording()) {
+			for (String name : new String[] { "Load", "Flush", "Serialise", "Deserialise", "Synchronise" }) {
+				recording.enable("jbuildstore." + name).withoutThreshold();
+			}
+			recording.start();
+			action.run();
+			recording.stop();
+			recording.dump(dump);
+		}
+		return RecordingFile.readAllEvents(dump);
+	}
+
+	private interface Action {
+		void run() throws IOException;
+	}
+
+	private static List<RecordedEvent> filter(List<RecordedEvent> events, String name) {
+		ArrayList<RecordedEvent> rs = new ArrayList<>();
+		for (RecordedEvent e : events) {
+			if (e.getEventType().getName().equals("jbuildstore." + name)) {
+				rs.add(e);
+			}
+		}
+		return rs;
+	}
+
+	private static RecordedEvent find(List<RecordedEvent> events, String name, String key) {
+		for (RecordedEvent e : filter(events, name)) {
+			if (key.equals(e.getString("key"))) {
+				return e;
+			}
+		}
+		return fail("no " + name + " event for " + key);
+	}
+
+	@Test
+	public void test_01() throws IOException {
+		// Flushing and loading entries emits events with the sizes written and read
+		File root = new File(dir, "store");
+		List<RecordedEvent> flushes = record(() -> {
+			DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, root);
+			store.put(key("small"), text("abc"));
+			store.put(key("large"), text("x".repeat(1000)));
+			store.synchronise();
+		});
+		assertEquals(3, find(flushes, "Flush", "small").getLong("bytes"));
+		assertEquals(1000, find(flushes, "Flush", "large").getLong("bytes"));
+		assertEquals("txt", find(flushes, "Flush", "large").getString("contentType"));
+		List<RecordedEvent> syncs = filter(flushes, "Synchronise");
+		assertEquals(1, syncs.size());
+		assertEquals(2, syncs.get(0).getInt("flushed"));
+		List<RecordedEvent> loads = record(() -> {
+			DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, root);
+			assertEquals("abc", string(store.get(key("small"))));
+			// Loaded at most once
+			store.get(key("small"));
+		});
+		assertEquals(1, filter(loads, "Load").size());
+		assertEquals(3, find(loads, "Load", "small").getLong("bytes"));
+		assertEquals(3, find(loads, "Deserialise", "small").getLong("bytes"));
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// With compression, flushes and loads report the bytes on disk, whereas
+		// (de)serialisation reports the bytes before compression
+		File root = new File(dir, "store");
+		String s = "abcdefgh".repeat(100);
+		List<RecordedEvent> flushes = record(() -> {
+			DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, root);
+			store.setCompression(new Compression(6, 16));
+			store.put(key("a"), text(s));
+			store.synchronise();
+		});
+		long size = new File(root, "a.txt").length();
+		assertTrue(size < s.length());
+		assertEquals(size, find(flushes, "Flush", "a").getLong("bytes"));
+		assertEquals(s.length(), find(flushes, "Serialise", "a").getLong("bytes"));
+		List<RecordedEvent> loads = record(() -> {
+			DirectoryStore<String> store = new DirectoryStore<>(ENCDEC, root);
+			assertEquals(s, string(store.get(key("a"))));
+		});
+		assertEquals(size, find(loads, "Load", "a").getLong("bytes"));
+		assertEquals(s.length(), find(loads, "Deserialise", "a").getLong("bytes"));
+	}
+}
@@ -0,0 +1,89 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import jbuildstore.core.Key;
+
+public class TracingStoreTests {
+
+	@Test
+	public void test_01() throws IOException {
+		// Operations are read back as they were recorded
+		StringWriter out = new StringWriter();
+		try (TracingStore<String> store = new TracingStore<>(new OffHeapStore<>(), ENCDEC, out)) {
+			store.put(key("a"), text("hello"));
+			store.get(key("a"));
+			store.get(key("b"));
+			store.synchronise();
+		}
+		List<TracingStore.Operation> ops = TracingStore.read(new StringReader(out.toString()));
+		assertEquals(4, ops.size());
+		assertEquals("put", ops.get(0).getOperation());
+		assertEquals(5, ops.get(0).getBytes());
+		assertEquals("a.txt", ops.get(0).getKey());
+		assertEquals("get", ops.get(1).getOperation());
+		assertEquals("get.miss", ops.get(2).getOperation());
+		assertEquals("synchronise", ops.get(3).getOperation());
+		assertNull(ops.get(3).getKey());
+	}
+
+	@Test
+	public void test_02() throws IOException {
+		// Keys containing separators or escapes survive the round trip
+		String id = "a\tb\nc\\d\re\\t";
+		StringWriter out = new StringWriter();
+		try (TracingStore<String> store = new TracingStore<>(new OffHeapStore<>(), ENCDEC, out)) {
+			store.put(key(id), text("x"));
+			store.remove(key(id));
+		}
+		assertEquals(2, out.toString().split("\n").length);
+		List<TracingStore.Operation> ops = TracingStore.read(new StringReader(out.toString()));
+		assertEquals(2, ops.size());
+		assertEquals(id + ".txt", ops.get(0).getKey());
+		assertEquals(id + ".txt", ops.get(1).getKey());
+		assertEquals("txt", ops.get(1).getType());
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// A key consisting of a dash is distinguished from no key
+		StringWriter out = new StringWriter();
+		Key.Map<String, String> encdec = new Key.Map<>() {
+			@Override
+			public String encode(Key<String, ?> key) {
+				return key.id();
+			}
+
+			@Override
+			public Key<String, ?> decode(String t) {
+				return key(t);
+			}
+		};
+		try (TracingStore<String> store = new TracingStore<>(new OffHeapStore<>(), encdec, out)) {
+			store.remove(key("-"));
+		}
+		List<TracingStore.Operation> ops = TracingStore.read(new StringReader(out.toString()));
+		assertEquals("-", ops.get(0).getKey());
+	}
+}
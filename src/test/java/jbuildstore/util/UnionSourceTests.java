@@ -0,0 +1,134 @@
+// Copyright 2021 David James Pearce
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package jbuildstore.util;
+
+import static jbuildstore.util.Fixtures.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import jbuildstore.core.Content;
+import jbuildstore.core.Key;
+
+public class UnionSourceTests {
+	private static HashMapStore<String> store(String... pairs) {
+		HashMapStore<String> store = new HashMapStore<>();
+		for (int i = 0; i < pairs.length; i += 2) {
+			store.put(key(pairs[i]), text(pairs[i + 1]));
+		}
+		return store;
+	}
+
+	@Test
+	public void test_01() throws IOException {
+		// Earlier sources take precedence
+		HashMapStore<String> first = store("a", "first", "b", "first");
+		HashMapStore<String> second = store("b", "second", "c", "second");
+		UnionSource<String> union = new UnionSource<>(first, second);
+		assertEquals(2, union.size());
+		assertEquals("first", string(union.get(key("a"))));
+		assertEquals("first", string(union.get(key("b"))));
+		assertEquals("second", string(union.get(key("c"))));
+		assertNull(union.get(key("d")));
+		assertSame(first, union.getProvider(key("b")));
+		assertSame(second, union.getProvider(key("c")));
+		assertNull(union.getProvider(key("d")));
+		assertEquals(3, union.match(k -> true).size());
+		List<TextFile> all = union.getAll(k -> k.id().equals("b"));
+		assertEquals(1, all.size());
+		assertEquals("first", string(all.get(0)));
+	}
+
+	@Test
+	public void test_02() {
+		// Shadowed entries are reported against every source except the provider
+		HashMapStore<String> first = store("a", "1", "b", "1");
+		HashMapStore<String> second = store("a", "2");
+		HashMapStore<String> third = store("a", "3", "b", "3", "c", "3");
+		UnionSource<String> union = new UnionSource<>(Arrays.asList(first, second, third));
+		Map<Key<String, ?>, List<Content.Source<String>>> shadowed = union.getShadowed();
+		assertEquals(2, shadowed.size());
+		assertEquals(Arrays.asList(second, third), shadowed.get(key("a")));
+		assertEquals(Arrays.asList(third), shadowed.get(key("b")));
+	}
+
+	@Test
+	public void test_03() throws IOException {
+		// Changes to a source are not observed until it is refreshed
+		HashMapStore<String> first = store("a", "first");
+		HashMapStore<String> second = store("a", "second", "b", "second");
+		UnionSource<String> union = new UnionSource<>(first, second);
+		first.put(key("b"), text("first"));
+		first.put(key("c"), text("first"));
+		second.remove(key("a"));
+		// New keys are not found, or still read from the source they were
+		assertNull(union.get(key("c")));
+		assertEquals("second", string(union.get(key("b"))));
+		assertTrue(union.match(k -> k.id().equals("c")).isEmpty());
+		// Values are always current
+		first.put(key("a"), text("changed"));
+		assertEquals("changed", string(union.get(key("a"))));
+		// Removed keys are still matched, but read as null
+		first.remove(key("a"));
+		assertEquals(1, union.match(k -> k.id().equals("a")).size());
+		assertNull(union.get(key("a")));
+		assertSame(first, union.getProvider(key("a")));
+	}
+
+	@Test
+	public void test_04() throws IOException {
+		// Refreshing a source updates only the keys it affects
+		HashMapStore<String> first = store("a", "first");
+		HashMapStore<String> second = store("a", "second", "b", "second");
+		UnionSource<String> union = new UnionSource<>(first, second);
+		first.put(key("b"), text("first"));
+		first.put(key("c"), text("first"));
+		union.refresh(first);
+		assertEquals("first", string(union.get(key("b"))));
+		assertEquals("first", string(union.get(key("c"))));
+		assertSame(first, union.getProvider(key("b")));
+		assertEquals(Arrays.asList(second), union.getShadowed().get(key("b")));
+		// Keys removed fall back to the next source providing them
+		first.remove(key("a"));
+		first.remove(key("b"));
+		union.refresh(0);
+		assertEquals("second", string(union.get(key("a"))));
+		assertSame(second, union.getProvider(key("b")));
+		assertTrue(union.getShadowed().isEmpty());
+		// Keys removed from every source disappear
+		second.remove(key("a"));
+		union.refresh(1);
+		assertNull(union.getProvider(key("a")));
+		assertEquals(2, union.match(k -> true).size());
+	}
+
+	@Test
+	public void test_05() {
+		// Refreshing a lower precedence source never overrides a higher one
+		HashMapStore<String> first = store("a", "first");
+		HashMapStore<String> second = store();
+		UnionSource<String> union = new UnionSource<>(first, second);
+		second.put(key("a"), text("second"));
+		union.refresh(second);
+		assertSame(first, union.getProvider(key("a")));
+		assertEquals(Arrays.asList(second), union.getShadowed().get(key("a")));
+		// Only member sources can be refreshed
+		assertThrows(IllegalArgumentException.class, () -> union.refresh(new HashMapStore<>()));
+	}
+}